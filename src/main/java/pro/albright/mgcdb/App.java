@@ -1,13 +1,20 @@
 package pro.albright.mgcdb;
 
 import java.sql.SQLException;
+import java.util.Set;
 
+import pro.albright.mgcdb.Controller.AdminC;
 import pro.albright.mgcdb.Controller.GameC;
 import pro.albright.mgcdb.Controller.UserC;
+import pro.albright.mgcdb.Model.Game;
 import pro.albright.mgcdb.Model.Model;
 import pro.albright.mgcdb.Model.User;
 import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.DBBusyException;
 import pro.albright.mgcdb.Util.DBCxn;
+import pro.albright.mgcdb.Util.DBException;
+import pro.albright.mgcdb.Util.Migrations;
+import pro.albright.mgcdb.Util.StatusCodes;
 import pro.albright.mgcdb.Util.SteamCxn;
 import pro.albright.mgcdb.Util.Tasks;
 import spark.Session;
@@ -22,11 +29,20 @@ public class App {
     // Initialize dependencies
     Config config = new Config();
     SteamCxn steamCxn = new SteamCxn(config.get("steam_key"));
-    DBCxn dbCxn = new DBCxn(config.get("db_location"));
+    DBCxn dbCxn = new DBCxn(config.get("db_location"), config);
 
     Model.setDbCxn(dbCxn);
     Model.setSteamCxn(steamCxn);
 
+    // Bring the schema up to date, unless we're about to create it from
+    // scratch, or the task shouldn't change the database: a backup taken
+    // before upgrading should be of the database as it was, and querystats
+    // only talks to the running daemon.
+    Migrations migrations = new Migrations(dbCxn);
+    if (args.length == 0 || !Set.of("initdb", "backup", "querystats").contains(args[0])) {
+      migrations.apply(false);
+    }
+
     if (args.length == 0) {
       // Start server
       System.out.println("Starting server.");
@@ -52,12 +68,18 @@ public class App {
         }
       });
 
+      // Build the title index now rather than on the first suggestion.
+      Game.getTitleIndex();
+
       // Initialize controllers
       GameC gameC = new GameC(config);
       UserC userC = new UserC(config);
+      AdminC adminC = new AdminC(config, dbCxn);
 
       get("/", gameC::front);
       get("/games", gameC::gamesByRelease);
+      // Before "/games/:filter", which would match it otherwise.
+      get("/games/suggest", gameC::suggest);
       get("/games/:filter", gameC::gamesByRelease);
       get("/games/:filter/:page", gameC::gamesByRelease);
 
@@ -81,6 +103,33 @@ public class App {
         get("/games/:page", userC::userGames);
         get("/vote/:ownership/:vote", userC::takeVote);
       });
+
+      path("/admin", () -> {
+        before("/*", adminC::ensureAdmin);
+        get("/metrics", adminC::metrics);
+        get("/querystats", adminC::queryStats);
+      });
+
+      // A failed query only fails the request it was made for. If the
+      // database was just locked by a task for too long, say so, as trying
+      // again in a moment will probably work.
+      exception(DBBusyException.class, (e, req, res) -> {
+        System.err.println("Database busy: " + e.getMessage());
+        res.status(503);
+        res.header("Retry-After", "5");
+        res.body("The database is busy. Please try again in a moment.");
+      });
+      exception(DBException.class, (e, req, res) -> {
+        e.printStackTrace();
+        res.status(500);
+        res.body("Something went wrong with the database.");
+      });
+
+      // Now we're serving requests, apply migrations which we didn't need to
+      // wait for.
+      migrations.applyOnlineInBackground();
+      dbCxn.startCheckpointer();
+      dbCxn.startScheduledBackups();
     }
     else {
       // Run an administrative task.
@@ -89,8 +138,14 @@ public class App {
       for (int argIdx = 1; argIdx < args.length; argIdx++) {
         taskArgs[argIdx - 1] = args[argIdx];
       }
-      Tasks tasks = new Tasks(config, new DBCxn(config.get("db_location")));
-      tasks.invoke(task, taskArgs);
+      Tasks tasks = new Tasks(config, dbCxn);
+      try {
+        tasks.invoke(task, taskArgs);
+      }
+      catch (DBException e) {
+        e.printStackTrace();
+        System.exit(e instanceof DBBusyException ? StatusCodes.DB_BUSY : StatusCodes.GENERAL_SQL_ERROR);
+      }
     }
   }
 }
@@ -0,0 +1,95 @@
+package pro.albright.mgcdb.Controller;
+
+import org.apache.http.HttpStatus;
+import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.DBCxn;
+import pro.albright.mgcdb.Util.Metrics;
+import spark.Request;
+import spark.Response;
+
+import java.util.Map;
+
+import static spark.Spark.halt;
+
+/**
+ * Controller for administrative routes, such as metrics.
+ *
+ * These routes are only available if an admin_token is set in the config
+ * file, and only to requests which pass that token, either in an
+ * X-Admin-Token header or a `token` query parameter.
+ */
+public class AdminC extends Controller {
+
+  private DBCxn dbCxn;
+
+  /**
+   * Initialize controller and inject dependencies.
+   *
+   * @param config
+   * @param dbCxn
+   */
+  public AdminC(Config config, DBCxn dbCxn) {
+    super(config);
+    this.dbCxn = dbCxn;
+  }
+
+  /**
+   * "Before" handler to ensure the request carries the admin token. Responds
+   * with a 404 if it doesn't, so as not to advertise that these routes exist.
+   * @param req
+   * @param res
+   */
+  public void ensureAdmin(Request req, Response res) {
+    String adminToken = config.get("admin_token", "");
+    String token = req.headers("X-Admin-Token");
+    if (token == null) {
+      token = req.queryParams("token");
+    }
+    if (adminToken.isEmpty() || !adminToken.equals(token)) {
+      halt(HttpStatus.SC_NOT_FOUND);
+    }
+  }
+
+  /**
+   * Show current metric values as plain text, one "name value" pair per line.
+   * @param req
+   * @param res
+   * @return
+   */
+  public String metrics(Request req, Response res) {
+    res.type("text/plain");
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> metric : Metrics.snapshot().entrySet()) {
+      sb.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Show timing statistics for the query shapes which have taken the most
+   * time, as plain text. The number shown can be set with a `limit` query
+   * parameter; passing `reset=1` starts the statistics over once they've been
+   * shown.
+   * @param req
+   * @param res
+   * @return
+   */
+  public String queryStats(Request req, Response res) {
+    res.type("text/plain");
+    int limit = 20;
+    String limitParam = req.queryParams("limit");
+    if (limitParam != null) {
+      try {
+        limit = Math.max(1, Integer.parseInt(limitParam));
+      }
+      catch (NumberFormatException e) {
+        halt(HttpStatus.SC_BAD_REQUEST, "limit must be a number.");
+      }
+    }
+    String report = dbCxn.getQueryStats().report(limit);
+    if ("1".equals(req.queryParams("reset"))) {
+      dbCxn.getQueryStats().reset();
+    }
+    return report;
+  }
+}
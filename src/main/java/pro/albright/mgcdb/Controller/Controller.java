@@ -4,6 +4,7 @@ import org.apache.velocity.app.VelocityEngine;
 import pro.albright.mgcdb.Model.User;
 import pro.albright.mgcdb.Util.Config;
 import pro.albright.mgcdb.Util.Escape;
+import pro.albright.mgcdb.Util.SeekCursor;
 import spark.ModelAndView;
 import spark.Request;
 import spark.template.velocity.VelocityTemplateEngine;
@@ -55,6 +56,19 @@ public class Controller {
     return getTemplateEngine().render(new ModelAndView(model, "skeleton.vm"));
   }
 
+  /**
+   * Get a listing cursor passed in a query parameter, as by the "Next" and
+   * "Prev" links of gamePager.vm.
+   *
+   * @param req The request.
+   * @param name The parameter name.
+   * @return The cursor, or null if there isn't one or it couldn't be read,
+   * in which case the page should be found by its number instead.
+   */
+  protected SeekCursor cursorParam(Request req, String name) {
+    return SeekCursor.decode(req.queryParams(name));
+  }
+
   /**
    * Show a 404 page.
    */
@@ -1,13 +1,18 @@
 package pro.albright.mgcdb.Controller;
 
+import com.fasterxml.jackson.jr.ob.JSON;
 import pro.albright.mgcdb.Model.Game;
 import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.Escape;
 import pro.albright.mgcdb.Util.PagedQueryResult;
 import spark.Request;
 import spark.Response;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,7 +28,8 @@ public class GameC extends Controller {
    * characters. For example, a query such as `foo bar baz` should break into
    * the parts `["foo", "bar", "baz"]` and a query such as `"foo bar" baz`
    * should be `["foo bar", "baz"]`. Non-paired double quotes should be ignored,
-   * so `foo "bar baz` is still `["foo", "bar", "baz"]`.
+   * so `foo "bar baz` is still `["foo", "bar", "baz"]`. Quoted parts keep
+   * their quotes, so that Game.getByReleaseDate() can match them as phrases.
    */
     private Pattern queryPattern = Pattern.compile("(?:\"(.+?)\"|([^\\s\"]+))");
 
@@ -81,7 +87,8 @@ public class GameC extends Controller {
       String pageStr = req.params(":page");
       if (pageStr != null) {
         try {
-          page = Integer.parseInt(pageStr);
+          // One-based, like the page number for the "all" filter.
+          page = Integer.parseInt(pageStr) - 1;
         }
         catch (NumberFormatException e2) {
           // Saw a second parameter which wasn't a page number.
@@ -97,14 +104,8 @@ public class GameC extends Controller {
       return null;
     }
 
-    Game.GameFilterMode filterMode = Game.GameFilterMode.ALL;
-    if (filter.equals("mac")) {
-      filterMode = Game.GameFilterMode.MAC;
-    }
-    else if (filter.equals("cat")) {
-      filterMode = Game.GameFilterMode.CATALINA;
-    }
-    else if (!filter.equals("all")) {
+    Game.GameFilterMode filterMode = toFilterMode(filter);
+    if (filterMode == null) {
       // Invalid property passed as the filter value
       fourOhFour();
       return null;
@@ -121,12 +122,15 @@ public class GameC extends Controller {
     }
 
     PagedQueryResult<Game> gameResult = null;
+    String pagerSuffix = "";
     if (queryParts.size() > 0) {
       String[] queryPartsArray = queryParts.toArray(new String[queryParts.size()]);
-      gameResult = Game.getByReleaseDate(0, filterMode, queryPartsArray);
+      gameResult = Game.getByReleaseDate(page, filterMode, queryPartsArray);
+      // Keep the search when moving between pages of its results.
+      pagerSuffix = "?query=" + Escape.url(query);
     }
     else {
-      gameResult = Game.getByReleaseDate(page, filterMode);
+      gameResult = Game.getByReleaseDate(page, filterMode, cursorParam(req, "after"), cursorParam(req, "before"));
     }
 
     // If the user requested a page outside of the possible range, 404. Using
@@ -140,7 +144,72 @@ public class GameC extends Controller {
     model.put("games", gameResult);
     model.put("filter", filter);
     model.put("query", query);
+    model.put("pagerSuffix", pagerSuffix);
+    model.put("pagerBase", filter.equals("all") ? "/games" : "/games/" + filter);
 
     return model;
   }
+
+  /**
+   * Suggest games for what's been typed into the search box so far, as JSON.
+   *
+   * Takes the search as the `q` query parameter, and optionally `filter`
+   * ("all", "mac" or "cat", as in the listing URLs) and `limit`, the most
+   * games to suggest, which is 10 unless given and at most 50. Responds with
+   * an array of objects with `game_id`, `steam_id` and `title` properties,
+   * best matches first.
+   * @param req
+   * @param res
+   * @return
+   */
+  public String suggest(Request req, Response res) throws IOException {
+    String filter = req.queryParams("filter");
+    Game.GameFilterMode filterMode = toFilterMode(filter == null ? "all" : filter);
+    if (filterMode == null) {
+      fourOhFour();
+      return null;
+    }
+    int limit = 10;
+    String limitStr = req.queryParams("limit");
+    if (limitStr != null) {
+      try {
+        limit = Math.max(1, Math.min(Integer.parseInt(limitStr), 50));
+      }
+      catch (NumberFormatException e) {
+        fourOhFour();
+        return null;
+      }
+    }
+    String search = req.queryParams("q");
+
+    List<Map<String, Object>> suggestions = new ArrayList<>();
+    if (search != null) {
+      for (Game game : Game.suggest(search, filterMode, limit)) {
+        Map<String, Object> suggestion = new LinkedHashMap<>();
+        suggestion.put("game_id", game.getGameId());
+        suggestion.put("steam_id", game.getSteamId());
+        suggestion.put("title", game.getTitle());
+        suggestions.add(suggestion);
+      }
+    }
+    res.type("application/json");
+    return JSON.std.asString(suggestions);
+  }
+
+  /**
+   * @param filter A filter as it appears in URLs: "all", "mac" or "cat".
+   * @return The corresponding filter mode, or null if it isn't one.
+   */
+  private static Game.GameFilterMode toFilterMode(String filter) {
+    switch (filter) {
+      case "all":
+        return Game.GameFilterMode.ALL;
+      case "mac":
+        return Game.GameFilterMode.MAC;
+      case "cat":
+        return Game.GameFilterMode.CATALINA;
+      default:
+        return null;
+    }
+  }
 }
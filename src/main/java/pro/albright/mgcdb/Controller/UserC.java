@@ -7,7 +7,6 @@ import org.openid4java.discovery.Identifier;
 import org.openid4java.message.AuthRequest;
 import org.openid4java.message.ParameterList;
 import pro.albright.mgcdb.Model.Game;
-import pro.albright.mgcdb.Model.Ownership;
 import pro.albright.mgcdb.Model.User;
 import pro.albright.mgcdb.Model.Vote;
 import pro.albright.mgcdb.Util.*;
@@ -93,6 +92,10 @@ public class UserC extends Controller {
         res.redirect(url + "/user", HttpStatus.SC_TEMPORARY_REDIRECT);
       }
     }
+    catch (DBException e) {
+      // Not an OpenID problem; leave it to the daemon's exception handlers.
+      throw e;
+    }
     catch (Exception e) {
       e.printStackTrace();
       System.exit(StatusCodes.GENERAL_OPENID_ERROR);
@@ -137,8 +140,9 @@ public class UserC extends Controller {
     }
     Map<String, Object> model = new HashMap<>();
     User user = req.attribute("user");
-    PagedQueryResult<Game> games = user.getOwnedGames(page);
+    PagedQueryResult<Game> games = user.getOwnedGames(page, cursorParam(req, "after"), cursorParam(req, "before"));
     model.put("games", games);
+    model.put("pagerBase", "/user/games");
     model.put("voteSuccessful", req.queryParams("voteSuccessful") != null);
     return render(req, model, "userGames.vm");
   }
@@ -150,13 +154,7 @@ public class UserC extends Controller {
    */
   public String takeVote(Request req, Response res) {
     User user = (User) req.attribute("user");
-    // Confirm the user actually owns this game.
     int ownershipId = Integer.parseInt(req.params(":ownership"));
-    Ownership ownership = Ownership.getById(ownershipId);
-    if (ownership == null || ownership.getUserId() != user.getUserId()) {
-      halt(HttpStatus.SC_UNAUTHORIZED);
-      return null;
-    }
 
     String newVote = req.params(":vote");
     if (!newVote.equals("yes") && !newVote.equals("no") && !newVote.equals("delete")) {
@@ -165,22 +163,11 @@ public class UserC extends Controller {
       return null;
     }
 
-    // Are we creating a new vote or changing an existing one?
-    Vote vote = Vote.getByOwnershipId(ownership.getOwnershipId());
-    if (vote == null && !newVote.equals("delete")) {
-      // Create a new vote
-      vote = new Vote();
-      vote.setOwnershipId(ownership.getOwnershipId());
-    }
-
-    if (newVote.equals("delete")) {
-      if (vote != null) {
-        vote.delete();
-      }
-    }
-    else {
-      vote.setVote(newVote.equals("yes"));
-      vote.save();
+    Boolean vote = newVote.equals("delete") ? null : newVote.equals("yes");
+    if (!Vote.cast(user.getUserId(), ownershipId, vote)) {
+      // The user doesn't actually own this game.
+      halt(HttpStatus.SC_UNAUTHORIZED);
+      return null;
     }
 
     // Redirect the user back to the same page in their game list.
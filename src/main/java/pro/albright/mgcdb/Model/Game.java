@@ -2,16 +2,23 @@ package pro.albright.mgcdb.Model;
 
 import pro.albright.mgcdb.SteamAPIModel.GetAppDetailsApp;
 import pro.albright.mgcdb.SteamAPIModel.GetAppListApp;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.ColumnMapper;
+import pro.albright.mgcdb.Util.Columns;
 import pro.albright.mgcdb.Util.DBCxn;
+import pro.albright.mgcdb.Util.DBException;
 import pro.albright.mgcdb.Util.PagedQueryResult;
-import pro.albright.mgcdb.Util.StatusCodes;
+import pro.albright.mgcdb.Util.Query;
+import pro.albright.mgcdb.Util.SeekCursor;
 import pro.albright.mgcdb.Util.SteamCxn;
 
 import java.sql.*;
 import java.text.ParseException;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.Date;
 
 /**
  * Bean class to encapsulate a game.
@@ -23,6 +30,74 @@ public class Game extends Model implements java.io.Serializable {
    */
   public static final int perPage = 25;
 
+  /**
+   * The most matches of a search which are counted; see getByReleaseDate().
+   */
+  static final int searchCountLimit = perPage * 40;
+
+  /**
+   * The index of titles behind suggest(), once it has been built.
+   */
+  private static TitleIndex titleIndex;
+
+  /**
+   * Creates Games from rows of a query of the game table in the DB.
+   *
+   * If ownership info (for user-owned game lists) or vote counts were
+   * included in the query, they're set on the Game too.
+   */
+  public static final ColumnMapper<Game> rowMapper = new ColumnMapper<>() {
+    @Override
+    public DBCxn.RowMapper<Game> compile(Columns columns) {
+      int gameIdIdx = columns.indexOf("game_id");
+      int steamIdIdx = columns.indexOf("steam_id");
+      int titleIdx = columns.indexOf("title");
+      int macIdx = columns.indexOf("mac");
+      int sixtyFourIdx = columns.indexOf("sixtyfour");
+      int siliconIdx = columns.indexOf("silicon");
+      int createdIdx = columns.indexOf("created");
+      int updatedIdx = columns.indexOf("updated");
+      int steamUpdatedIdx = columns.indexOf("steam_updated");
+      int steamReleaseIdx = columns.indexOf("steam_release");
+      int ownershipIdIdx = columns.indexOf("ownership_id");
+      DBCxn.RowMapper<Ownership> ownershipMapper = ownershipIdIdx == 0 ? null : Ownership.rowMapper.compile(columns);
+      int voteCountIdx = columns.indexOf("vote_count");
+      int yesVoteCountIdx = columns.indexOf("yes_vote_count");
+
+      return rs -> {
+        Game game = new Game();
+        game.setGameId(rs.getInt(gameIdIdx));
+        game.setSteamId(rs.getInt(steamIdIdx));
+        game.setTitle(rs.getString(titleIdx));
+        game.setMac(GamePropStatus.fromValue(rs.getInt(macIdx)));
+        game.setSixtyFour(GamePropStatus.fromValue(rs.getInt(sixtyFourIdx)));
+        game.setSilicon(GamePropStatus.fromValue(rs.getInt(siliconIdx)));
+        game.setCreated(Instant.ofEpochSecond(rs.getLong(createdIdx)));
+        game.setUpdated(Instant.ofEpochSecond(rs.getLong(updatedIdx)));
+        long steamUpdated = rs.getLong(steamUpdatedIdx);
+        if (steamUpdated != 0) {
+          game.setSteamUpdated(Instant.ofEpochSecond(steamUpdated));
+        }
+        long steamRelease = rs.getLong(steamReleaseIdx);
+        // The release date can be NULL when the data from Steam did not have
+        // a release date (the field in the JSON was an empty string).
+        if (!rs.wasNull()) {
+          game.setSteamReleaseDate(LocalDate.ofEpochDay(steamRelease));
+        }
+        if (ownershipMapper != null && rs.getInt(ownershipIdIdx) != 0) {
+          game.setOwnership(ownershipMapper.map(rs));
+        }
+        if (voteCountIdx != 0) {
+          game.setVoteCount(rs.getInt(voteCountIdx));
+        }
+        if (yesVoteCountIdx != 0) {
+          game.setYesVoteCount(rs.getInt(yesVoteCountIdx));
+        }
+        return game;
+      };
+    }
+  };
+
   /**
    * An enum for storing a "three-state boolean" for states of some game status
    * fields - a "yes" value, a "no" value, and a value indicating that we're
@@ -36,18 +111,18 @@ public class Game extends Model implements java.io.Serializable {
     NO(1),
     YES(2);
 
-    private final int value;
+    final int value;
     GamePropStatus(int i) {
       this.value = i;
     }
 
-    private static GamePropStatus fromValue(int i) throws Exception {
+    static GamePropStatus fromValue(int i) {
       for (GamePropStatus status : GamePropStatus.values()) {
         if (status.value == i) {
           return status;
         }
       }
-      throw new Exception("Invalid GamePropStatus value.");
+      throw new IllegalArgumentException("Invalid GamePropStatus value.");
     }
   }
 
@@ -101,19 +176,19 @@ public class Game extends Model implements java.io.Serializable {
    *
    * Note that this is *not* the creation/release date of the game itself.
    */
-  private Date created;
+  private Instant created;
 
   /**
    * When the record for this game was last updated.
    */
-  private Date updated;
+  private Instant updated;
 
   /**
    * When the record was last updated from the Steam API. Note we don't count
    * the record's creation as an "update" from the API because we don't get
-   * full game details when first creating it.
+   * full game details when first creating it. Null if it never has been.
    */
-  private Date steamUpdated;
+  private Instant steamUpdated;
 
   /**
    * When the game was released on Steam.
@@ -188,27 +263,27 @@ public class Game extends Model implements java.io.Serializable {
     this.silicon = silicon;
   }
 
-  public Date getCreated() {
+  public Instant getCreated() {
     return created;
   }
 
-  public void setCreated(Date created) {
+  public void setCreated(Instant created) {
     this.created = created;
   }
 
-  public Date getUpdated() {
+  public Instant getUpdated() {
     return updated;
   }
 
-  public void setUpdated(Date updated) {
+  public void setUpdated(Instant updated) {
     this.updated = updated;
   }
 
-  public Date getSteamUpdated() {
+  public Instant getSteamUpdated() {
     return steamUpdated;
   }
 
-  public void setSteamUpdated(Date steamUpdated) {
+  public void setSteamUpdated(Instant steamUpdated) {
     this.steamUpdated = steamUpdated;
   }
 
@@ -268,7 +343,7 @@ public class Game extends Model implements java.io.Serializable {
    * there are no games in the DB currently.
    */
   public static int getNewestGameSteamId() {
-    return dbCxn.getSingleIntResult("SELECT MAX(steam_id) AS max FROM games", null);
+    return dbCxn.query("SELECT MAX(steam_id) AS max FROM games").singleInt();
   }
 
   /**
@@ -280,12 +355,40 @@ public class Game extends Model implements java.io.Serializable {
   public static Game[] getAndSaveNewGamesFromSteam(int limit) {
     int lastAppId = Game.getNewestGameSteamId();
     Game[] games = steamCxn.getNewGames(lastAppId, limit);
-    for (Game game : games) {
-      game.save();
-    }
+    insertAll(games);
     return games;
  }
 
+  /**
+   * Save many new games in the DB in a single transaction.
+   *
+   * This is much faster than calling save() on each one when there are a lot
+   * of them, such as when first importing the Steam catalog.
+   *
+   * @param games The games. They must not have been saved before; their game
+   *              IDs will be set once they have been.
+   */
+  public static void insertAll(Game[] games) {
+    Batch batch = dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)");
+    for (Game game : games) {
+      batch.add()
+        .bindInt(game.getSteamId())
+        .bindString(game.getTitle());
+    }
+    int[] gameIds = batch.insert();
+    for (int idx = 0; idx < gameIds.length; idx++) {
+      games[idx].setGameId(gameIds[idx]);
+    }
+    TitleIndex index = builtTitleIndex();
+    if (index != null) {
+      dbCxn.afterCommit(() -> {
+        for (Game game : games) {
+          index.put(game);
+        }
+      });
+    }
+  }
+
   /**
    * Check if we have a game in the DB by the Steam ID.
    *
@@ -294,9 +397,7 @@ public class Game extends Model implements java.io.Serializable {
    */
   public static boolean existsBySteamId(int steamId) {
     String query = "SELECT COUNT(*) AS count FROM games WHERE steam_id = ?";
-    Map<Integer, Object> parameters = new HashMap<>();
-    parameters.put(1, steamId);
-    return dbCxn.getSingleIntResult(query, parameters) > 0;
+    return dbCxn.query(query).bindInt(steamId).singleInt() > 0;
   }
 
   /**
@@ -314,35 +415,87 @@ public class Game extends Model implements java.io.Serializable {
    *                        result of an update from the Steam API.
    */
   public void save(boolean withSteamUpdate) {
-    String query;
-    Map<Integer, Object> parameters = new HashMap<>();
-
     if (gameId == 0) {
-      query = "INSERT INTO games (steam_id, title) VALUES (?, ?)";
+      gameId = dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)")
+        .bindInt(steamId)
+        .bindString(title)
+        .insert();
+      updateTitleIndex();
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder("UPDATE games SET steam_id = ?, title = ?, mac = ?, sixtyfour = ?, silicon = ?, steam_release = ?, updated = ?");
+    if (withSteamUpdate) {
+      sb.append(", steam_updated = ?");
+    }
+    sb.append(" WHERE game_id = ?");
+    long now = Instant.now().getEpochSecond();
+    Query query = dbCxn.query(sb.toString())
+      .bindInt(steamId)
+      .bindString(title)
+      .bindInt(mac.value)
+      .bindInt(sixtyFour.value)
+      .bindInt(silicon.value);
+    if (steamReleaseDate == null) {
+      query.bindNull();
     }
     else {
-      StringBuilder sb = new StringBuilder("UPDATE games SET steam_id = ?, title = ?, mac = ?, sixtyfour = ?, silicon = ?, steam_release = ?");
-      if (withSteamUpdate) {
-        sb.append(", steam_updated = CURRENT_TIMESTAMP");
-      }
-      sb.append(" WHERE game_id = ?");
-      query = sb.toString();
-      parameters.put(3, mac.value);
-      parameters.put(4, sixtyFour.value);
-      parameters.put(5, silicon.value);
-      parameters.put(6, steamReleaseDate == null ? null : steamReleaseDate.toString());
-      parameters.put(7, gameId);
+      query.bindLong(steamReleaseDate.toEpochDay());
     }
+    query.bindLong(now);
+    if (withSteamUpdate) {
+      query.bindLong(now);
+    }
+    query.bindInt(gameId).update();
+    updateTitleIndex();
+  }
 
-    parameters.put(1, steamId);
-    parameters.put(2, title);
-
-    if (gameId == 0) {
-      gameId = dbCxn.doInsertQuery(query, parameters);
+  /**
+   * Add this game to the title index, or update it there, if the index has
+   * been built, once the change to it is committed.
+   */
+  private void updateTitleIndex() {
+    TitleIndex index = builtTitleIndex();
+    if (index != null) {
+      dbCxn.afterCommit(() -> index.put(this));
     }
-    else {
-      dbCxn.doUpdateQuery(query, parameters);
+  }
+
+  /**
+   * @return The title index if it has been built for the current database,
+   * or null.
+   */
+  private static synchronized TitleIndex builtTitleIndex() {
+    return titleIndex != null && titleIndex.isFor(dbCxn) ? titleIndex : null;
+  }
+
+  /**
+   * Get the index of game titles used for search suggestions, building it
+   * from the games table first if need be. The web daemon calls this at
+   * startup so that the first visitor doesn't have to wait for it.
+   *
+   * @return The index.
+   */
+  public static synchronized TitleIndex getTitleIndex() {
+    if (titleIndex == null || !titleIndex.isFor(dbCxn)) {
+      titleIndex = new TitleIndex(dbCxn).build();
     }
+    return titleIndex;
+  }
+
+  /**
+   * Suggest games whose titles contain what's been typed into the search box
+   * so far, best matches first; see TitleIndex.suggest().
+   *
+   * @param search What's been typed. Nothing is suggested for less than two
+   *               letters or digits.
+   * @param filter How to filter the games, as with the listings.
+   * @param limit The most games to suggest.
+   * @return The games, with their IDs, Steam IDs, titles, statuses and
+   * release dates set.
+   */
+  public static Game[] suggest(String search, GameFilterMode filter, int limit) {
+    return getTitleIndex().suggest(search, filter, limit);
   }
 
   /**
@@ -393,13 +546,11 @@ public class Game extends Model implements java.io.Serializable {
    * @return An array of Games.
    */
   public static Game[] getGamesToUpdateFromSteam(int limit) {
-    String query = "SELECT * FROM games WHERE steam_updated < datetime('now', '-1 day') ORDER BY steam_updated ASC LIMIT ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, limit);
-
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-
-    return createFromResultSet(rs);
+    String query = "SELECT * FROM games WHERE steam_updated < ? ORDER BY steam_updated ASC LIMIT ?";
+    return dbCxn.query(query)
+      .bindLong(Instant.now().minus(1, ChronoUnit.DAYS).getEpochSecond())
+      .bindInt(limit)
+      .toArray(rowMapper, Game[]::new);
   }
 
   public static Game[] updateGamesFromSteam(int limit) {
@@ -410,66 +561,6 @@ public class Game extends Model implements java.io.Serializable {
     return gamesToUpdate;
   }
 
-  /**
-   * Create a game from a ResultSet from a query of the game table in the DB.
-   *
-   * @param rs A ResultSet.
-   * @return A Game.
-   */
-  public static Game[] createFromResultSet(ResultSet rs) {
-    ArrayList<Game> games = new ArrayList<>();
-    try {
-      while (rs.next()) {
-        Game game = new Game();
-        game.setGameId(rs.getInt("game_id"));
-        game.setSteamId(rs.getInt("steam_id"));
-        game.setTitle(rs.getString("title"));
-        game.setMac(GamePropStatus.fromValue(rs.getInt("mac")));
-        game.setSixtyFour(GamePropStatus.fromValue(rs.getInt("sixtyfour")));
-        game.setSilicon(GamePropStatus.fromValue(rs.getInt("silicon")));
-        game.setCreated(dbCxn.parseTimestamp(rs.getString("created")));
-        game.setUpdated(dbCxn.parseTimestamp(rs.getString("updated")));
-        game.setSteamUpdated(dbCxn.parseTimestamp(rs.getString("steam_updated")));
-        String steamRelease = rs.getString("steam_release");
-        if (!steamRelease.isEmpty()) {
-          // The release date can be empty when the data from Steam did not have
-          // a release date (the field in the JSON was an empty string).
-          game.setSteamReleaseDate(LocalDate.parse(steamRelease));
-        }
-
-        // If ownership info was included in the result set, create that info.
-        // Using exceptions for this is gross but other approaches are even
-        // grosser.
-        // https://stackoverflow.com/q/3599861/11023
-        try {
-          int ownershipId = rs.getInt("ownership_id");
-          if (ownershipId != 0) {
-            game.setOwnership(Ownership.createFromResultSet(rs));
-          }
-        }
-        catch (SQLException e) {
-          // Oh well
-        }
-
-        // Same as above with vote counts
-        try {
-          game.setVoteCount(rs.getInt("vote_count"));
-          game.setYesVoteCount(rs.getInt("yes_vote_count"));
-        }
-        catch (SQLException e) {
-          // Oh well
-        }
-
-        games.add(game);
-      }
-    }
-    catch (Exception e) {
-      e.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-    return games.toArray(new Game[0]);
-  }
-
   /**
    * Get our own gameId values for a given array of steamId values.
    *
@@ -481,37 +572,17 @@ public class Game extends Model implements java.io.Serializable {
     // query (I guess only Postgres's does?) so we build a string with a bunch
     // of question marks we bind into later.
     int steamIdsLength = steamIds.length;
+    if (steamIdsLength == 0) {
+      return new int[0];
+    }
     // https://stackoverflow.com/a/49065337/11023
     String questionMarks = "?, ".repeat(steamIdsLength).substring(0, (steamIdsLength * 3) - 2);
     String query = "SELECT game_id FROM games WHERE steam_id IN (" + questionMarks +")";
-    Map<Integer, Object> params = new HashMap<>();
-    int paramIdx = 1;
+    Query idQuery = dbCxn.query(query);
     for (int steamId : steamIds) {
-      params.put(paramIdx++, steamId);
+      idQuery.bindInt(steamId);
     }
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-
-    // Note that the SQLite driver doesn't let us do the cursor back and forth
-    // by which we can get the count of rows in a ResultSet ("SQLite only
-    // supports TYPE_FORWARD_ONLY cursors"). So… sigh… we'll use a List and
-    // convert it later.
-    ArrayList<Integer> gameIds = new ArrayList<>();
-    try {
-      while (rs.next()) {
-        gameIds.add(rs.getInt("game_id"));
-      }
-    }
-    catch (Exception e) {
-      e.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-
-    // Java collections are just so much fun you know.
-    int[] returnVals = new int[gameIds.size()];
-    for (int idx = 0; idx < returnVals.length; idx++) {
-      returnVals[idx] = gameIds.get(idx);
-    }
-    return returnVals;
+    return idQuery.intColumn();
   }
 
   /**
@@ -521,11 +592,7 @@ public class Game extends Model implements java.io.Serializable {
    */
   public static Game getById(int gameId) {
     String query = "SELECT * FROM games WHERE game_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, gameId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-    Game[] games =  Game.createFromResultSet(rs);
-    return games.length > 0 ? games[0] : null;
+    return dbCxn.query(query).bindInt(gameId).first(rowMapper);
   }
 
   /**
@@ -535,83 +602,313 @@ public class Game extends Model implements java.io.Serializable {
    * @return A PagedQueryResult<Game> with the results.
    */
   public static PagedQueryResult<Game> getByReleaseDate(int page, GameFilterMode filter) {
-    return getByReleaseDate(page, filter, null);
+    return getByReleaseDate(page, filter, null, null);
+  }
+
+  /**
+   * Get games by release date, newest first, seeking to the page rather than
+   * counting through the games before it; see SeekCursor.
+   *
+   * A page reached from the one before or after it can be found from the
+   * cursor that one gave for it, which is quickest. Otherwise, the last game
+   * of the page before it is found by counting through the index the listing
+   * is read from, which has everything needed to do so, and the page is read
+   * from there.
+   *
+   * @param page The current page of results to fetch (zero-based), which is
+   *             only used to find it if there's no cursor.
+   * @param filter How to filter the list.
+   * @param after The next cursor of the page before, or null.
+   * @param before The previous cursor of the page after, or null.
+   * @return A PagedQueryResult<Game> with the results, with cursors for the
+   * pages either side.
+   */
+  public static PagedQueryResult<Game> getByReleaseDate(int page, GameFilterMode filter, SeekCursor after, SeekCursor before) {
+    // Release dates are in days since the epoch.
+    long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    int statusValue = filterStatusValue(filter);
+    String where = "WHERE g.steam_release <= ?" + filterWhere(filter);
+    // listing_counts has every game with a release date, so take off those
+    // which haven't been released yet, which are few enough to count. That's
+    // cheap enough not to be worth caching.
+    int count = dbCxn.query("SELECT games - " +
+      "(SELECT COUNT(*) FROM games g WHERE g.steam_release > ?" + filterWhere(filter) + ") " +
+      "FROM listing_counts WHERE filter = ?")
+      .bindLong(today)
+      .bindInt(statusValue)
+      .bindString(filter.name())
+      .singleInt();
+
+    boolean byNumber = after == null && before == null;
+    if (byNumber && page > 0) {
+      after = dbCxn.query("SELECT g.steam_release, g.game_id FROM games g " + where +
+        " ORDER BY g.steam_release DESC, g.game_id DESC LIMIT 1 OFFSET ?")
+        .bindLong(today)
+        .bindInt(statusValue)
+        .bindInt(page * perPage - 1)
+        .cached()
+        .first(rs -> new SeekCursor(rs.getLong(1), rs.getInt(2)));
+      if (after == null) {
+        // Past the end.
+        return new PagedQueryResult<Game>(new Game[0], count, perPage, page);
+      }
+    }
+
+    // The vote counts are kept on the games themselves.
+    StringBuilder sql = new StringBuilder("SELECT g.* FROM games g ").append(where);
+    Query selectQuery = seekQuery(sql, after, before)
+      .bindLong(today)
+      .bindInt(statusValue);
+    // Pages found by their number are the ones worth keeping; those found by
+    // cursors are too varied.
+    if (byNumber) {
+      selectQuery.cached();
+    }
+    return seekPage(selectQuery, after, before, count, page);
   }
 
-    /**
-     * Get games by release date.
-     *
-     * @param page The current page of results to fetch (zero-based)
-     * @param filter How to filter the list.
-     * @param queryParts An array of game name query parts.
-     * @return A PagedQueryResult<Game> with the results.
-     */
+  /**
+   * Get games by release date, or those whose titles match a search.
+   *
+   * A search is made of up to five parts, all of which a title must match.
+   * A part in double quotes, such as `"half life"`, matches those words in
+   * that order; any other matches the start of a word, so `port` matches
+   * "Portal". Case and accents don't matter. The results of a search are in
+   * order of how well they match, best first, and then by release date.
+   * Only the first searchCountLimit matches can be paged through, and if
+   * there are more, the result says its count was capped.
+   *
+   * @param page The current page of results to fetch (zero-based)
+   * @param filter How to filter the list.
+   * @param queryParts An array of search query parts, or null for no search.
+   * @return A PagedQueryResult<Game> with the results.
+   */
   public static PagedQueryResult<Game> getByReleaseDate(int page, GameFilterMode filter, String[] queryParts) {
+    if (queryParts == null || queryParts.length == 0) {
+      return getByReleaseDate(page, filter);
+    }
+    String match = toMatchExpression(queryParts);
+    if (match.isEmpty()) {
+      // Nothing in the search could match a word.
+      return new PagedQueryResult<Game>(new Game[0], 0, perPage, page);
+    }
+
+    // Searches are paged with OFFSET, as they're in order of how well they
+    // match, which there's no index of to seek through; they rarely go past
+    // the first few pages anyway.
     int offset = perPage * page;
-    Map<Integer, Object> params = new HashMap<>();
-    StringBuilder where = new StringBuilder("");
-    int paramsIdx = 1;
+    String fromWhere = "FROM games_fts INNER JOIN games g ON g.game_id = games_fts.rowid " +
+      "WHERE g.steam_release <= ? AND games_fts MATCH ? " + filterWhere(filter);
+    long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    int statusValue = filterStatusValue(filter);
+    // Counting every match of a search which matches a lot, such as a common
+    // word, takes about as long as the search itself, so stop counting once
+    // there are more than anyone will page through.
+    int count = dbCxn.query("SELECT COUNT(*) FROM (SELECT 1 " + fromWhere + "LIMIT ?)")
+      .bindLong(today)
+      .bindString(match)
+      .bindInt(statusValue)
+      .bindInt(searchCountLimit + 1)
+      .singleInt();
+    Game[] games = dbCxn.query("SELECT g.* " + fromWhere + "ORDER BY bm25(games_fts), g.steam_release DESC LIMIT ? OFFSET ?")
+      .bindLong(today)
+      .bindString(match)
+      .bindInt(statusValue)
+      .bindInt(perPage)
+      .bindInt(offset)
+      .toArray(rowMapper, Game[]::new);
+
+    PagedQueryResult<Game> result = new PagedQueryResult<Game>(games, Math.min(count, searchCountLimit), perPage, page);
+    result.setCountCapped(count > searchCountLimit);
+    return result;
+  }
 
+  /**
+   * @param filter How to filter a listing.
+   * @return The condition on the games table (as g) for the filter, with a
+   * parameter for the value from filterStatusValue().
+   */
+  private static String filterWhere(GameFilterMode filter) {
     if (filter == GameFilterMode.MAC) {
       // Only Mac games
-      where.append(" AND g.mac = ? ");
-      params.put(paramsIdx++, GamePropStatus.YES.value);
+      return " AND g.mac = ? ";
     }
-    else if (filter == GameFilterMode.CATALINA) {
+    if (filter == GameFilterMode.CATALINA) {
       // Only Catalina/64-bit games
-      where.append(" AND g.sixtyfour = ? ");
-      params.put(paramsIdx++, GamePropStatus.YES.value);
+      return " AND g.sixtyfour = ? ";
     }
-    else {
-      // All games
-      where.append(" AND g.mac <> ? ");
-      params.put(paramsIdx++, GamePropStatus.UNCHECKED.value);
+    // All games
+    return " AND g.mac <> ? ";
+  }
+
+  /**
+   * @param filter How to filter a listing.
+   * @return The status value to bind to the condition from filterWhere().
+   */
+  private static int filterStatusValue(GameFilterMode filter) {
+    return filter == GameFilterMode.ALL ? GamePropStatus.UNCHECKED.value : GamePropStatus.YES.value;
+  }
+
+  /**
+   * Finish the SQL of a query for a page of a listing in release date order,
+   * seeking past a cursor if there is one, and start the query.
+   *
+   * @param sql The query so far, up to the end of its WHERE clause.
+   * @param after The cursor the page comes after, or null.
+   * @param before The cursor the page comes before, or null.
+   * @return The query, to which the parameters of the SQL so far should be
+   * bound before handing it to seekPage().
+   */
+  private static Query seekQuery(StringBuilder sql, SeekCursor after, SeekCursor before) {
+    if (after != null) {
+      sql.append(" AND (g.steam_release, g.game_id) < (?, ?)");
+    }
+    else if (before != null) {
+      sql.append(" AND (g.steam_release, g.game_id) > (?, ?)");
     }
+    // To get the page before a cursor, read backwards from it.
+    String direction = before != null && after == null ? "" : " DESC";
+    sql.append(" ORDER BY g.steam_release").append(direction).append(", g.game_id").append(direction)
+      .append(" LIMIT ?");
+    return dbCxn.query(sql.toString());
+  }
 
-    if (queryParts != null && queryParts.length > 0) {
-      int partsCount = Math.min(queryParts.length, 5);
-      for (int pIdx = 0; pIdx < partsCount; pIdx++) {
-        where.append(" AND g.title LIKE ? ");
-        params.put(paramsIdx++, "%" + queryParts[pIdx] + "%");
-      }
+  /**
+   * Bind the rest of the parameters of a query from seekQuery(), run it, and
+   * put its results in a page.
+   *
+   * @param query The query, with the parameters of its WHERE clause bound.
+   * @param after The cursor the page comes after, or null.
+   * @param before The cursor the page comes before, or null.
+   * @param count The number of games in the listing.
+   * @param page The page's number (zero-based).
+   * @return The page.
+   */
+  private static PagedQueryResult<Game> seekPage(Query query, SeekCursor after, SeekCursor before, int count, int page) {
+    SeekCursor cursor = after != null ? after : before;
+    if (cursor != null) {
+      query.bindLong(cursor.getRelease()).bindInt(cursor.getGameId());
     }
+    Game[] games = query.bindInt(perPage).toArray(rowMapper, Game[]::new);
+    if (after == null && before != null) {
+      Collections.reverse(Arrays.asList(games));
+    }
+    return seekResult(games, count, page);
+  }
 
-    String countQuery = "SELECT COUNT(*) FROM games g WHERE g.steam_release <= CURRENT_TIMESTAMP" + where;
-    int count = dbCxn.getSingleIntResult(countQuery, params);
+  /**
+   * Put a page of a listing in release date order in a PagedQueryResult,
+   * with cursors for the pages either side.
+   *
+   * @param games The games on the page, in order.
+   * @param count The number of games in the listing.
+   * @param page The page's number (zero-based).
+   * @return The page.
+   */
+  static PagedQueryResult<Game> seekResult(Game[] games, int count, int page) {
+    PagedQueryResult<Game> result = new PagedQueryResult<Game>(games, count, perPage, page);
+    if (games.length > 0) {
+      if (page > 0) {
+        result.setPrevCursor(games[0].getSeekCursor());
+      }
+      if (page + 1 < result.getTotalPages()) {
+        result.setNextCursor(games[games.length - 1].getSeekCursor());
+      }
+    }
+    return result;
+  }
 
-    String selectQuery = "SELECT g.*, COUNT(v.vote_id) AS vote_count, SUM(v.vote) AS yes_vote_count " +
-      "FROM games g LEFT JOIN ownership o USING (game_id) " +
-      "LEFT JOIN votes v USING (ownership_id) " +
-      "WHERE g.steam_release <= CURRENT_TIMESTAMP" + where +
-      "GROUP BY 1 ORDER BY g.steam_release DESC LIMIT ? OFFSET ?";
-    params.put(paramsIdx++, perPage);
-    params.put(paramsIdx++, offset);
-    ResultSet rs = dbCxn.doSelectQuery(selectQuery, params);
-    Game[] games = createFromResultSet(rs);
+  /**
+   * @return Where this game is in a listing in release date order.
+   */
+  SeekCursor getSeekCursor() {
+    return new SeekCursor(steamReleaseDate == null ? SeekCursor.noRelease : steamReleaseDate.toEpochDay(), gameId);
+  }
 
-    return new PagedQueryResult<Game>(games, count, perPage, page);
+  /**
+   * Turn the parts of a search into an FTS5 query of the games_fts table.
+   *
+   * Each part becomes an FTS5 phrase, so that nothing typed into the search
+   * box is taken as FTS5 syntax. A part which was in double quotes is matched
+   * as it is; any other as a prefix.
+   *
+   * @param queryParts The parts of the search, quoted ones with their quotes.
+   * @return The FTS5 query, or an empty string if no part has anything in it
+   * which could match a word.
+   */
+  static String toMatchExpression(String[] queryParts) {
+    StringJoiner match = new StringJoiner(" ");
+    int partsCount = Math.min(queryParts.length, 5);
+    for (int pIdx = 0; pIdx < partsCount; pIdx++) {
+      String part = queryParts[pIdx];
+      boolean quoted = part.length() > 1 && part.startsWith("\"") && part.endsWith("\"");
+      if (quoted) {
+        part = part.substring(1, part.length() - 1);
+      }
+      // The tokenizer would throw away anything else, leaving an empty
+      // phrase, which FTS5 matches with nothing.
+      if (!part.codePoints().anyMatch(Character::isLetterOrDigit)) {
+        continue;
+      }
+      match.add("\"" + part.replace("\"", "\"\"") + "\"" + (quoted ? "" : "*"));
+    }
+    return match.toString();
   }
 
+  /**
+   * Load this game's vote counts, which may have changed since it was.
+   */
   public void updateVoteCounts() {
-    String query = "SELECT COUNT(v.vote_id) AS vote_count, SUM(v.vote) AS yes_vote_count " +
-      "FROM ownership o " +
-      "INNER JOIN votes v USING (ownership_id) " +
-      "WHERE o.game_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, gameId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-    try {
+    String query = "SELECT vote_count, yes_vote_count FROM games WHERE game_id = ?";
+    try (ResultSet rs = dbCxn.query(query).bindInt(gameId).select()) {
       if (rs.next()) {
         voteCount = rs.getInt("vote_count");
         yesVoteCount = rs.getInt("yes_vote_count");
       }
     }
-    catch (Exception e) {
-      e.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    catch (SQLException e) {
+      throw new DBException("Reading the votes for game " + gameId + " failed", e);
     }
   }
 
+  /**
+   * Recount the votes on every game.
+   *
+   * The counts are kept up to date as votes are cast, so this should only
+   * be needed if they've somehow got out of step with the votes. It counts
+   * them all at once, and then only writes to the games whose counts are
+   * wrong.
+   *
+   * @return The number of games whose counts were corrected.
+   */
+  public static int rebuildVoteStats() {
+    return dbCxn.inTransaction(cxn -> {
+      Map<Integer, int[]> counted = new HashMap<>();
+      dbCxn.query("SELECT o.game_id, COUNT(*), SUM(v.vote) FROM votes v " +
+        "INNER JOIN ownership o USING (ownership_id) GROUP BY o.game_id")
+        .forEachRow(rs -> counted.put(rs.getInt(1), new int[] {rs.getInt(2), rs.getInt(3)}));
+
+      Batch fixes = dbCxn.batch("UPDATE games SET vote_count = ?, yes_vote_count = ? WHERE game_id = ?");
+      // Games which have counts, and so may have the wrong ones...
+      dbCxn.query("SELECT game_id, vote_count, yes_vote_count FROM games WHERE vote_count <> 0 OR yes_vote_count <> 0")
+        .forEachRow(rs -> {
+          int[] counts = counted.remove(rs.getInt(1));
+          if (counts == null) {
+            counts = new int[] {0, 0};
+          }
+          if (counts[0] != rs.getInt(2) || counts[1] != rs.getInt(3)) {
+            fixes.add().bindInt(counts[0]).bindInt(counts[1]).bindInt(rs.getInt(1));
+          }
+        });
+      // ...and games which have votes but no counts.
+      for (Map.Entry<Integer, int[]> entry : counted.entrySet()) {
+        fixes.add().bindInt(entry.getValue()[0]).bindInt(entry.getValue()[1]).bindInt(entry.getKey());
+      }
+      fixes.update();
+      return fixes.size();
+    });
+  }
+
   /**
    * Return the yes vote count for this game as a percentage of total votes.
    *
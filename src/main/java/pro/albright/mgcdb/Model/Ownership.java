@@ -1,13 +1,11 @@
 package pro.albright.mgcdb.Model;
 
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.ColumnMapper;
+import pro.albright.mgcdb.Util.Columns;
 import pro.albright.mgcdb.Util.DBCxn;
-import pro.albright.mgcdb.Util.StatusCodes;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
 
 /**
  * Class to represent an Ownership - an instance of a User owning a Game.
@@ -19,6 +17,30 @@ import java.util.Map;
  */
 public class Ownership extends Model implements java.io.Serializable {
 
+  /**
+   * Creates Ownerships from rows of a query of the ownership table. If vote
+   * info was included in the query, the Ownership's Vote is set too.
+   */
+  public static final ColumnMapper<Ownership> rowMapper = new ColumnMapper<>() {
+    @Override
+    public DBCxn.RowMapper<Ownership> compile(Columns columns) {
+      int ownershipIdIdx = columns.indexOf("ownership_id");
+      int userIdIdx = columns.indexOf("user_id");
+      int gameIdIdx = columns.indexOf("game_id");
+      int voteIdIdx = columns.indexOf("vote_id");
+      DBCxn.RowMapper<Vote> voteMapper = voteIdIdx == 0 ? null : Vote.rowMapper.compile(columns);
+
+      return rs -> {
+        Ownership ownership = new Ownership(rs.getInt(userIdIdx), rs.getInt(gameIdIdx));
+        ownership.setOwnershipId(rs.getInt(ownershipIdIdx));
+        if (voteMapper != null && rs.getInt(voteIdIdx) != 0) {
+          ownership.setVote(voteMapper.map(rs));
+        }
+        return ownership;
+      };
+    }
+  };
+
   /**
    * Our ID for this Ownership.
    */
@@ -84,48 +106,7 @@ public class Ownership extends Model implements java.io.Serializable {
    */
   public static Ownership getById(int ownershipId) {
     String query = "SELECT * FROM ownership WHERE ownership_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, ownershipId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-    try {
-      if (rs.next()) {
-        return Ownership.createFromResultSet(rs);
-      }
-    }
-    catch (SQLException e) {
-      return null;
-    }
-    return null;
-  }
-
-  /**
-   * Create an Ownership instance from a resultset.
-   * @param rs
-   * @return
-   */
-  public static Ownership createFromResultSet(ResultSet rs) {
-    Ownership ownership = null;
-    try {
-      ownership = new Ownership(rs.getInt("user_id"), rs.getInt("game_id"));
-      ownership.setOwnershipId(rs.getInt("ownership_id"));
-
-      // Again, gross exception handling to see if vote info is in the result
-      // set and add it if so
-      // https://stackoverflow.com/q/3599861/11023
-      try {
-        int voteId = rs.getInt("vote_id");
-        if (voteId != 0) {
-          ownership.setVote(Vote.createFromResultSet(rs));
-        }
-      }
-      catch (SQLException e) {
-        // Oh well
-      }
-    }
-    catch (Exception e) {
-      return null;
-    }
-    return ownership;
+    return dbCxn.query(query).bindInt(ownershipId).first(rowMapper);
   }
 
   /**
@@ -139,27 +120,7 @@ public class Ownership extends Model implements java.io.Serializable {
    */
   static public int[] getOwnedGamesInDb(int userId) {
     String query = "SELECT game_id FROM ownership WHERE user_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-
-    ArrayList<Integer> gameIds = new ArrayList<>();
-    try {
-      while (rs.next()) {
-        gameIds.add(rs.getInt("game_id"));
-      }
-    }
-    catch (Exception e) {
-      e.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-
-    // Java collections are just so much fun you know.
-    int[] returnVals = new int[gameIds.size()];
-    for (int idx = 0; idx < returnVals.length; idx++) {
-      returnVals[idx] = gameIds.get(idx);
-    }
-    return returnVals;
+    return dbCxn.query(query).bindInt(userId).intColumn();
   }
 
   /**
@@ -171,19 +132,7 @@ public class Ownership extends Model implements java.io.Serializable {
    */
   static public Ownership get(int userId, int gameId) {
     String query = "SELECT * FROM ownership WHERE user_id = ? AND game_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    params.put(2, gameId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-    try {
-      if (rs.next()) {
-        return Ownership.createFromResultSet(rs);
-      }
-    }
-    catch (Exception e) {
-      return null;
-    }
-    return null;
+    return dbCxn.query(query).bindInt(userId).bindInt(gameId).first(rowMapper);
   }
 
   /**
@@ -194,10 +143,35 @@ public class Ownership extends Model implements java.io.Serializable {
    */
   static public void delete(int userId, int gameId) {
     String query = "DELETE FROM ownership WHERE user_id = ? AND game_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    params.put(2, gameId);
-    dbCxn.doUpdateQuery(query, params);
+    dbCxn.query(query).bindInt(userId).bindInt(gameId).update();
+  }
+
+  /**
+   * Delete many Ownerships for a user in a single transaction.
+   *
+   * @param userId
+   * @param gameIds The IDs of the games the user no longer owns.
+   */
+  static public void deleteAll(int userId, Collection<Integer> gameIds) {
+    Batch batch = dbCxn.batch("DELETE FROM ownership WHERE user_id = ? AND game_id = ?");
+    for (int gameId : gameIds) {
+      batch.add().bindInt(userId).bindInt(gameId);
+    }
+    batch.update();
+  }
+
+  /**
+   * Save many new Ownerships for a user in a single transaction.
+   *
+   * @param userId
+   * @param gameIds The IDs of the games the user now owns.
+   */
+  static public void insertAll(int userId, Collection<Integer> gameIds) {
+    Batch batch = dbCxn.batch("INSERT INTO ownership (user_id, game_id) VALUES (?, ?)");
+    for (int gameId : gameIds) {
+      batch.add().bindInt(userId).bindInt(gameId);
+    }
+    batch.update();
   }
 
   /**
@@ -210,9 +184,6 @@ public class Ownership extends Model implements java.io.Serializable {
    */
   public void save() {
     String query = "INSERT INTO ownership (user_id, game_id) VALUES (?, ?)";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    params.put(2, gameId);
-    ownershipId = dbCxn.doInsertQuery(query, params);
+    ownershipId = dbCxn.query(query).bindInt(userId).bindInt(gameId).insert();
   }
 }
@@ -0,0 +1,453 @@
+package pro.albright.mgcdb.Model;
+
+import pro.albright.mgcdb.Util.DBCxn;
+import pro.albright.mgcdb.Util.Metrics;
+
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of game titles for search-as-you-type suggestions,
+ * which have to come back far faster than a query of the database could.
+ *
+ * Titles are broken into trigrams (every run of three characters, once
+ * they've been lowercased, stripped of accents and had punctuation turned
+ * into spaces), and for each trigram the IDs of the games whose titles
+ * contain it are kept in a sorted int array. Finding the titles which
+ * contain a search is then a matter of intersecting the arrays for the
+ * search's trigrams and checking the few games left over.
+ *
+ * The index is built from the games table when it's first used, which the
+ * web daemon does at startup. Games saved through Game.save() or
+ * Game.insertAll() are added to it once they're committed, so not at all if
+ * they're rolled back; changes made by other processes, such as tasks run
+ * from cron, are picked up by checking for recently updated games whenever
+ * the database has changed, at most once every refreshIntervalMillis.
+ */
+public class TitleIndex {
+
+  /**
+   * A sorted list of game IDs, with room to grow.
+   */
+  private static class Postings {
+    private int[] ids = new int[4];
+    private int size = 0;
+
+    private void add(int id) {
+      // Games are mostly added in ID order, so check the end first.
+      int idx = size == 0 || ids[size - 1] < id ? -(size + 1) : Arrays.binarySearch(ids, 0, size, id);
+      if (idx >= 0) {
+        return;
+      }
+      idx = -(idx + 1);
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      System.arraycopy(ids, idx, ids, idx + 1, size - idx);
+      ids[idx] = id;
+      size++;
+    }
+
+    private void remove(int id) {
+      int idx = Arrays.binarySearch(ids, 0, size, id);
+      if (idx >= 0) {
+        System.arraycopy(ids, idx + 1, ids, idx, size - idx - 1);
+        size--;
+      }
+    }
+  }
+
+  private static final Pattern nonWordPattern = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Pattern marksPattern = Pattern.compile("\\p{M}+");
+  /**
+   * Stands in for a NULL release date, so the game is never listed, as with
+   * the listings.
+   */
+  private static final int noRelease = Integer.MAX_VALUE;
+  private static final long refreshIntervalMillis = 1000;
+  /**
+   * How far before the newest updated time seen to look for updated games,
+   * in seconds, in case a game was updated by a transaction which took a
+   * while to commit.
+   */
+  private static final long refreshOverlapSeconds = 60;
+
+  private final DBCxn dbCxn;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<Long, Postings> postings = new HashMap<>();
+  // Indexed by game ID.
+  private String[] titles = new String[1024];
+  private String[] normalized = new String[1024];
+  private int[] steamIds = new int[1024];
+  private byte[] mac = new byte[1024];
+  private byte[] sixtyFour = new byte[1024];
+  private int[] releases = new int[1024];
+  private int gameCount = 0;
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile long lastRefresh;
+  private long lastDataVersion;
+  private long newestUpdated = 0;
+
+  /**
+   * @param dbCxn The database the games are in.
+   */
+  TitleIndex(DBCxn dbCxn) {
+    this.dbCxn = dbCxn;
+  }
+
+  /**
+   * @param dbCxn A database.
+   * @return Whether this is an index of the games in it.
+   */
+  boolean isFor(DBCxn dbCxn) {
+    return this.dbCxn == dbCxn;
+  }
+
+  /**
+   * Index every game in the database.
+   *
+   * @return This index.
+   */
+  TitleIndex build() {
+    long start = System.nanoTime();
+    lastDataVersion = dbCxn.getDataVersion();
+    lastRefresh = System.nanoTime();
+    loadUpdatedSince(Long.MIN_VALUE);
+    Metrics.gauge("title_index.games", () -> gameCount);
+    Metrics.gauge("title_index.trigrams", postings::size);
+    System.out.printf("Indexed %d game titles in %d ms.%n", gameCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return this;
+  }
+
+  /**
+   * Add a game to the index, or update it if it's already there.
+   *
+   * @param game The game, which must have been saved.
+   */
+  void put(Game game) {
+    LocalDate release = game.getSteamReleaseDate();
+    put(
+      game.getGameId(),
+      game.getSteamId(),
+      game.getTitle(),
+      statusValue(game.getMac()),
+      statusValue(game.getSixtyFour()),
+      release == null ? noRelease : (int) release.toEpochDay()
+    );
+  }
+
+  /**
+   * @return The value of a status, where a new game which hasn't had one set
+   * is unchecked, as in the database.
+   */
+  private static int statusValue(Game.GamePropStatus status) {
+    return status == null ? Game.GamePropStatus.UNCHECKED.value : status.value;
+  }
+
+  private void put(int gameId, int steamId, String title, int macValue, int sixtyFourValue, int release) {
+    String norm = normalize(title);
+    lock.writeLock().lock();
+    try {
+      ensureCapacity(gameId);
+      String oldNorm = normalized[gameId];
+      if (oldNorm == null) {
+        gameCount++;
+      }
+      if (!norm.equals(oldNorm)) {
+        if (oldNorm != null) {
+          forEachTrigram(oldNorm, key -> postings.get(key).remove(gameId));
+        }
+        forEachTrigram(norm, key -> postings.computeIfAbsent(key, k -> new Postings()).add(gameId));
+        normalized[gameId] = norm;
+      }
+      titles[gameId] = title;
+      steamIds[gameId] = steamId;
+      mac[gameId] = (byte) macValue;
+      sixtyFour[gameId] = (byte) sixtyFourValue;
+      releases[gameId] = release;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find the games whose titles contain a search, best matches first.
+   *
+   * Titles which start with the search come first, then those with a word
+   * which does, then any others; within each of those, shorter titles come
+   * first, as they match it more closely, and then newer games. Only games
+   * which would be in the listing for the filter are included.
+   *
+   * @param search What's been typed so far. It must have at least two
+   *               letters or digits.
+   * @param filter How to filter the games.
+   * @param limit The most games to return.
+   * @return The games, with their IDs, Steam IDs, titles, statuses and
+   * release dates set.
+   */
+  Game[] suggest(String search, Game.GameFilterMode filter, int limit) {
+    refreshIfChanged();
+    // Without the space normalize() puts at the start.
+    String norm = normalize(search).substring(1);
+    if (norm.length() < 2 || limit < 1) {
+      return new Game[0];
+    }
+    String wordStart = " " + norm;
+    // Two characters don't make a trigram, so they have to start a word.
+    String pattern = norm.length() < 3 ? wordStart : norm;
+    int today = (int) LocalDate.now(ZoneOffset.UTC).toEpochDay();
+
+    lock.readLock().lock();
+    try {
+      Postings[] lists = trigramPostings(pattern);
+      if (lists == null) {
+        return new Game[0];
+      }
+      // Keys of the best games so far, best first.
+      long[] best = new long[limit];
+      int found = 0;
+      Postings shortest = lists[0];
+      // Where we've got to in each of the other lists; as the candidates
+      // come in order, each search only has to look past the last one.
+      int[] positions = new int[lists.length];
+      candidates:
+      for (int idx = 0; idx < shortest.size; idx++) {
+        int gameId = shortest.ids[idx];
+        for (int listIdx = 1; listIdx < lists.length; listIdx++) {
+          Postings list = lists[listIdx];
+          int pos = Arrays.binarySearch(list.ids, positions[listIdx], list.size, gameId);
+          if (pos < 0) {
+            positions[listIdx] = -(pos + 1);
+            if (positions[listIdx] == list.size) {
+              break candidates;
+            }
+            continue candidates;
+          }
+          positions[listIdx] = pos + 1;
+        }
+        if (!matchesFilter(gameId, filter, today)) {
+          continue;
+        }
+        String title = normalized[gameId];
+        // Even as a match at the start, it wouldn't make the cut.
+        if (found == limit && rankKey(gameId, 0, title.length()) >= best[limit - 1]) {
+          continue;
+        }
+        int tier;
+        if (title.startsWith(wordStart)) {
+          tier = 0;
+        }
+        else if (title.contains(wordStart)) {
+          tier = 1;
+        }
+        else if (title.contains(pattern)) {
+          tier = 2;
+        }
+        else {
+          // It has the trigrams, but not in the right order.
+          continue;
+        }
+        long key = rankKey(gameId, tier, title.length());
+        if (found == limit && key >= best[limit - 1]) {
+          continue;
+        }
+        int insertAt = found < limit ? found++ : limit - 1;
+        while (insertAt > 0 && best[insertAt - 1] > key) {
+          best[insertAt] = best[insertAt - 1];
+          insertAt--;
+        }
+        best[insertAt] = key;
+      }
+
+      Game[] games = new Game[found];
+      for (int idx = 0; idx < found; idx++) {
+        games[idx] = toGame((int) best[idx]);
+      }
+      return games;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return The number of games in the index.
+   */
+  int size() {
+    return gameCount;
+  }
+
+  /**
+   * Pick up games added or changed by other processes, if the database has
+   * changed since the last time and we haven't looked recently.
+   */
+  void refreshIfChanged() {
+    if (System.nanoTime() - lastRefresh < TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis)) {
+      return;
+    }
+    refresh();
+  }
+
+  /**
+   * Pick up games added or changed by other processes, if the database has
+   * changed since the last time, however recently we looked.
+   */
+  void refresh() {
+    // Only one thread needs to do it; the others carry on with what's there.
+    if (!refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      lastRefresh = System.nanoTime();
+      long dataVersion = dbCxn.getDataVersion();
+      if (dataVersion != lastDataVersion) {
+        lastDataVersion = dataVersion;
+        loadUpdatedSince(newestUpdated - refreshOverlapSeconds);
+        Metrics.increment("title_index.refreshes");
+      }
+    }
+    finally {
+      refreshing.set(false);
+    }
+  }
+
+  private void loadUpdatedSince(long updated) {
+    long[] newest = {newestUpdated};
+    dbCxn.query("SELECT game_id, steam_id, title, mac, sixtyfour, steam_release, updated FROM games WHERE updated >= ?")
+      .bindLong(updated)
+      .forEachRow(rs -> {
+        long release = rs.getLong(6);
+        put(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getInt(5), rs.wasNull() ? noRelease : (int) release);
+        newest[0] = Math.max(newest[0], rs.getLong(7));
+      });
+    newestUpdated = newest[0];
+  }
+
+  /**
+   * Get the postings of each trigram in a search, shortest first.
+   *
+   * @return The postings, or null if a trigram isn't in any title.
+   */
+  private Postings[] trigramPostings(String pattern) {
+    Map<Long, Postings> found = new HashMap<>();
+    boolean[] missing = {false};
+    forEachTrigram(pattern, false, key -> {
+      Postings list = postings.get(key);
+      if (list == null || list.size == 0) {
+        missing[0] = true;
+      }
+      else {
+        found.put(key, list);
+      }
+    });
+    if (missing[0] || found.isEmpty()) {
+      return null;
+    }
+    Postings[] lists = found.values().toArray(new Postings[0]);
+    Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+    return lists;
+  }
+
+  private boolean matchesFilter(int gameId, Game.GameFilterMode filter, int today) {
+    if (releases[gameId] > today) {
+      return false;
+    }
+    switch (filter) {
+      case MAC:
+        return mac[gameId] == Game.GamePropStatus.YES.value;
+      case CATALINA:
+        return sixtyFour[gameId] == Game.GamePropStatus.YES.value;
+      default:
+        return mac[gameId] != Game.GamePropStatus.UNCHECKED.value;
+    }
+  }
+
+  /**
+   * Pack how good a match a game is into a long, smaller being better, with
+   * the game ID in the low bits.
+   */
+  private long rankKey(int gameId, int tier, int titleLength) {
+    // Newer games have smaller values; release dates are days since the
+    // epoch, and anything from before it is as old as it gets.
+    long age = 0x3FFFF - Math.max(0, Math.min(releases[gameId], 0x3FFFF));
+    return ((long) tier << 60) | ((long) Math.min(titleLength, 1023) << 50) | (age << 32) | gameId;
+  }
+
+  private Game toGame(int gameId) {
+    Game game = new Game();
+    game.setGameId(gameId);
+    game.setSteamId(steamIds[gameId]);
+    game.setTitle(titles[gameId]);
+    game.setMac(Game.GamePropStatus.fromValue(mac[gameId]));
+    game.setSixtyFour(Game.GamePropStatus.fromValue(sixtyFour[gameId]));
+    if (releases[gameId] != noRelease) {
+      game.setSteamReleaseDate(LocalDate.ofEpochDay(releases[gameId]));
+    }
+    return game;
+  }
+
+  private void ensureCapacity(int gameId) {
+    if (gameId < titles.length) {
+      return;
+    }
+    int length = Math.max(titles.length * 2, gameId + 1);
+    titles = Arrays.copyOf(titles, length);
+    normalized = Arrays.copyOf(normalized, length);
+    steamIds = Arrays.copyOf(steamIds, length);
+    mac = Arrays.copyOf(mac, length);
+    sixtyFour = Arrays.copyOf(sixtyFour, length);
+    releases = Arrays.copyOf(releases, length);
+  }
+
+  private interface TrigramConsumer {
+    void accept(long key);
+  }
+
+  private static void forEachTrigram(String norm, TrigramConsumer consumer) {
+    forEachTrigram(norm, true, consumer);
+  }
+
+  /**
+   * Call a consumer with each trigram of a normalized string, as a long with
+   * its three characters in its low 48 bits.
+   *
+   * @param padded Whether to include the trigrams which start or end a word
+   *               with a space. Titles are indexed with them, so that a
+   *               search can ask for a word which starts with something.
+   */
+  private static void forEachTrigram(String norm, boolean padded, TrigramConsumer consumer) {
+    String s = padded ? " " + norm + " " : norm;
+    for (int idx = 0; idx + 3 <= s.length(); idx++) {
+      consumer.accept(((long) s.charAt(idx) << 32) | ((long) s.charAt(idx + 1) << 16) | s.charAt(idx + 2));
+    }
+  }
+
+  /**
+   * Lowercase a title or search, strip accents and turn anything but
+   * letters and digits into single spaces, with one at the start so that
+   * " " + word finds a word at the start of the title.
+   *
+   * @param text The title or search.
+   * @return The normalized text.
+   */
+  static String normalize(String text) {
+    if (text == null) {
+      return " ";
+    }
+    String stripped = marksPattern.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+    String words = nonWordPattern.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    return " " + words;
+  }
+}
@@ -1,17 +1,59 @@
 package pro.albright.mgcdb.Model;
 
 import pro.albright.mgcdb.SteamAPIModel.PlayerSummary;
+import pro.albright.mgcdb.Util.ColumnMapper;
+import pro.albright.mgcdb.Util.Columns;
+import pro.albright.mgcdb.Util.DBCxn;
 import pro.albright.mgcdb.Util.PagedQueryResult;
-import pro.albright.mgcdb.Util.StatusCodes;
+import pro.albright.mgcdb.Util.Query;
+import pro.albright.mgcdb.Util.SeekCursor;
 
 import java.io.Serializable;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class User extends Model implements Serializable {
 
+  /**
+   * Creates Users from rows of a query of the users table.
+   */
+  public static final ColumnMapper<User> rowMapper = new ColumnMapper<>() {
+    @Override
+    public DBCxn.RowMapper<User> compile(Columns columns) {
+      int userIdIdx = columns.indexOf("user_id");
+      int steamUserIdIdx = columns.indexOf("steam_user_id");
+      int nicknameIdx = columns.indexOf("nickname");
+      int avatarHashIdx = columns.indexOf("avatar_hash");
+      int lastGameSynchIdx = columns.indexOf("last_game_synch");
+
+      return rs -> {
+        User user = new User();
+        user.setUserId(rs.getInt(userIdIdx));
+        user.setSteamId(rs.getLong(steamUserIdIdx));
+        user.setNickname(rs.getString(nicknameIdx));
+        user.setAvatarHash(rs.getString(avatarHashIdx));
+        long lastGameSynch = rs.getLong(lastGameSynchIdx);
+        if (lastGameSynch != 0) {
+          user.setLastGameSynch(Instant.ofEpochSecond(lastGameSynch));
+        }
+        return user;
+      };
+    }
+  };
+
+  /**
+   * The start of a query of the games this user owns. Games are read
+   * through the (steam_release, game_id) index in order and each looked up
+   * in ownership, rather than the other way around, so that a page is read
+   * straight from the index instead of sorting everything the user owns.
+   * SQLite would choose the other way around, as it can't tell how many
+   * games a user owns, so the CROSS JOIN keeps games first.
+   */
+  private static final String ownedGamesFrom = "FROM games g " +
+    "CROSS JOIN ownership o ON o.game_id = g.game_id AND o.user_id = ? ";
+
   /**
    * The user ID in the local database.
    */
@@ -33,9 +75,10 @@ public class User extends Model implements Serializable {
   private String avatarHash;
 
   /**
-   * The date this user's game ownership data was last synchronized.
+   * When this user's game ownership data was last synchronized, or null if it
+   * never has been.
    */
-  private Date lastGameSynch;
+  private Instant lastGameSynch;
 
   public int getUserId() {
     return userId;
@@ -69,11 +112,11 @@ public class User extends Model implements Serializable {
     this.avatarHash = avatarHash;
   }
 
-  public Date getLastGameSynch() {
+  public Instant getLastGameSynch() {
     return lastGameSynch;
   }
 
-  public void setLastGameSynch(Date lastGameSynch) {
+  public void setLastGameSynch(Instant lastGameSynch) {
     this.lastGameSynch = lastGameSynch;
   }
 
@@ -137,20 +180,7 @@ public class User extends Model implements Serializable {
    * @return The user object.
    */
   public static User getBySteamId(long steamId) {
-    User user = null;
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, steamId);
-    ResultSet rs = dbCxn.doSelectQuery("SELECT * FROM users WHERE steam_user_id = ?", params);
-    try {
-      if (rs.next()) {
-        user = User.createFromResultSet(rs);
-      }
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-    return user;
+    return dbCxn.query("SELECT * FROM users WHERE steam_user_id = ?").bindLong(steamId).first(rowMapper);
   }
 
   /**
@@ -160,43 +190,8 @@ public class User extends Model implements Serializable {
    * @return The user.
    */
   public static User getById(int userId) {
-    User user = null;
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    ResultSet rs = dbCxn.doSelectQuery("SELECT * FROM users WHERE user_id = ?", params);
-    try {
-      if (rs.next()) {
-        user = User.createFromResultSet(rs);
-      }
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-    return user;
-  }
-
-  /**
-   * Create a user from a result set from a query.
-   *
-   * @param rs The result set.
-   * @return The User object.
-   */
-  public static User createFromResultSet(ResultSet rs) {
-    User user = new User();
-    try {
-      user.setUserId(rs.getInt("user_id"));
-      user.setSteamId(rs.getLong("steam_user_id"));
-      user.setNickname(rs.getString("nickname"));
-      user.setAvatarHash(rs.getString("avatar_hash"));
-      user.setLastGameSynch(dbCxn.parseTimestamp(rs.getString("last_game_synch")));
-      return user;
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-    return null;
+    // This is done for every request by a logged-in user.
+    return dbCxn.query("SELECT * FROM users WHERE user_id = ?").bindInt(userId).cached().first(rowMapper);
   }
 
   /**
@@ -217,9 +212,12 @@ public class User extends Model implements Serializable {
    * Update the user's last authenticated value in the DB to the current time.
    */
   public void bumpAuthDate() {
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    dbCxn.doUpdateQuery("UPDATE users SET last_auth = CURRENT_TIMESTAMP where user_id = ?", params);
+    long now = Instant.now().getEpochSecond();
+    dbCxn.query("UPDATE users SET last_auth = ?, updated = ? where user_id = ?")
+      .bindLong(now)
+      .bindLong(now)
+      .bindInt(userId)
+      .update();
   }
 
   /**
@@ -230,31 +228,40 @@ public class User extends Model implements Serializable {
    * several hundred games.
    */
   public void updateOwnedGames() {
+    // Talk to Steam before starting the transaction so that we're not
+    // holding the write lock while waiting on it.
     int[] steamGameIds = steamCxn.getOwnedGamesInSteam(steamId);
-    // Convert array to list so we can use .contains because apparently Java
-    // doesn't have something similar for regular arrays… oof
-    // https://stackoverflow.com/a/34428978/11023
-    List<Integer> steamOwnedGameIds = Arrays.stream(Game.getGameIdsBySteamIds(steamGameIds)).boxed().collect(Collectors.toUnmodifiableList());
-    List<Integer> dbOwnedGameIds = Arrays.stream(Ownership.getOwnedGamesInDb(userId)).boxed().collect(Collectors.toUnmodifiableList());
-
-    // Find Steam owned games that aren't in the DB yet
-    for (Integer steamOwnedGameId : steamOwnedGameIds) {
-      if (!dbOwnedGameIds.contains(steamOwnedGameId)) {
-        new Ownership(userId, steamOwnedGameId).save();
-      }
-    }
 
-    // Now find games owned in the DB which weren't found in Steam
-    for (Integer dbOwnedGameId : dbOwnedGameIds) {
-      if (!steamOwnedGameIds.contains(dbOwnedGameId)) {
-        Ownership.delete(userId, dbOwnedGameId);
+    dbCxn.inTransaction(cxn -> {
+      // Convert arrays to sets so we can use .contains because apparently
+      // Java doesn't have something similar for regular arrays… oof
+      // https://stackoverflow.com/a/34428978/11023
+      Set<Integer> steamOwnedGameIds = Arrays.stream(Game.getGameIdsBySteamIds(steamGameIds)).boxed().collect(Collectors.toSet());
+      Set<Integer> dbOwnedGameIds = Arrays.stream(Ownership.getOwnedGamesInDb(userId)).boxed().collect(Collectors.toSet());
+
+      // Find Steam owned games that aren't in the DB yet
+      List<Integer> newGameIds = new ArrayList<>();
+      for (Integer steamOwnedGameId : steamOwnedGameIds) {
+        if (!dbOwnedGameIds.contains(steamOwnedGameId)) {
+          newGameIds.add(steamOwnedGameId);
+        }
       }
-    }
+      Ownership.insertAll(userId, newGameIds);
+
+      // Now find games owned in the DB which weren't found in Steam
+      List<Integer> goneGameIds = new ArrayList<>();
+      for (Integer dbOwnedGameId : dbOwnedGameIds) {
+        if (!steamOwnedGameIds.contains(dbOwnedGameId)) {
+          goneGameIds.add(dbOwnedGameId);
+        }
+      }
+      Ownership.deleteAll(userId, goneGameIds);
 
-    String query = "UPDATE users SET last_game_synch = CURRENT_TIMESTAMP where user_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    dbCxn.doUpdateQuery(query, params);
+      long now = Instant.now().getEpochSecond();
+      String query = "UPDATE users SET last_game_synch = ?, updated = ? where user_id = ?";
+      dbCxn.query(query).bindLong(now).bindLong(now).bindInt(userId).update();
+      return null;
+    });
   }
 
   /**
@@ -267,70 +274,177 @@ public class User extends Model implements Serializable {
    * @return A PagedQueryResult<Game> of the games they own.
    */
   public PagedQueryResult<Game> getOwnedGames(int page) {
-    String selectQuery = "SELECT * FROM ownership o " +
-      "INNER JOIN games g ON g.game_id = o.game_id " +
-      "LEFT JOIN votes v ON v.ownership_id = o.ownership_id " +
-      "WHERE o.user_id = ? ORDER BY g.steam_release DESC " +
-      "LIMIT ? OFFSET ?";
-    String countQuery = "SELECT COUNT(*) FROM ownership o " +
-      "INNER JOIN games g ON o.game_id = g.game_id "+
-      "WHERE o.user_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, userId);
-    int count = dbCxn.getSingleIntResult(countQuery, params);
-
-    params.put(2, Game.perPage);
-    params.put(3, page * Game.perPage);
-    ResultSet rs = dbCxn.doSelectQuery(selectQuery, params);
-    Game[] games = Game.createFromResultSet(rs);
-    return new PagedQueryResult<>(games, count, Game.perPage, page);
+    return getOwnedGames(page, null, null);
+  }
+
+  /**
+   * Get a list of games owned by this user for display on their user page,
+   * seeking to the page as Game.getByReleaseDate() does.
+   *
+   * Games not yet updated from Steam have a release date of 0000-01-01, but
+   * steam_release can still be NULL where a game's old text date wasn't a
+   * date at all when times became integers (migration 11); those go at the
+   * end, as NULLs do when sorting newest first. They're read separately from
+   * the rest, as a seek past a release date can't be made to take in NULLs
+   * without reading the games index from the top.
+   *
+   * @param page The page (zero-based), which is only used to find it if
+   *             there's no cursor.
+   * @param after The next cursor of the page before, or null.
+   * @param before The previous cursor of the page after, or null.
+   * @return A PagedQueryResult<Game> of the games they own, with cursors for
+   * the pages either side.
+   */
+  public PagedQueryResult<Game> getOwnedGames(int page, SeekCursor after, SeekCursor before) {
+    // Kept up to date by triggers on ownership.
+    int count = dbCxn.query("SELECT owned_count FROM users WHERE user_id = ?").bindInt(userId).singleInt();
+
+    if (after == null && before == null && page > 0) {
+      after = getOwnedGameCursor(page * Game.perPage - 1, count);
+      if (after == null) {
+        // Past the end.
+        return new PagedQueryResult<>(new Game[0], count, Game.perPage, page);
+      }
+    }
+
+    List<Game> games = new ArrayList<>(Game.perPage);
+    if (before == null) {
+      if (after == null || after.getRelease() != SeekCursor.noRelease) {
+        games.addAll(getOwnedGames(true, after, null, Game.perPage));
+      }
+      if (games.size() < Game.perPage) {
+        games.addAll(getOwnedGames(false, after, null, Game.perPage - games.size()));
+      }
+    }
+    else {
+      // Read backwards from the cursor.
+      if (before.getRelease() == SeekCursor.noRelease) {
+        games.addAll(getOwnedGames(false, null, before, Game.perPage));
+      }
+      if (games.size() < Game.perPage) {
+        games.addAll(getOwnedGames(true, null, before, Game.perPage - games.size()));
+      }
+      Collections.reverse(games);
+    }
+    return Game.seekResult(games.toArray(new Game[0]), count, page);
+  }
+
+  /**
+   * Get some of the games this user owns, either those with a release date
+   * or those without one.
+   *
+   * @param dated Whether to get those with a release date.
+   * @param after The cursor the games come after, or null.
+   * @param before The cursor the games come before, or null.
+   * @param limit The most games to get.
+   * @return The games, in the order they're read from the cursor.
+   */
+  private List<Game> getOwnedGames(boolean dated, SeekCursor after, SeekCursor before, int limit) {
+    Game[] games = ownedGamesQuery("SELECT * " + ownedGamesFrom +
+      "LEFT JOIN votes v ON v.ownership_id = o.ownership_id ", dated, after, before)
+      .bindInt(limit)
+      .bindInt(0)
+      .toArray(Game.rowMapper, Game[]::new);
+    return Arrays.asList(games);
+  }
+
+  /**
+   * Find where a game is in the list of those this user owns.
+   *
+   * @param offset How many games come before it.
+   * @param count How many games the user owns.
+   * @return Where the game is, or null if the user doesn't own that many.
+   */
+  private SeekCursor getOwnedGameCursor(int offset, int count) {
+    String select = "SELECT g.steam_release, g.game_id " + ownedGamesFrom;
+    SeekCursor cursor = ownedGamesQuery(select, true, null, null)
+      .bindInt(1)
+      .bindInt(offset)
+      .first(rs -> new SeekCursor(rs.getLong(1), rs.getInt(2)));
+    if (cursor == null) {
+      int undated = dbCxn.query("SELECT COUNT(*) " + ownedGamesFrom + "WHERE g.steam_release IS NULL")
+        .bindInt(userId)
+        .singleInt();
+      cursor = ownedGamesQuery(select, false, null, null)
+        .bindInt(1)
+        .bindInt(offset - (count - undated))
+        .first(rs -> new SeekCursor(SeekCursor.noRelease, rs.getInt(2)));
+    }
+    return cursor;
+  }
+
+  /**
+   * Finish a query of the games this user owns with or without a release
+   * date, in release date order, seeking past a cursor if there is one and
+   * it's among those games, and start the query.
+   *
+   * @param select The query up to the end of its FROM clause.
+   * @param dated Whether to get those with a release date.
+   * @param after The cursor the games come after, or null.
+   * @param before The cursor the games come before, or null.
+   * @return The query, to which the limit and offset should be bound.
+   */
+  private Query ownedGamesQuery(String select, boolean dated, SeekCursor after, SeekCursor before) {
+    SeekCursor cursor = after != null ? after : before;
+    boolean seek = cursor != null && dated == (cursor.getRelease() != SeekCursor.noRelease);
+    StringBuilder sql = new StringBuilder(select).append("WHERE g.steam_release IS ").append(dated ? "NOT NULL" : "NULL");
+    if (seek) {
+      String comparison = after != null ? " < " : " > ";
+      sql.append(dated ? " AND (g.steam_release, g.game_id)" + comparison + "(?, ?)" : " AND g.game_id" + comparison + "?");
+    }
+    // To get the games before a cursor, read backwards from it.
+    String direction = after == null && before != null ? "" : " DESC";
+    sql.append(" ORDER BY g.steam_release").append(direction).append(", g.game_id").append(direction)
+      .append(" LIMIT ? OFFSET ?");
+
+    Query query = dbCxn.query(sql.toString()).bindInt(userId);
+    if (seek) {
+      if (dated) {
+        query.bindLong(cursor.getRelease());
+      }
+      query.bindInt(cursor.getGameId());
+    }
+    return query;
   }
 
   /**
    * Save the user's information to the database.
    */
   public void save() {
-    Map<Integer, Object> params = new HashMap<>();
-    String query;
-
     if (userId == 0) {
       // This is a new user.
-      query = "INSERT INTO users (steam_user_id, nickname, avatar_hash) VALUES (?, ?, ?)";
-      params.put(1, steamId);
-      params.put(2, nickname);
-      params.put(3, avatarHash);
-      userId = dbCxn.doInsertQuery(query, params);
+      userId = dbCxn.query("INSERT INTO users (steam_user_id, nickname, avatar_hash) VALUES (?, ?, ?)")
+        .bindLong(steamId)
+        .bindString(nickname)
+        .bindString(avatarHash)
+        .insert();
     }
     else {
       // This is an existing user that we're updating.
       // I can't anticipate a case where we have to update a user's Steam ID
-      query = "UPDATE users SET nickname = ?, avatar_hash = ? WHERE user_id = ?";
-      params.put(1, nickname);
-      params.put(2, userId);
-      params.put(3, avatarHash);
-      dbCxn.doUpdateQuery(query, params);
+      dbCxn.query("UPDATE users SET nickname = ?, avatar_hash = ?, updated = ? WHERE user_id = ?")
+        .bindString(nickname)
+        .bindString(avatarHash)
+        .bindLong(Instant.now().getEpochSecond())
+        .bindInt(userId)
+        .update();
     }
   }
 
   /**
    * Find all users due for an ownership synch (it's been at least 1 day since
    * their last one).
+   *
+   * They're all loaded up front, rather than streamed, as each synch makes
+   * a request to Steam; a result set left open over those would hold a read
+   * snapshot for the whole run, which keeps WAL checkpoints from finishing.
+   *
    * @return An array of Users.
    */
   public static User[] getUsersNeedingOwnershipUpdate() {
-    String query = "SELECT * FROM users WHERE last_game_synch <= datetime('now', '-1 day')";
-    ResultSet rs = dbCxn.doSelectQuery(query, null);
-    List<User> users = new ArrayList<>();
-    try {
-      while (rs.next()) {
-        users.add(createFromResultSet(rs));
-      }
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
-
-    return users.toArray(new User[users.size()]);
+    String query = "SELECT * FROM users WHERE last_game_synch <= ?";
+    return dbCxn.query(query)
+      .bindLong(Instant.now().minus(1, ChronoUnit.DAYS).getEpochSecond())
+      .toArray(rowMapper, User[]::new);
   }
 }
@@ -1,18 +1,36 @@
 package pro.albright.mgcdb.Model;
 
+import pro.albright.mgcdb.Util.ColumnMapper;
+import pro.albright.mgcdb.Util.Columns;
 import pro.albright.mgcdb.Util.DBCxn;
 
 import java.io.Serializable;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A class representing a vote on Catalina compatibility.
  */
 public class Vote extends Model implements Serializable {
 
+  /**
+   * Creates Votes from rows of a query of the votes table.
+   */
+  public static final ColumnMapper<Vote> rowMapper = new ColumnMapper<>() {
+    @Override
+    public DBCxn.RowMapper<Vote> compile(Columns columns) {
+      int voteIdIdx = columns.indexOf("vote_id");
+      int ownershipIdIdx = columns.indexOf("ownership_id");
+      int voteIdx = columns.indexOf("vote");
+
+      return rs -> {
+        Vote vote = new Vote();
+        vote.setVoteId(rs.getInt(voteIdIdx));
+        vote.setOwnershipId(rs.getInt(ownershipIdIdx));
+        vote.setVote(rs.getBoolean(voteIdx));
+        return vote;
+      };
+    }
+  };
+
   /**
    * The ID of the vote.
    */
@@ -64,29 +82,47 @@ public class Vote extends Model implements Serializable {
    */
   public static Vote getByOwnershipId(int ownershipId) {
     String query = "SELECT * FROM votes WHERE ownership_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, ownershipId);
-    ResultSet rs = dbCxn.doSelectQuery(query, params);
-    return Vote.createFromResultSet(rs);
+    return dbCxn.query(query).bindInt(ownershipId).first(rowMapper);
   }
 
   /**
-   * Create a Vote instance from a result set.
-   * @param rs
-   * @return
+   * Record a user's vote on a game they own, replacing any vote they already
+   * made on it.
+   *
+   * This happens in a single transaction, so the ownership check and the
+   * change to the vote can't be interleaved with another request's.
+   *
+   * @param userId The ID of the user voting.
+   * @param ownershipId The ID of the ownership being voted on.
+   * @param newVote True for yes, false for no, or null to delete the vote.
+   * @return False if the ownership doesn't exist or doesn't belong to the
+   * user; true otherwise.
    */
-  public static Vote createFromResultSet(ResultSet rs) {
-    Vote vote = null;
-    try {
-      vote = new Vote();
-      vote.setVoteId(rs.getInt("vote_id"));
-      vote.setOwnershipId(rs.getInt("ownership_id"));
-      vote.setVote(rs.getBoolean("vote"));
-    }
-    catch (SQLException throwables) {
-      return null;
-    }
-    return vote;
+  public static boolean cast(int userId, int ownershipId, Boolean newVote) {
+    return dbCxn.inTransaction(cxn -> {
+      // Confirm the user actually owns this game.
+      Ownership ownership = Ownership.getById(ownershipId);
+      if (ownership == null || ownership.getUserId() != userId) {
+        return false;
+      }
+
+      // Are we creating a new vote or changing an existing one?
+      Vote vote = Vote.getByOwnershipId(ownershipId);
+      if (newVote == null) {
+        if (vote != null) {
+          vote.delete();
+        }
+        return true;
+      }
+      if (vote == null) {
+        // Create a new vote
+        vote = new Vote();
+        vote.setOwnershipId(ownershipId);
+      }
+      vote.setVote(newVote);
+      vote.save();
+      return true;
+    });
   }
 
   /**
@@ -97,31 +133,26 @@ public class Vote extends Model implements Serializable {
       return;
     }
     String query = "DELETE FROM votes WHERE vote_id = ?";
-    Map<Integer, Object> params = new HashMap<>();
-    params.put(1, voteId);
-    dbCxn.doUpdateQuery(query, params);
+    dbCxn.query(query).bindInt(voteId).update();
   }
 
   /**
    * Save this Vote.
    */
   public void save() {
-    Map<Integer, Object> params = new HashMap<>();
-    String query;
-
     if (voteId == 0) {
-      query = "INSERT INTO votes (ownership_id, vote) VALUES (?, ?)";
-      params.put(1, ownershipId);
-      params.put(2, vote ? 1 : 0);
-      voteId = dbCxn.doInsertQuery(query, params);
+      voteId = dbCxn.query("INSERT INTO votes (ownership_id, vote) VALUES (?, ?)")
+        .bindInt(ownershipId)
+        .bindBoolean(vote)
+        .insert();
     }
     else {
       // I don't see the case in which the ownership ID of an existing vote
       // could be changed.
-      query = "UPDATE votes SET vote = ? WHERE vote_id = ?";
-      params.put(1, vote ? 1 : 0);
-      params.put(2, voteId);
-      dbCxn.doUpdateQuery(query, params);
+      dbCxn.query("UPDATE votes SET vote = ? WHERE vote_id = ?")
+        .bindBoolean(vote)
+        .bindInt(voteId)
+        .update();
     }
   }
 }
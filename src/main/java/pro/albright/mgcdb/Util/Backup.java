@@ -0,0 +1,182 @@
+package pro.albright.mgcdb.Util;
+
+import org.sqlite.SQLiteConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the database to another file while MGCDB keeps running, using
+ * SQLite's online backup API.
+ *
+ * The copy is made from a read-only connection of its own. In WAL mode,
+ * reading doesn't block writing, so the copy is of the database as it was
+ * when the backup started, and other reads and writes carry on while it's
+ * made; it never takes the write lock. (The backup API can copy a few pages
+ * at a time, pausing in between, but the version of the SQLite driver MGCDB
+ * uses copies every page in one go.)
+ *
+ * The copy is written to a file next to the destination and only moved into
+ * place once it's complete, so a backup which fails or is interrupted never
+ * replaces a good one.
+ */
+class Backup implements Runnable {
+
+  /**
+   * The outcome of a backup.
+   */
+  static class Result {
+    /**
+     * The number of pages copied.
+     */
+    final long pages;
+    /**
+     * The number of bytes copied.
+     */
+    final long bytes;
+    /**
+     * How long the backup took.
+     */
+    final long millis;
+
+    private Result(long pages, long bytes, long millis) {
+      this.pages = pages;
+      this.bytes = bytes;
+      this.millis = millis;
+    }
+
+    /**
+     * @return How fast the pages were copied, in MiB per second.
+     */
+    double getMibPerSecond() {
+      return bytes / 1048576.0 / Math.max(millis, 1) * 1000;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d pages (%.1f MiB) in %d ms (%.1f MiB/s)", pages, bytes / 1048576.0, millis, getMibPerSecond());
+    }
+  }
+
+  private final DBCxn dbCxn;
+  private final String scheduledPath;
+  private final long intervalMillis;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param dbCxn The DBCxn whose database to back up.
+   * @param scheduledPath Where scheduled backups are written. If empty,
+   *                      backups aren't scheduled.
+   * @param intervalMillis How often to run scheduled backups.
+   */
+  Backup(DBCxn dbCxn, String scheduledPath, long intervalMillis) {
+    this.dbCxn = dbCxn;
+    this.scheduledPath = scheduledPath;
+    this.intervalMillis = intervalMillis;
+  }
+
+  /**
+   * Start running backups on a schedule, if they're configured and it isn't
+   * already.
+   */
+  synchronized void start() {
+    if (executor != null || scheduledPath.isEmpty() || intervalMillis <= 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "mgcdb-backup");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop running scheduled backups, waiting a little while for one which is
+   * running now to finish.
+   */
+  void stop() {
+    ScheduledExecutorService stopping;
+    synchronized (this) {
+      stopping = executor;
+      executor = null;
+    }
+    if (stopping != null) {
+      stopping.shutdown();
+      try {
+        stopping.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Run a scheduled backup.
+   */
+  @Override
+  public void run() {
+    try {
+      Result result = copyTo(scheduledPath);
+      System.out.printf("Backed up the database to %s: %s.%n", scheduledPath, result);
+    }
+    catch (SQLException | IOException e) {
+      // Try again next time.
+      System.err.printf("Backing up the database to %s failed.%n", scheduledPath);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Back up the database.
+   *
+   * @param destPath The path to write the backup to. If a file is there
+   *                 already, it's replaced once the backup is complete.
+   * @return The outcome.
+   * @throws SQLException If the database couldn't be read or the backup
+   *                      couldn't be written.
+   * @throws IOException If the backup couldn't be moved into place.
+   */
+  Result copyTo(String destPath) throws SQLException, IOException {
+    File dest = new File(destPath);
+    File partial = new File(destPath + ".partial");
+    Files.deleteIfExists(partial.toPath());
+
+    long start = System.nanoTime();
+    int pageSize;
+    try (Connection cxn = dbCxn.openReadOnlyCxn()) {
+      try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA page_size")) {
+        rs.next();
+        pageSize = rs.getInt(1);
+      }
+      int rc = ((SQLiteConnection) cxn).getDatabase().backup("main", partial.getPath(), (remaining, pageCount) -> {});
+      if (rc != 0) {
+        throw new SQLException(String.format("The backup failed with SQLite error %d.", rc));
+      }
+    }
+    catch (SQLException e) {
+      Metrics.increment("db.backup.failed");
+      Files.deleteIfExists(partial.toPath());
+      throw e;
+    }
+    Files.move(partial.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+    long bytes = dest.length();
+    Result result = new Result(bytes / pageSize, bytes, micros / 1000);
+    Metrics.increment("db.backup.completed");
+    Metrics.add("db.backup.bytes_total", result.bytes);
+    Metrics.max("db.backup.micros_max", micros);
+    return result;
+  }
+}
@@ -0,0 +1,79 @@
+package pro.albright.mgcdb.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The same query run many times with different parameters, in a single
+ * transaction.
+ *
+ * Get one from DBCxn.batch(), add a row of parameters for each time the
+ * query should be run, then run them all:
+ *
+ *   Batch batch = dbCxn.batch("DELETE FROM ownership WHERE user_id = ? AND game_id = ?");
+ *   for (int gameId : gameIds) {
+ *     batch.add().bindInt(userId).bindInt(gameId);
+ *   }
+ *   batch.update();
+ *
+ * Doing this rather than running each query separately means there's one
+ * commit, and so one fsync, for the whole lot. If any row fails, none of
+ * them are saved.
+ */
+public class Batch {
+
+  private final DBCxn dbCxn;
+  private final String sql;
+  private final List<Query> rows = new ArrayList<>();
+
+  Batch(DBCxn dbCxn, String sql) {
+    this.dbCxn = dbCxn;
+    this.sql = sql;
+  }
+
+  /**
+   * @return The SQL of the query.
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * Add a row to the batch.
+   *
+   * @return A Query to bind the row's parameters to. Don't run it directly;
+   * it'll be run when the batch is.
+   */
+  public Query add() {
+    Query row = new Query(dbCxn, sql);
+    rows.add(row);
+    return row;
+  }
+
+  /**
+   * @return The number of rows in the batch.
+   */
+  public int size() {
+    return rows.size();
+  }
+
+  /**
+   * Run the batch as INSERTs.
+   *
+   * @return The IDs of the inserted rows, in the order the rows were added.
+   */
+  public int[] insert() {
+    return dbCxn.doBatchQuery(this, true);
+  }
+
+  /**
+   * Run the batch as UPDATEs, DELETEs or other statements which change data.
+   */
+  public void update() {
+    dbCxn.doBatchQuery(this, false);
+  }
+
+  List<Query> getRows() {
+    return rows;
+  }
+}
@@ -0,0 +1,102 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tries database operations again when they fail because the database is
+ * locked.
+ *
+ * SQLite itself waits up to sqlite.busy_timeout for a lock held by another
+ * connection, but a long write by another process, such as an
+ * updateownership task run from cron while the web daemon is taking votes,
+ * can outlast that. Rather than failing, an operation which hits SQLITE_BUSY
+ * or SQLITE_LOCKED is tried again after a delay which doubles each time, up
+ * to a maximum, until a deadline has passed. Each delay is somewhere between
+ * half and all of the current one at random, so that processes which were
+ * locked out at the same time don't all come back at once.
+ *
+ * Anything else which goes wrong is passed on straight away.
+ */
+class BusyRetry {
+
+  /**
+   * An operation which may be run more than once.
+   *
+   * @param <T> The type of its result.
+   */
+  interface Attempt<T> {
+    T run() throws SQLException;
+  }
+
+  private final long baseDelayNanos;
+  private final long maxDelayNanos;
+  private final long deadlineNanos;
+
+  /**
+   * @param baseDelayMillis How long to wait before the first retry.
+   * @param maxDelayMillis The longest to wait between two tries.
+   * @param deadlineMillis How long after the first failure to give up.
+   *                       0 turns retrying off.
+   */
+  BusyRetry(long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+    this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, baseDelayMillis));
+    this.maxDelayNanos = Math.max(baseDelayNanos, TimeUnit.MILLISECONDS.toNanos(maxDelayMillis));
+    this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+  }
+
+  /**
+   * Run an operation, trying it again while it fails because the database is
+   * locked.
+   *
+   * @param kind What sort of operation it is, "read" or "write", for the
+   *             db.busy.* metrics.
+   * @param attempt The operation.
+   * @param <T> The type of its result.
+   * @return Its result.
+   * @throws SQLException If it failed for some other reason, or was still
+   *                      failing when the deadline passed; whatever it threw
+   *                      the last time is thrown.
+   */
+  <T> T run(String kind, Attempt<T> attempt) throws SQLException {
+    long giveUpAt = 0;
+    long delay = baseDelayNanos;
+    while (true) {
+      try {
+        return attempt.run();
+      }
+      catch (SQLException | RuntimeException e) {
+        if (!DBException.isBusy(e)) {
+          throw e;
+        }
+        long now = System.nanoTime();
+        if (giveUpAt == 0) {
+          giveUpAt = now + deadlineNanos;
+        }
+        long sleep = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (now + sleep - giveUpAt > 0 || !sleep(sleep)) {
+          Metrics.increment("db.busy." + kind + ".gave_up");
+          throw e;
+        }
+        Metrics.increment("db.busy." + kind + ".retries");
+        Metrics.add("db.busy.backoff_micros_total", TimeUnit.NANOSECONDS.toMicros(sleep));
+        delay = Math.min(delay * 2, maxDelayNanos);
+      }
+    }
+  }
+
+  /**
+   * @return Whether the sleep finished rather than being interrupted.
+   */
+  private static boolean sleep(long nanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+      return true;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
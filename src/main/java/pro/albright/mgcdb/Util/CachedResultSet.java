@@ -0,0 +1,252 @@
+package pro.albright.mgcdb.Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of a query's result, read into memory so they can be handed out
+ * again as a ResultSet without going back to the database; see ResultCache.
+ *
+ * The ResultSets only support what our RowMappers and Query use: moving
+ * forward with next(), reading columns by index or label with the getInt(),
+ * getLong(), getString(), getBoolean(), getDouble() and getObject() methods,
+ * wasNull(), findColumn(), and the column count and labels from
+ * getMetaData(). Anything else throws SQLFeatureNotSupportedException.
+ */
+class CachedResultSet implements InvocationHandler {
+
+  /**
+   * A result read into memory. It's never changed once read, so any number
+   * of threads can replay it at once.
+   */
+  static class Rows {
+    private final String[] labels;
+    private final Object[][] rows;
+    private final long bytes;
+
+    private Rows(String[] labels, Object[][] rows, long bytes) {
+      this.labels = labels;
+      this.rows = rows;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Read the rest of a ResultSet into memory and close it.
+     *
+     * @param rs The ResultSet.
+     * @return The rows.
+     * @throws SQLException If the rows couldn't be read.
+     */
+    static Rows read(ResultSet rs) throws SQLException {
+      try (rs) {
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] labels = new String[metaData.getColumnCount()];
+        long bytes = 64;
+        for (int idx = 0; idx < labels.length; idx++) {
+          labels[idx] = metaData.getColumnLabel(idx + 1);
+          bytes += sizeOf(labels[idx]);
+        }
+        List<Object[]> rows = new ArrayList<>();
+        while (rs.next()) {
+          Object[] row = new Object[labels.length];
+          bytes += 16 + 8L * row.length;
+          for (int idx = 0; idx < row.length; idx++) {
+            row[idx] = rs.getObject(idx + 1);
+            bytes += sizeOf(row[idx]);
+          }
+          rows.add(row);
+        }
+        return new Rows(labels, rows.toArray(new Object[0][]), bytes);
+      }
+    }
+
+    /**
+     * @return Roughly how much memory the rows take up, in bytes.
+     */
+    long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    int size() {
+      return rows.length;
+    }
+
+    /**
+     * @return A new ResultSet, positioned before the first row.
+     */
+    ResultSet open() {
+      return (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class},
+        new CachedResultSet(this)
+      );
+    }
+
+    private static long sizeOf(Object value) {
+      if (value == null) {
+        return 0;
+      }
+      if (value instanceof String) {
+        return 40 + 2L * ((String) value).length();
+      }
+      if (value instanceof byte[]) {
+        return 16 + ((byte[]) value).length;
+      }
+      return 16;
+    }
+  }
+
+  private final Rows rows;
+  private int rowIdx = -1;
+  private boolean closed = false;
+  private boolean wasNull = false;
+
+  private CachedResultSet(Rows rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    switch (name) {
+      case "next":
+        checkOpen();
+        if (rowIdx < rows.rows.length) {
+          rowIdx++;
+        }
+        return rowIdx < rows.rows.length;
+      case "close":
+        closed = true;
+        return null;
+      case "isClosed":
+        return closed;
+      case "wasNull":
+        return wasNull;
+      case "findColumn":
+        return findColumn((String) args[0]);
+      case "getMetaData":
+        return metaData();
+      case "getObject":
+        if (args.length == 1) {
+          return value(args[0]);
+        }
+        break;
+      case "getString":
+        Object value = value(args[0]);
+        if (value instanceof byte[]) {
+          return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+        return value == null ? null : value.toString();
+      case "getInt":
+        return (int) toLong(value(args[0]));
+      case "getLong":
+        return toLong(value(args[0]));
+      case "getBoolean":
+        return toLong(value(args[0])) != 0;
+      case "getDouble":
+        return toDouble(value(args[0]));
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "CachedResultSet@" + Integer.toHexString(System.identityHashCode(proxy));
+    }
+    throw new SQLFeatureNotSupportedException("A cached ResultSet doesn't support " + name + "()");
+  }
+
+  private void checkOpen() throws SQLException {
+    if (closed) {
+      throw new SQLException("The ResultSet is closed");
+    }
+  }
+
+  private int findColumn(String label) throws SQLException {
+    for (int idx = 0; idx < rows.labels.length; idx++) {
+      if (rows.labels[idx].equalsIgnoreCase(label)) {
+        return idx + 1;
+      }
+    }
+    throw new SQLException("No such column '" + label + "'");
+  }
+
+  /**
+   * Get a value from the current row, noting whether it was NULL.
+   *
+   * @param column The one-based index or the label of the column.
+   */
+  private Object value(Object column) throws SQLException {
+    checkOpen();
+    if (rowIdx < 0 || rowIdx >= rows.rows.length) {
+      throw new SQLException("The ResultSet isn't on a row");
+    }
+    int idx = column instanceof String ? findColumn((String) column) : (Integer) column;
+    if (idx < 1 || idx > rows.labels.length) {
+      throw new SQLException("Column index " + idx + " is out of range");
+    }
+    Object value = rows.rows[rowIdx][idx - 1];
+    wasNull = value == null;
+    return value;
+  }
+
+  /**
+   * Convert a value the way SQLite does when an integer is asked for.
+   */
+  private static long toLong(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof String) {
+      try {
+        return (long) Double.parseDouble(((String) value).trim());
+      }
+      catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static double toDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Double.parseDouble(((String) value).trim());
+      }
+      catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private ResultSetMetaData metaData() {
+    return (ResultSetMetaData) Proxy.newProxyInstance(
+      ResultSetMetaData.class.getClassLoader(),
+      new Class<?>[] {ResultSetMetaData.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getColumnCount":
+            return rows.labels.length;
+          case "getColumnLabel":
+          case "getColumnName":
+            return rows.labels[(Integer) args[0] - 1];
+        }
+        throw new SQLFeatureNotSupportedException("Cached ResultSet metadata doesn't support " + method.getName() + "()");
+      }
+    );
+  }
+}
@@ -0,0 +1,116 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices commits made to the database by other processes, such as tasks run
+ * from cron, so that cached query results which they may have made stale are
+ * thrown away rather than served until they reach their maximum age.
+ *
+ * PRAGMA data_version on a connection changes whenever any other connection
+ * commits, and it's cheap to read since it doesn't touch the database file.
+ * Our own writer is another connection too, though, and the result cache
+ * already knows which tables its writes change. So this keeps a read-only
+ * connection of its own, and reads its data_version again straight after
+ * each of our own commits; a change seen at any other time was made by
+ * someone else. An outside commit which lands in the moment between one of
+ * ours and that read is missed here, but the writer also checks its own
+ * connection's data_version (which our commits don't change) before each
+ * transaction, and the cache's maximum age is the last resort.
+ *
+ * In-memory databases can't be reached from other processes, so nothing is
+ * checked for them.
+ */
+class ChangeMonitor {
+
+  private final DBCxn dbCxn;
+  private final long intervalNanos;
+  private Connection cxn;
+  private long dataVersion;
+  private volatile long checkedAt;
+
+  /**
+   * @param dbCxn The database.
+   * @param intervalMillis The least time between two checks; 0 checks every
+   *                       time.
+   */
+  ChangeMonitor(DBCxn dbCxn, long intervalMillis) {
+    this.dbCxn = dbCxn;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    checkedAt = System.nanoTime() - intervalNanos;
+  }
+
+  /**
+   * Check whether another process has committed anything since the last
+   * check, and tell the DBCxn if so, unless the last check was too recent.
+   *
+   * @throws SQLException If the check failed.
+   */
+  void check() throws SQLException {
+    if (dbCxn.isInMemory() || System.nanoTime() - checkedAt < intervalNanos) {
+      return;
+    }
+    boolean changed;
+    synchronized (this) {
+      checkedAt = System.nanoTime();
+      if (cxn == null) {
+        if (!dbCxn.exists()) {
+          return;
+        }
+        cxn = dbCxn.openReadOnlyCxn();
+        dataVersion = readDataVersion();
+        return;
+      }
+      long current = readDataVersion();
+      changed = current != dataVersion;
+      dataVersion = current;
+    }
+    if (changed) {
+      Metrics.increment("db.external_changes");
+      dbCxn.noteExternalChange();
+    }
+  }
+
+  /**
+   * Note that our own writer has just committed, so that the change it makes
+   * to data_version isn't taken for someone else's.
+   */
+  synchronized void noteOwnCommit() {
+    if (cxn == null) {
+      return;
+    }
+    try {
+      dataVersion = readDataVersion();
+    }
+    catch (SQLException e) {
+      // Start again with a new connection on the next check.
+      close();
+    }
+  }
+
+  /**
+   * Close the connection; the next check opens a new one.
+   */
+  synchronized void close() {
+    if (cxn == null) {
+      return;
+    }
+    try {
+      cxn.close();
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    cxn = null;
+  }
+
+  private long readDataVersion() throws SQLException {
+    try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA data_version")) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+}
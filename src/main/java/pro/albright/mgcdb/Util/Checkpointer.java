@@ -0,0 +1,232 @@
+package pro.albright.mgcdb.Util;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the write-ahead log back into the database file on a schedule.
+ *
+ * SQLite does this itself after a commit once the WAL reaches
+ * wal_autocheckpoint pages, but it can only copy frames which no reader still
+ * needs, and it can only start writing the WAL from the beginning again once
+ * no reader is using it at all. With the web daemon reading all the time while
+ * a cron task writes thousands of rows, that may never happen, and the WAL
+ * (which every read has to search) keeps growing.
+ *
+ * So this runs a PASSIVE checkpoint, which copies what it can without getting
+ * in anyone's way, every few seconds. When the WAL has grown past a threshold
+ * and nothing is reading or waiting to write, it runs a TRUNCATE checkpoint
+ * instead, which copies everything and then empties the WAL file. If it stays
+ * past the threshold without things going quiet for a while, it runs a
+ * RESTART checkpoint anyway, which waits (briefly) for readers to finish so
+ * the WAL can be reused from the start.
+ */
+class Checkpointer implements Runnable {
+
+  enum Mode {
+    PASSIVE,
+    RESTART,
+    TRUNCATE
+  }
+
+  /**
+   * The outcome of a checkpoint, as reported by PRAGMA wal_checkpoint.
+   */
+  static class Result {
+    /**
+     * Whether the checkpoint couldn't finish because of other connections.
+     */
+    final boolean busy;
+    /**
+     * The number of frames in the WAL.
+     */
+    final long walFrames;
+    /**
+     * The number of frames in the WAL which are now in the database file.
+     */
+    final long checkpointedFrames;
+
+    private Result(boolean busy, long walFrames, long checkpointedFrames) {
+      this.busy = busy;
+      this.walFrames = walFrames;
+      this.checkpointedFrames = checkpointedFrames;
+    }
+  }
+
+  /**
+   * How long a RESTART or TRUNCATE checkpoint waits for readers and the writer
+   * before giving up. While it's waiting, new writes have to wait for it, so
+   * this is kept short.
+   */
+  private static final int busyTimeoutMillis = 100;
+
+  private final DBCxn dbCxn;
+  private final File walFile;
+  private final long intervalMillis;
+  private final long walSizeThreshold;
+  private final int maxDeferrals;
+  private final AtomicLong walFrames = new AtomicLong();
+  private ScheduledExecutorService executor;
+  private Connection cxn;
+  private int deferrals = 0;
+
+  /**
+   * @param dbCxn The DBCxn whose database to checkpoint.
+   * @param path The path to the database file.
+   * @param intervalMillis How often to checkpoint.
+   * @param walSizeThreshold How big, in bytes, the WAL file can get before
+   *                         a RESTART or TRUNCATE checkpoint is run.
+   * @param maxDeferrals How many times in a row to put off a RESTART or
+   *                     TRUNCATE checkpoint while the database is busy.
+   */
+  Checkpointer(DBCxn dbCxn, String path, long intervalMillis, long walSizeThreshold, int maxDeferrals) {
+    this.dbCxn = dbCxn;
+    this.walFile = new File(path + "-wal");
+    this.intervalMillis = intervalMillis;
+    this.walSizeThreshold = walSizeThreshold;
+    this.maxDeferrals = maxDeferrals;
+
+    Metrics.gauge("db.wal.size_bytes", walFile::length);
+    Metrics.gauge("db.wal.frames", walFrames::get);
+  }
+
+  /**
+   * Start checkpointing on a schedule, if it isn't already.
+   */
+  synchronized void start() {
+    if (executor != null || intervalMillis <= 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "mgcdb-checkpointer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checkpointing and close the connection used for it.
+   */
+  void stop() {
+    ScheduledExecutorService stopping;
+    synchronized (this) {
+      stopping = executor;
+      executor = null;
+    }
+    // Not while holding the lock, or a checkpoint which is running now
+    // couldn't finish.
+    if (stopping != null) {
+      stopping.shutdown();
+      try {
+        stopping.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    closeCxn();
+  }
+
+  /**
+   * Run a scheduled checkpoint.
+   */
+  @Override
+  public void run() {
+    try {
+      checkpoint(chooseMode());
+    }
+    catch (SQLException e) {
+      // Try again with a new connection next time.
+      e.printStackTrace();
+      closeCxn();
+    }
+  }
+
+  /**
+   * Decide which kind of checkpoint to run.
+   *
+   * @return The mode.
+   */
+  Mode chooseMode() {
+    if (walFile.length() < walSizeThreshold) {
+      deferrals = 0;
+      return Mode.PASSIVE;
+    }
+    if (dbCxn.isQuiet()) {
+      deferrals = 0;
+      return Mode.TRUNCATE;
+    }
+    if (++deferrals >= maxDeferrals) {
+      deferrals = 0;
+      return Mode.RESTART;
+    }
+    Metrics.increment("db.checkpoint.deferred");
+    return Mode.PASSIVE;
+  }
+
+  /**
+   * Run a checkpoint.
+   *
+   * @param mode The kind of checkpoint.
+   * @return The outcome.
+   * @throws SQLException If the checkpoint failed.
+   */
+  synchronized Result checkpoint(Mode mode) throws SQLException {
+    if (cxn == null || cxn.isClosed()) {
+      cxn = dbCxn.openWritableCxn();
+      try (Statement stmt = cxn.createStatement()) {
+        stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+      }
+    }
+    long start = System.nanoTime();
+    // A RESTART or TRUNCATE checkpoint which succeeds reports the state of the
+    // WAL after it's been reset, which is to say nothing, so do the copying
+    // with a PASSIVE one first to find out how much there was.
+    Result result = runPragma(Mode.PASSIVE);
+    if (mode != Mode.PASSIVE) {
+      Result reset = runPragma(mode);
+      result = new Result(reset.busy, reset.busy ? reset.walFrames : 0, result.checkpointedFrames);
+    }
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+    Metrics.increment("db.checkpoint." + mode.toString().toLowerCase());
+    Metrics.add("db.checkpoint.micros_total", micros);
+    Metrics.max("db.checkpoint.micros_max", micros);
+    if (result.busy) {
+      Metrics.increment("db.checkpoint.busy");
+    }
+    // Both are -1 if the database isn't in WAL mode.
+    if (result.checkpointedFrames > 0) {
+      Metrics.add("db.checkpoint.frames_total", result.checkpointedFrames);
+    }
+    walFrames.set(Math.max(0, result.walFrames));
+    return result;
+  }
+
+  private Result runPragma(Mode mode) throws SQLException {
+    try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA wal_checkpoint(" + mode + ")")) {
+      rs.next();
+      return new Result(rs.getInt(1) != 0, rs.getLong(2), rs.getLong(3));
+    }
+  }
+
+  private synchronized void closeCxn() {
+    try {
+      if (cxn != null && !cxn.isClosed()) {
+        cxn.close();
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    cxn = null;
+  }
+}
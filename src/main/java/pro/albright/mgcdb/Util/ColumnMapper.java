@@ -0,0 +1,69 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A RowMapper which works out where its columns are once per query rather
+ * than once per row.
+ *
+ * Subclasses implement compile(), which is given the query's columns and
+ * returns a RowMapper which reads them by index. Query caches the compiled
+ * mapper by SQL, so for a query which has been run before, mapping a row is
+ * just a series of getInt(index)-style calls; and optional columns (such as
+ * the vote counts which only some listings select) are checked for once, up
+ * front, rather than by catching an exception on every row.
+ *
+ * @param <T> The type of the objects created.
+ */
+public abstract class ColumnMapper<T> implements DBCxn.RowMapper<T> {
+
+  /**
+   * The most query shapes to cache compiled mappers for. The SQL of our
+   * queries only varies in a few bounded ways, so this shouldn't be reached;
+   * it's here in case that stops being true.
+   */
+  private static final int maxCached = 256;
+
+  private final Map<String, DBCxn.RowMapper<T>> compiled = new ConcurrentHashMap<>();
+
+  /**
+   * Create a RowMapper for a particular set of columns.
+   *
+   * @param columns The columns of the query's result.
+   * @return The RowMapper.
+   */
+  public abstract DBCxn.RowMapper<T> compile(Columns columns);
+
+  /**
+   * Get the compiled RowMapper for a query, compiling it if this is the first
+   * time we've seen the query.
+   *
+   * @param sql The SQL of the query.
+   * @param rs A ResultSet from the query.
+   * @return The RowMapper.
+   * @throws SQLException If the ResultSet's metadata couldn't be read.
+   */
+  DBCxn.RowMapper<T> forQuery(String sql, ResultSet rs) throws SQLException {
+    DBCxn.RowMapper<T> mapper = compiled.get(sql);
+    if (mapper == null) {
+      Metrics.increment("db.row_mapper.compiles");
+      mapper = compile(new Columns(rs.getMetaData()));
+      if (compiled.size() < maxCached) {
+        compiled.put(sql, mapper);
+      }
+    }
+    return mapper;
+  }
+
+  /**
+   * Map a single row without the benefit of a cached compiled mapper. Query
+   * doesn't call this; it's for mapping a ResultSet from elsewhere.
+   */
+  @Override
+  public T map(ResultSet rs) throws SQLException {
+    return compile(new Columns(rs.getMetaData())).map(rs);
+  }
+}
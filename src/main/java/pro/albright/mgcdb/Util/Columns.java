@@ -0,0 +1,42 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The columns of a query's result, by name.
+ *
+ * Looking a column up here rather than with ResultSet.findColumn() (which is
+ * what getInt("name") and friends do) means a missing column is just an index
+ * of 0 instead of an SQLException.
+ */
+public class Columns {
+
+  private final Map<String, Integer> indexes = new HashMap<>();
+
+  /**
+   * @param metaData The metadata of a ResultSet from the query.
+   * @throws SQLException If the metadata couldn't be read.
+   */
+  public Columns(ResultSetMetaData metaData) throws SQLException {
+    int count = metaData.getColumnCount();
+    for (int idx = 1; idx <= count; idx++) {
+      // When a join returns more than one column with the same name, the
+      // first one wins, same as with findColumn().
+      indexes.putIfAbsent(metaData.getColumnLabel(idx).toLowerCase(), idx);
+    }
+  }
+
+  /**
+   * Get the index of a column.
+   *
+   * @param name The column name.
+   * @return The (one-based) index of the column, or 0 if there's no such
+   * column.
+   */
+  public int indexOf(String name) {
+    return indexes.getOrDefault(name.toLowerCase(), 0);
+  }
+}
@@ -9,13 +9,31 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class to manage retrieving configuration parameters.
  */
 public class Config {
   private TomlParseResult config;
+  /**
+   * Values set in code, which take precedence over the file.
+   */
+  private final Map<String, Object> overrides = new HashMap<>();
+
+  /**
+   * Set a configuration value, overriding the file's, for things such as
+   * tests which need a setting other than the one in the file.
+   * @param path The TOML path of the value.
+   * @param value The value: a String, Long or Boolean.
+   * @return This Config.
+   */
+  public Config set(String path, Object value) {
+    overrides.put(path, value);
+    return this;
+  }
 
   /**
    * Get a configuration value.
@@ -23,9 +41,47 @@ public class Config {
    * @return The desired value as a String (other types not supported yet).
    */
   public String get(String path) {
+    if (overrides.containsKey(path)) {
+      return (String) overrides.get(path);
+    }
     return config.getString(path);
   }
 
+  /**
+   * Get a configuration value, falling back to a default if it isn't set.
+   * @param path The TOML path to the desired value.
+   * @param defaultValue The value to return if the path isn't set.
+   * @return The desired value as a String.
+   */
+  public String get(String path, String defaultValue) {
+    String value = get(path);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Get an integer configuration value, falling back to a default if it isn't
+   * set.
+   * @param path The TOML path to the desired value.
+   * @param defaultValue The value to return if the path isn't set.
+   * @return The desired value.
+   */
+  public long getLong(String path, long defaultValue) {
+    Long value = overrides.containsKey(path) ? (Long) overrides.get(path) : config.getLong(path);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Get a boolean configuration value, falling back to a default if it isn't
+   * set.
+   * @param path The TOML path to the desired value.
+   * @param defaultValue The value to return if the path isn't set.
+   * @return The desired value.
+   */
+  public boolean getBoolean(String path, boolean defaultValue) {
+    Boolean value = overrides.containsKey(path) ? (Boolean) overrides.get(path) : config.getBoolean(path);
+    return value == null ? defaultValue : value;
+  }
+
   /**
    * Initialize by finding a config file and loading settings.
    */
@@ -0,0 +1,16 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.SQLException;
+
+/**
+ * The database stayed locked by another connection or process, such as a
+ * task run from cron, for longer than we were willing to keep trying; see
+ * BusyRetry. Nothing is wrong with the operation itself, so it may work if
+ * tried again later.
+ */
+public class DBBusyException extends DBException {
+
+  public DBBusyException(String message, SQLException cause) {
+    super(message, cause);
+  }
+}
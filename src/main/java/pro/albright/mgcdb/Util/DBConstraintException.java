@@ -0,0 +1,14 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.SQLException;
+
+/**
+ * A write broke a constraint of the schema, such as a UNIQUE or foreign key
+ * constraint, and was rolled back.
+ */
+public class DBConstraintException extends DBException {
+
+  public DBConstraintException(String message, SQLException cause) {
+    super(message, cause);
+  }
+}
@@ -5,106 +5,381 @@ import org.sqlite.SQLiteConfig;
 import java.io.IOException;
 import java.sql.*;
 import java.io.File;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DBCxn {
 
-  private static Connection cxn;
-  private static String path;
-  private static Connection readOnlyCxn;
+  /**
+   * A unit of work to be performed against the writable connection.
+   *
+   * @param <T> The type of the result of the work.
+   */
+  public interface WriteJob<T> {
+    T run(Connection cxn) throws SQLException;
+  }
+
+  /**
+   * Creates an object from the current row of a ResultSet.
+   *
+   * @param <T> The type of the object.
+   */
+  public interface RowMapper<T> {
+    T map(ResultSet rs) throws SQLException;
+  }
 
-  public DBCxn(String path) {
-    this.path = path.replaceFirst("^~", System.getProperty("user.home"));
+  /**
+   * Does something with the current row of a ResultSet.
+   */
+  public interface RowCallback {
+    void handle(ResultSet rs) throws SQLException;
   }
 
+  private String path;
+  /**
+   * Whether the database is an in-memory one shared between connections.
+   */
+  private final boolean inMemory;
+  /**
+   * For an in-memory database, a connection which is kept open for as long as
+   * the database should exist; SQLite throws an in-memory database away as
+   * soon as the last connection to it is closed, which would otherwise happen
+   * whenever the writer and the read pool close theirs.
+   */
+  private Connection anchor;
+  private DBWriter writer;
+  private ReadCxnPool readPool;
+  private SQLitePragmas writerPragmas;
+  private SQLitePragmas readerPragmas;
+  private Checkpointer checkpointer;
+  private Backup backup;
+  private QueryStats queryStats;
+  private ResultCache resultCache;
+  private ChangeMonitor changeMonitor;
+  private BusyRetry busyRetry;
+  /**
+   * Bumped whenever we learn that something was committed to the database.
+   */
+  private final AtomicLong dataVersion = new AtomicLong();
+
   /**
-   * Init the writable connection.
+   * @param path The path to the database file, or a URI for a shared-cache
+   *             in-memory database such as
+   *             "file:mgcdb?mode=memory&cache=shared".
+   * @param config The configuration, for settings on how to manage the
+   *               connections.
+   */
+  public DBCxn(String path, Config config) {
+    inMemory = isInMemory(path);
+    this.path = inMemory ? path : path.replaceFirst("^~", System.getProperty("user.home"));
+    writerPragmas = new SQLitePragmas(config, "writer");
+    readerPragmas = new SQLitePragmas(config, "reader");
+
+    DBWriter.Mode writerMode = DBWriter.Mode.PERSISTENT;
+    String writerModeStr = config.get("db.writer_mode", "persistent");
+    if (writerModeStr.equals("cli")) {
+      writerMode = DBWriter.Mode.CLI;
+    }
+    else if (!writerModeStr.equals("persistent")) {
+      System.err.printf("Unknown db.writer_mode value \"%s\"; using \"persistent\".%n", writerModeStr);
+    }
+    int statementCacheSize = (int) config.getLong("db.statement_cache_size", 64);
+    busyRetry = new BusyRetry(
+      config.getLong("db.busy_retry_base_ms", 10),
+      config.getLong("db.busy_retry_max_ms", 1000),
+      config.getLong("db.busy_retry_deadline_ms", 30000)
+    );
+    writer = new DBWriter(
+      this,
+      writerMode,
+      config.getLong("db.group_commit_window_ms", 2),
+      (int) config.getLong("db.group_commit_max_writes", 500),
+      statementCacheSize,
+      busyRetry
+    );
+    readPool = new ReadCxnPool(
+      this,
+      (int) config.getLong("db.read_pool_size", 4),
+      config.getLong("db.read_pool_timeout_ms", 10000),
+      statementCacheSize
+    );
+    checkpointer = new Checkpointer(
+      this,
+      this.path,
+      config.getLong("db.checkpoint_interval_ms", 10000),
+      config.getLong("db.checkpoint_wal_size_threshold", 67108864),
+      (int) config.getLong("db.checkpoint_max_deferrals", 6)
+    );
+    backup = new Backup(
+      this,
+      config.get("backup.path", "").replaceFirst("^~", System.getProperty("user.home")),
+      TimeUnit.MINUTES.toMillis(config.getLong("backup.interval_minutes", 1440))
+    );
+    queryStats = new QueryStats(this, config.getLong("db.slow_query_ms", 100));
+    resultCache = new ResultCache(
+      (int) config.getLong("db.result_cache_entries", 0),
+      config.getLong("db.result_cache_bytes", 16777216),
+      config.getLong("db.result_cache_max_age_ms", 60000)
+    );
+    changeMonitor = new ChangeMonitor(this, config.getLong("db.result_cache_check_ms", 1000));
+  }
+
+  /**
+   * Open a writable connection.
+   *
+   * This should only be called by the writer thread, which owns the writable
+   * connection; everything else should pass work to it with doWrite(). By
+   * default the writer keeps this connection open for the life of the process,
+   * but if db.writer_mode is set to "cli" it will close it after every
+   * transaction. That's a lot slower, but it allows other processes (such as
+   * the `sqlite` CLI tool) to access the database without it being locked.
    *
-   * The writable connection is inefficiently closed after every query, but
-   * this allows for other processes (such as the `sqlite` CLI tool to access
-   * the database without it being locked.
+   * @return The new connection.
+   * @throws SQLException If the connection couldn't be opened.
    */
-  protected void init() {
+  Connection openWritableCxn() throws SQLException {
+    openAnchor();
+    SQLiteConfig config = new SQLiteConfig();
+    // Setting this journal mode allows us to have both a writable and a
+    // read-only connection at the same time without encountering locking
+    // issues
+    // https://www.sqlite.org/wal.html
+    //
+    config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+    config.enforceForeignKeys(true);
+    // Take the write lock when a transaction starts rather than at its first
+    // write, so a transaction which reads before it writes can't fail to
+    // upgrade its lock halfway through.
+    config.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+    writerPragmas.applyTo(config);
     try {
-      SQLiteConfig config = new SQLiteConfig();
-      // Setting this journal mode allows us to have both a writable and a
-      // read-only connection at the same time without encountering locking
-      // issues
-      // https://www.sqlite.org/wal.html
-      //
-      config.setJournalMode(SQLiteConfig.JournalMode.WAL);
-      config.enforceForeignKeys(true);
-      cxn = config.createConnection("jdbc:sqlite:" + path);
-      cxn.setAutoCommit(false);
+      Connection cxn = config.createConnection("jdbc:sqlite:" + path);
+      writerPragmas.applyTo(cxn);
+      return cxn;
     }
     catch (SQLException e) {
       System.err.println("Error when opening database file at " + path + ": " + e.getMessage());
-      e.printStackTrace();
-      System.exit(StatusCodes.NO_DB_FILE);
+      throw e;
     }
   }
 
   /**
-   * Init the read-only connection.
+   * Open a read-only connection.
    *
-   * Using this connection for read-only queries avoids the database being
-   * locked.
+   * These are handed out by the read connection pool; use doSelectQuery()
+   * rather than calling this directly.
+   *
+   * @return The new connection.
+   * @throws SQLException If the connection couldn't be opened.
    */
-  protected void initReadOnlyCxn() {
-    try {
-      if (readOnlyCxn != null && !readOnlyCxn.isClosed()) {
-        readOnlyCxn.close();
-      }
-      SQLiteConfig sqLiteConfig = new SQLiteConfig();
-      sqLiteConfig.setReadOnly(true);
-      sqLiteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
-      readOnlyCxn = sqLiteConfig.createConnection("jdbc:sqlite:" + path);
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.NO_DB_FILE);
+  Connection openReadOnlyCxn() throws SQLException {
+    openAnchor();
+    SQLiteConfig sqLiteConfig = new SQLiteConfig();
+    sqLiteConfig.setReadOnly(true);
+    sqLiteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+    if (inMemory) {
+      // In-memory databases can't use WAL mode, and connections sharing a
+      // cache lock each other out table by table, failing straight away
+      // rather than waiting. Reading uncommitted data keeps readers from
+      // taking those locks, so they don't fail while a write is under way.
+      sqLiteConfig.setReadUncommited(true);
     }
+    readerPragmas.applyTo(sqLiteConfig);
+    Connection cxn = sqLiteConfig.createConnection("jdbc:sqlite:" + path);
+    readerPragmas.applyTo(cxn);
+    return cxn;
   }
 
   /**
-   * Return the writable connection.
+   * Perform some work against the writable connection.
+   *
+   * The work is passed to the writer thread and may be committed in the same
+   * transaction as other writes which arrive at around the same time. This
+   * method doesn't return until that transaction has been committed.
    *
-   * @return The database connection.
+   * There's no telling what the work changes, so every cached query result
+   * is treated as stale afterwards; see ResultCache.
+   *
+   * @param job The work to perform.
+   * @param <T> The type of the result of the work.
+   * @return The result of the work.
+   * @throws SQLException If the work or its commit failed.
    */
-  protected Connection getCxn() {
+  public <T> T doWrite(WriteJob<T> job) throws SQLException {
+    return doWrite(job, false);
+  }
+
+  /**
+   * Perform some work against the writable connection, optionally with
+   * foreign key enforcement turned off.
+   *
+   * @param job The work to perform.
+   * @param foreignKeysOff Whether foreign key enforcement should be turned off
+   *                       while doing so. If it is, the work gets a
+   *                       transaction to itself, which is rolled back if it
+   *                       leaves any foreign key violations behind.
+   * @param <T> The type of the result of the work.
+   * @return The result of the work.
+   * @throws SQLException If the work or its commit failed.
+   */
+  <T> T doWrite(WriteJob<T> job, boolean foreignKeysOff) throws SQLException {
+    return writer.submit(cxn -> {
+      resultCache.noteWriteToAll();
+      return job.run(cxn);
+    }, foreignKeysOff);
+  }
+
+  /**
+   * Perform several queries as a single transaction.
+   *
+   * The work is run on the writer thread in a transaction which takes the
+   * write lock up front (BEGIN IMMEDIATE). Any queries made through this
+   * DBCxn from within the work, reads included, use that same connection, so
+   * the work sees its own changes and nothing else can change the data out
+   * from under it. Everything is committed once the work returns, or rolled
+   * back if it throws.
+   *
+   * The write lock is held the whole time, so don't do anything slow, such as
+   * talking to Steam, within the work; do that first.
+   *
+   * Make changes with query() or batch() rather than through the connection
+   * passed to the work, or the result cache won't know about them.
+   *
+   * If another process has the database locked, the transaction is rolled
+   * back and the work run again, so it shouldn't change anything but the
+   * database.
+   *
+   * @param work The work to perform.
+   * @param <T> The type of the result of the work.
+   * @return The result of the work.
+   * @throws DBException If the work or its commit failed.
+   */
+  public <T> T inTransaction(WriteJob<T> work) {
     try {
-      if (cxn == null || !cxn.isValid(5)) {
-        init();
-      }
+      return writer.submit(work);
     }
     catch (SQLException e) {
-      System.err.println("Error when validating connection to file at " + path + ": " + e.getMessage());
-      System.exit(StatusCodes.NO_DB_FILE);
+      throw DBException.from(e, null);
     }
-    return cxn;
   }
 
   /**
-   * Return the read-only connection.
+   * Run an action once the changes made so far have been committed, such as
+   * bringing something kept in memory into line with them.
+   *
+   * Within inTransaction() or doWrite(), that's once the transaction is
+   * committed, on the writer thread, before the caller is let go. If it's
+   * rolled back, the action is dropped, and if it's tried again, only the
+   * actions left by the run that's committed are run. Anywhere else, the
+   * changes have been committed already, so the action is run straight away.
+   *
+   * @param action The action. It should be quick, and not write anything.
+   */
+  public void afterCommit(Runnable action) {
+    writer.afterCommit(action);
+  }
+
+  /**
+   * Get a number which changes whenever something is committed to the
+   * database, whether by this process or another one.
    *
-   * @return The database connection.
+   * This lets things which hold on to data from the database cheaply tell if
+   * it might be out of date: if the number is the same as the last time they
+   * looked, nothing has changed since.
+   *
+   * @return The current data version.
+   * @throws DBException If the database couldn't be checked.
    */
-  protected Connection getReadOnlyCxn() {
+  public long getDataVersion() {
     try {
-      if (readOnlyCxn == null || !readOnlyCxn.isValid(1)) {
-        initReadOnlyCxn();
-      }
+      ReadCxnPool.PooledCxn pooled = readPool.borrow();
+      readPool.release(pooled);
     }
     catch (SQLException e) {
-      System.err.println("Error when validating connection to file at " + path + ": " + e.getMessage());
-      System.exit(StatusCodes.NO_DB_FILE);
+      throw DBException.from(e, null);
     }
-    return readOnlyCxn;
+    return dataVersion.get();
+  }
+
+  /**
+   * Start checkpointing the write-ahead log in the background.
+   *
+   * This is for the web daemon, which is always reading and so may otherwise
+   * keep the WAL from ever being reset; see Checkpointer.
+   */
+  public void startCheckpointer() {
+    // In-memory databases have no WAL.
+    if (!inMemory) {
+      checkpointer.start();
+    }
+  }
+
+  Checkpointer getCheckpointer() {
+    return checkpointer;
+  }
+
+  /**
+   * Start backing up the database on a schedule, if backup.path is set.
+   */
+  public void startScheduledBackups() {
+    backup.start();
+  }
+
+  /**
+   * Back up the database to another file without stopping anything else
+   * which is using it; see Backup.
+   *
+   * @param destPath The path to write the backup to.
+   * @return The outcome.
+   * @throws SQLException If the database couldn't be read or the backup
+   *                      couldn't be written.
+   * @throws IOException If the backup couldn't be moved into place.
+   */
+  Backup.Result backup(String destPath) throws SQLException, IOException {
+    return backup.copyTo(destPath);
+  }
+
+  /**
+   * @return Whether nothing is currently reading from or waiting to write to
+   * the database through this DBCxn.
+   */
+  boolean isQuiet() {
+    return readPool.getInUse() == 0 && writer.isIdle();
+  }
+
+  /**
+   * Note that something has been committed to the database.
+   */
+  void noteDataChanged() {
+    dataVersion.incrementAndGet();
+  }
+
+  /**
+   * Note that the writer has committed a transaction.
+   */
+  void noteCommitted() {
+    noteDataChanged();
+    changeMonitor.noteOwnCommit();
+  }
+
+  /**
+   * Note that another process has committed something, which may have been
+   * to any table.
+   */
+  void noteExternalChange() {
+    noteDataChanged();
+    resultCache.noteWriteFromElsewhere();
+  }
+
+  /**
+   * Note that the writer's transaction has been committed or rolled back.
+   */
+  void noteTransactionEnded() {
+    resultCache.noteTransactionEnded();
+  }
+
+  ResultCache getResultCache() {
+    return resultCache;
   }
 
   /**
@@ -119,6 +394,10 @@ public class DBCxn {
       delete();
     }
 
+    if (inMemory) {
+      openAnchor();
+      return;
+    }
     File dbFile = new File(path);
     if (!dbFile.exists()) {
       try {
@@ -132,22 +411,13 @@ public class DBCxn {
   }
 
   /**
-   * Delete the database file.
+   * Delete the database file, or discard the in-memory database.
    */
   public void delete() {
-    try {
-      if (cxn != null && !cxn.isClosed()) {
-        cxn.close();
-      }
-      if (readOnlyCxn != null && !readOnlyCxn.isClosed()) {
-        readOnlyCxn.close();
-      }
-    }
-    catch (Exception e) {
-      e.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    close();
+    if (inMemory) {
+      return;
     }
-
     File dbFile = new File(path);
     if (dbFile.exists()) {
       dbFile.delete();
@@ -155,66 +425,153 @@ public class DBCxn {
   }
 
   /**
-   * Parse a timestamp.
+   * Close the database connections, after any queued writes are committed.
    *
-   * Resultset's .getDate() method doesn't work, apparently because SQLite
-   * doesn't have real date/datetime field types.
+   * An in-memory database is discarded once no connection to it is left
+   * open, so for one this throws away its data unless something else is
+   * still connected to it.
+   */
+  public void close() {
+    queryStats.stop();
+    backup.stop();
+    checkpointer.stop();
+    writer.close();
+    readPool.close();
+    changeMonitor.close();
+    closeAnchor();
+  }
+
+  /**
+   * @return Whether anything has been written to the database yet; a new,
+   * empty file can't be opened read-only, as WAL mode can't be set on it. An
+   * in-memory database is assumed to have been.
+   */
+  boolean exists() {
+    return inMemory || new File(path).length() > 0;
+  }
+
+  /**
+   * @return Whether the database is an in-memory one.
+   */
+  public boolean isInMemory() {
+    return inMemory;
+  }
+
+  /**
+   * Check whether a database location is a URI for an in-memory database.
    *
-   * @param timestamp The timestamp.
-   * @return A Date object.
+   * @param path The path or URI.
+   * @return Whether it's for an in-memory database.
    */
-  public Date parseTimestamp(String timestamp) {
-    DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    Date date = null;
-    try {
-      date = format.parse(timestamp);
-    }
-    catch (ParseException e) {
-      System.err.printf("Error parsing timestamp %s%n", timestamp);
-    }
-    return date;
+  static boolean isInMemory(String path) {
+    return path.startsWith("file:") && path.matches("[^?]*\\?(.*&)?mode=memory(&.*)?");
   }
 
   /**
-   * Perform an insert query and return the ID of the inserted row.
+   * Open the connection which keeps an in-memory database from being thrown
+   * away, if it isn't already.
    *
-   * @param query The query.
-   * @param parameters Parameters. See prepareStatement() for more.
-   * @return The ID of the inserted row.
+   * @throws SQLException If the connection couldn't be opened.
    */
-  public int doInsertQuery(String query, Map<Integer, Object> parameters) {
-    return doInsertOrUpdateQuery(query, parameters, true);
+  private synchronized void openAnchor() throws SQLException {
+    if (inMemory && (anchor == null || anchor.isClosed())) {
+      anchor = DriverManager.getConnection("jdbc:sqlite:" + path);
+    }
+  }
+
+  private synchronized void closeAnchor() {
+    if (anchor == null) {
+      return;
+    }
+    try {
+      anchor.close();
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    anchor = null;
   }
 
   /**
-   * Perform an update query.
+   * Start building a query.
    *
-   * @param query The query.
-   * @param parameters Parameters. See prepareStatement() for more.
+   * Bind any parameters to the returned Query in order, then run it with one
+   * of its insert(), update(), select() or singleInt() methods.
+   *
+   * @param sql The SQL of the query.
+   * @return The query.
    */
-  public void doUpdateQuery(String query, Map<Integer, Object> parameters) {
-    doInsertOrUpdateQuery(query, parameters, false);
+  public Query query(String sql) {
+    return new Query(this, sql);
   }
 
   /**
    * Perform a select query and return the resulting ResultSet.
    *
+   * The query runs on a connection borrowed from the read-only connection
+   * pool, which is given back once the ResultSet has been read to the end or
+   * closed. Callers which don't read every row must close the ResultSet (eg,
+   * with try-with-resources) or the pool will run dry. Within a transaction,
+   * the query runs on the transaction's connection instead.
+   *
+   * If another process has the database locked, the query is tried again
+   * for a while; see BusyRetry.
+   *
    * @param query The query.
-   * @param parameters Parameters. See prepareStatement() for more.
    * @return The resulting ResultSet.
+   * @throws DBException If the query failed.
    */
-  public ResultSet doSelectQuery(String query, Map<Integer, Object> parameters) {
-    Connection roCxn = getReadOnlyCxn();
-    PreparedStatement stmt = prepareStatement(query, parameters, roCxn);
-    ResultSet rs = null;
+  ResultSet doSelectQuery(Query query) {
+    // Within a transaction, the result may include uncommitted changes, so
+    // it mustn't be cached.
+    if (query.isCached() && resultCache.isEnabled() && !writer.isWriterThread()) {
+      try {
+        changeMonitor.check();
+        return resultCache.select(query, this::doUncachedSelectQuery);
+      }
+      catch (SQLException e) {
+        throw DBException.from(e, query.getSql());
+      }
+    }
+    return doUncachedSelectQuery(query);
+  }
+
+  private ResultSet doUncachedSelectQuery(Query query) {
+    if (writer.isWriterThread()) {
+      // We're within inTransaction() or doWrite(), so read from the writable
+      // connection to see the transaction's own changes. The transaction
+      // holds the write lock, so there's no point retrying here; if it's
+      // locked out, the writer retries the whole transaction.
+      try {
+        long start = System.nanoTime();
+        ResultSet writerRs = prepareStatement(query, writer.getStatements()).executeQuery();
+        long executeNanos = System.nanoTime() - start;
+        return PooledResultSet.wrap(writerRs, (rows, nanos) -> recordQuery(query, executeNanos + nanos, rows, 0));
+      }
+      catch (SQLException e) {
+        throw DBException.from(e, query.getSql());
+      }
+    }
     try {
-      rs = stmt.executeQuery();
+      long borrowStart = System.nanoTime();
+      ReadCxnPool.PooledCxn pooled = readPool.borrow();
+      long start = System.nanoTime();
+      try {
+        ResultSet pooledRs = busyRetry.run("read", () -> prepareStatement(query, pooled.getStatements()).executeQuery());
+        long executeNanos = System.nanoTime() - start;
+        return PooledResultSet.wrap(pooledRs, (rows, nanos) -> {
+          readPool.release(pooled);
+          recordQuery(query, executeNanos + nanos, rows, start - borrowStart);
+        });
+      }
+      catch (SQLException | RuntimeException e) {
+        readPool.release(pooled);
+        throw e;
+      }
     }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    catch (SQLException e) {
+      throw DBException.from(e, query.getSql());
     }
-    return rs;
   }
 
   /**
@@ -222,20 +579,18 @@ public class DBCxn {
    * for example, a SELECT COUNT(*)… query.
    *
    * @param query The query.
-   * @param parameters Parameters. See prepareStatement() for more.
    * @return The resulting integer.
+   * @throws DBException If the query failed.
    */
-  public int getSingleIntResult(String query, Map<Integer, Object> parameters) {
-    ResultSet rs = doSelectQuery(query, parameters);
+  int getSingleIntResult(Query query) {
     int count = 0;
-    try {
+    try (ResultSet rs = doSelectQuery(query)) {
       if (rs.next()) {
         count = rs.getInt(1);
       }
     }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    catch (SQLException e) {
+      throw DBException.from(e, query.getSql());
     }
     return count;
   }
@@ -244,172 +599,139 @@ public class DBCxn {
    * Generalized method to do an insert or update query.
    *
    * @param query The query.
-   * @param parameters Parameters. See prepareStatement() for more.
    * @param returnGeneratedKey If true, the ID of the inserted row will be
    *                           retrieved after the query and returned.
    * @return The ID of the inserted row if requested; 0 otherwise.
+   * @throws DBException If the query failed.
    */
-  protected int doInsertOrUpdateQuery(String query, Map<Integer, Object> parameters, boolean returnGeneratedKey) {
-    Connection cxn = getCxn();
-    PreparedStatement stmt = prepareStatement(query, parameters, cxn);
-    ResultSet rs = null;
-    int returnId = 0;
+  int doInsertOrUpdateQuery(Query query, boolean returnGeneratedKey) {
+    long submitted = System.nanoTime();
     try {
-      stmt.executeUpdate();
-      if (returnGeneratedKey) {
-        rs = stmt.getGeneratedKeys();
-        if (rs.next()) {
-          returnId = rs.getInt(1);
+      return writer.submit(cxn -> {
+        long start = System.nanoTime();
+        int generatedId = 0;
+        PreparedStatement stmt = prepareStatement(query, writer.getStatements());
+        resultCache.noteWrite(query.getSql(), cxn);
+        int changed = stmt.executeUpdate();
+        if (returnGeneratedKey) {
+          ResultSet rs = stmt.getGeneratedKeys();
+          if (rs.next()) {
+            generatedId = rs.getInt(1);
+          }
+          rs.close();
         }
-        rs.close();
-      }
-      stmt.close();
-      cxn.commit();
-      cxn.close();
-      // The changes will not be readable by the read-only connection until it
-      // is closed.
-      getReadOnlyCxn().close();
+        recordQuery(query, System.nanoTime() - start, changed, start - submitted);
+        return generatedId;
+      });
     }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    catch (SQLException e) {
+      throw DBException.from(e, query.getSql());
     }
-    return returnId;
   }
 
   /**
-   * Prepare a query.
+   * Start building a batch of queries.
    *
-   * @param query The query.
-   * @param parameters A Map<Integer, Object> of parameters for the query.
-   *                   Currently we expect Object to be one of the following:
-   *                   - int
-   *                   - long
-   *                   - String
-   * @param cxn The connection to prepare the query against.
-   * @return A PreparedStatement generated from the query and parameters.
-   */
-  protected PreparedStatement prepareStatement(String query, Map<Integer, Object> parameters, Connection cxn) {
-    PreparedStatement stmt = null;
+   * Add a row of parameters to the returned Batch for each time the query
+   * should be run, then run them all with its insert() or update() method.
+   *
+   * @param sql The SQL of the query.
+   * @return The batch.
+   */
+  public Batch batch(String sql) {
+    return new Batch(this, sql);
+  }
+
+  /**
+   * Run every row of a batch in a single transaction.
+   *
+   * @param batch The batch.
+   * @param returnGeneratedKeys If true, the IDs of the inserted rows will be
+   *                            retrieved and returned.
+   * @return The IDs of the inserted rows if requested; an empty array
+   * otherwise.
+   * @throws DBException If any row failed, in which case none are kept.
+   */
+  int[] doBatchQuery(Batch batch, boolean returnGeneratedKeys) {
+    if (batch.size() == 0) {
+      return new int[0];
+    }
+    long submitted = System.nanoTime();
     try {
-      if (query.toLowerCase().startsWith("insert ")) {
-        stmt = cxn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-      }
-      else {
-        stmt = cxn.prepareStatement(query);
-      }
-      if (parameters != null) {
-        for (Integer index : parameters.keySet()) {
-          Object value = parameters.get(index);
-          Class paramClass = value.getClass();
-          // Apparently we can't do a switch statement with a class.
-          if (paramClass == Integer.class) {
-            stmt.setInt(index, (Integer) value);
-          }
-          else if (paramClass == Long.class) {
-            stmt.setLong(index, (Long) value);
-          }
-          else {
-            stmt.setString(index, value.toString());
+      return writer.submit(cxn -> {
+        long start = System.nanoTime();
+        PreparedStatement stmt = writer.getStatements().prepare(batch.getSql());
+        resultCache.noteWrite(batch.getSql(), cxn);
+        if (returnGeneratedKeys) {
+          // The driver only reports the key of the last row of an
+          // executeBatch(), so run the rows one at a time instead. They're
+          // still all in the one transaction, which is where the time goes.
+          int[] generatedIds = new int[batch.size()];
+          int idx = 0;
+          for (Query row : batch.getRows()) {
+            row.bindTo(stmt);
+            stmt.executeUpdate();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+              if (rs.next()) {
+                generatedIds[idx] = rs.getInt(1);
+              }
+            }
+            idx++;
           }
+          recordBatch(batch, start, submitted);
+          return generatedIds;
         }
-      }
+        for (Query row : batch.getRows()) {
+          row.bindTo(stmt);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+        recordBatch(batch, start, submitted);
+        return new int[0];
+      });
     }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    catch (SQLException e) {
+      throw DBException.from(e, batch.getSql());
     }
-    return stmt;
   }
 
   /**
-   * Initialize the database by executing the table creation queries.
+   * @return The timing statistics for the queries run through this DBCxn.
    */
-  public void initializeDb() {
-    Statement stmt = null;
-    try {
-      Connection cxn = getCxn();
-      stmt = cxn.createStatement();
-      Map<String, String> commands = getCurrentCreateQueries();
-
-      stmt.addBatch(commands.get("createGamesQuery"));
-      stmt.addBatch(commands.get("createGamesTriggerQuery"));
-
-      stmt.addBatch(commands.get("createUsersQuery"));
-      stmt.addBatch(commands.get("createUsersTriggerQuery"));
+  public QueryStats getQueryStats() {
+    return queryStats;
+  }
 
-      stmt.addBatch(commands.get("createOwnershipQuery"));
+  private void recordQuery(Query query, long nanos, long rows, long waitNanos) {
+    queryStats.record(query, TimeUnit.NANOSECONDS.toMicros(nanos), rows, TimeUnit.NANOSECONDS.toMicros(waitNanos));
+  }
 
-      stmt.addBatch(commands.get("createVotesQuery"));
+  private void recordBatch(Batch batch, long start, long submitted) {
+    long now = System.nanoTime();
+    queryStats.record(batch, TimeUnit.NANOSECONDS.toMicros(now - start), TimeUnit.NANOSECONDS.toMicros(start - submitted));
+  }
 
-      stmt.executeBatch();
-      cxn.commit();
-    }
-    catch (SQLException throwables) {
-      throwables.printStackTrace();
-      System.exit(StatusCodes.GENERAL_SQL_ERROR);
-    }
+  /**
+   * Prepare a query, or fetch it from a connection's prepared statement
+   * cache, and bind its parameters to it.
+   *
+   * @param query The query.
+   * @param statements The statement cache of the connection to prepare the
+   *                   query against.
+   * @return A PreparedStatement generated from the query and parameters. It
+   * belongs to the cache, so it must not be closed.
+   * @throws SQLException If the query couldn't be prepared or bound.
+   */
+  protected PreparedStatement prepareStatement(Query query, StatementCache statements) throws SQLException {
+    PreparedStatement stmt = statements.prepare(query.getSql());
+    query.bindTo(stmt);
+    return stmt;
   }
 
   /**
-   * Returns SQL commands to create the current state of the DB tables.
-   * @return SQL commands in a Map<String, String>.
-   */
-  public Map<String, String> getCurrentCreateQueries() {
-    Map<String, String> commands = new HashMap<>();
-    commands.put("createGamesQuery", "CREATE TABLE IF NOT EXISTS games ( " +
-      // Note that id has to be an INTEGER, not UNSIGNED INTEGER, in order for
-      // it to be a proper alias for the SQLite rowid.
-      // https://www.sqlite.org/lang_createtable.html#rowid
-      "game_id INTEGER PRIMARY KEY, " +
-      "steam_id INTEGER UNIQUE, " +
-      // SQLite does not actually enforce field character lengths but I'm gonna
-      // use them anyway
-      "title VARCHAR(255) NOT NULL DEFAULT '', " +
-      // Game.GamePropStatus enum - Mac compatibility
-      "mac INTEGER NOT NULL DEFAULT 0, " +
-      // Game.GamePropStatus enum - 64-bit Intel (Catalina) compatibility
-      "sixtyfour INTEGER NOT NULL DEFAULT 0, " +
-      // Game.GamePropStatus enum - Apple Silicon compatibility
-      "silicon INTEGER NOT NULL DEFAULT 0, " +
-      "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
-      "updated TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
-      "steam_release TEXT DEFAULT '0000-01-01', " +
-      "steam_updated TEXT NOT NULL DEFAULT '0000-01-01 00:00:00')");
-    commands.put("createGamesTriggerQuery", "CREATE TRIGGER IF NOT EXISTS update_games " +
-      "AFTER UPDATE ON games FOR EACH ROW BEGIN " +
-      "UPDATE games SET updated = CURRENT_TIMESTAMP WHERE game_id = OLD.game_id; " +
-      "END;");
-
-    commands.put("createUsersQuery", "CREATE TABLE IF NOT EXISTS users ( " +
-      "user_id INTEGER PRIMARY KEY, " +
-      "steam_user_id INTEGER UNIQUE, " +
-      "nickname VARCHAR(255) NOT NULL DEFAULT '', " +
-      "avatar_hash VARCHAR(255) NOT NULL DEFAULT '', " +
-      "last_auth TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
-      "last_game_synch TEXT NOT NULL DEFAULT '0000-01-01 00:00:00', " +
-      "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
-      "updated TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)");
-    commands.put("createUsersTriggerQuery", "CREATE TRIGGER IF NOT EXISTS update_users " +
-      "AFTER UPDATE ON users FOR EACH ROW BEGIN " +
-      "UPDATE users SET updated = CURRENT_TIMESTAMP WHERE user_id = OLD.user_id; " +
-      "END;");
-
-    commands.put("createOwnershipQuery", "CREATE TABLE IF NOT EXISTS ownership (" +
-      "ownership_id INTEGER PRIMARY KEY, " +
-      "user_id INTEGER NOT NULL REFERENCES users(user_id) ON DELETE CASCADE, " +
-      "game_id INTEGER NOT NULL REFERENCES games(game_id) ON DELETE CASCADE, " +
-      "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)");
-
-    // Note that we do not make ownership_id UNIQUE because in the future there
-    // may be more than one type of vote (in which case a "type" column will
-    // need to be added).
-    commands.put("createVotesQuery", "CREATE TABLE IF NOT EXISTS votes (" +
-      "vote_id INTEGER PRIMARY KEY, " +
-      "ownership_id INTEGER NOT NULL REFERENCES ownership(ownership_id) ON DELETE CASCADE, " +
-      "vote INTEGER NOT NULL, " +
-      "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)");
-
-    return commands;
+   * Initialize the database by applying all schema migrations.
+   */
+  public void initializeDb() {
+    new Migrations(this).applyAll();
   }
 }
@@ -0,0 +1,82 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.SQLException;
+
+/**
+ * A query or other database operation failed.
+ *
+ * DBCxn and Query throw this rather than the SQLException which caused it, so
+ * that every caller doesn't have to catch it; most can't do anything about a
+ * failed query but give up, and it's left to whatever is at the top (the web
+ * daemon's exception handlers, or App when running a task) to report it.
+ * Failures which a caller might want to handle have subclasses of their own.
+ */
+public class DBException extends RuntimeException {
+
+  // Primary SQLite result codes; the driver reports them as the
+  // SQLException's error code.
+  static final int SQLITE_BUSY = 5;
+  static final int SQLITE_LOCKED = 6;
+  static final int SQLITE_CONSTRAINT = 19;
+
+  private final int resultCode;
+
+  /**
+   * @param message The message.
+   * @param cause The SQLException which caused the failure.
+   */
+  public DBException(String message, SQLException cause) {
+    super(message, cause);
+    this.resultCode = cause == null ? 0 : cause.getErrorCode();
+  }
+
+  /**
+   * @return The primary SQLite result code of the failure, such as 19 for
+   * SQLITE_CONSTRAINT, or 0 if it didn't come from SQLite.
+   */
+  public int getResultCode() {
+    return resultCode;
+  }
+
+  /**
+   * Wrap a SQLException in the DBException which fits it best.
+   *
+   * @param e The SQLException.
+   * @param sql The SQL being run when it happened, if any.
+   * @return The DBException.
+   */
+  static DBException from(SQLException e, String sql) {
+    String message = sql == null ? e.getMessage() : e.getMessage() + " (in " + sql + ")";
+    if (isBusy(e)) {
+      return new DBBusyException(message, e);
+    }
+    if (e.getErrorCode() == SQLITE_CONSTRAINT) {
+      return new DBConstraintException(message, e);
+    }
+    return new DBException(message, e);
+  }
+
+  /**
+   * Check whether a failure was only down to another connection or process
+   * holding a lock on the database (SQLITE_BUSY or SQLITE_LOCKED), so that
+   * trying again later may well work.
+   *
+   * @param e The failure. Its causes are checked too, so that a SQLException
+   *          wrapped in a DBException by a query within a transaction counts.
+   * @return Whether it was lock contention.
+   */
+  static boolean isBusy(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof DBBusyException) {
+        return true;
+      }
+      if (cause instanceof SQLException) {
+        int code = ((SQLException) cause).getErrorCode();
+        if (code == SQLITE_BUSY || code == SQLITE_LOCKED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
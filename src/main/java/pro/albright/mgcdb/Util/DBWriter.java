@@ -0,0 +1,518 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single writer thread which owns the writable database connection.
+ *
+ * SQLite only allows one writer at a time anyway, so rather than have every
+ * thread fight over the write lock, writes are put in a queue and performed
+ * by this thread. Writes which arrive within a short window of each other are
+ * performed in the same transaction ("group commit"), so a burst of writes
+ * costs one lock acquisition and one fsync instead of one per write. A write
+ * with nothing queued behind it is committed straight away, so writes made
+ * one after another don't wait out the window each time. The
+ * caller still waits until its write has been committed, so it can rely on
+ * reading it back straight away.
+ */
+class DBWriter implements Runnable {
+
+  /**
+   * How the writable connection is managed between transactions.
+   */
+  enum Mode {
+    // Keep the connection open for the life of the process.
+    PERSISTENT,
+    // Close the connection after every transaction so that other processes
+    // (such as the `sqlite3` CLI tool) can get at the database.
+    CLI
+  }
+
+  /**
+   * A write waiting in the queue, and the future its caller is waiting on.
+   */
+  private static class PendingWrite<T> {
+    private final DBCxn.WriteJob<T> job;
+    private final boolean foreignKeysOff;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    private T result;
+    private Throwable error;
+
+    private PendingWrite(DBCxn.WriteJob<T> job, boolean foreignKeysOff) {
+      this.job = job;
+      this.foreignKeysOff = foreignKeysOff;
+    }
+
+    private void run(Connection cxn) throws SQLException {
+      result = job.run(cxn);
+    }
+
+    private void complete() {
+      if (error != null) {
+        future.completeExceptionally(error);
+      }
+      else {
+        future.complete(result);
+      }
+    }
+  }
+
+  /**
+   * Queued item telling the writer thread to close its connection and stop.
+   */
+  private static final PendingWrite<Void> SHUTDOWN = new PendingWrite<>(cxn -> null, false);
+
+  private final DBCxn dbCxn;
+  private final Mode mode;
+  private final long windowNanos;
+  private final int maxWrites;
+  private final int statementCacheSize;
+  private final BusyRetry busyRetry;
+  private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+  private Thread thread;
+  private Connection cxn;
+  private StatementCache statements;
+  /**
+   * The writable connection's PRAGMA data_version before the last
+   * transaction, or -1 if it hasn't been read since the connection was
+   * opened. Our own commits don't change it, so any change is another
+   * process's doing.
+   */
+  private long dataVersion = -1;
+  /**
+   * A write taken from the queue which has to wait for the next transaction.
+   */
+  private PendingWrite<?> carried;
+  /**
+   * The write being run on the writer thread, if any.
+   */
+  private PendingWrite<?> running;
+
+  /**
+   * @param dbCxn The DBCxn to get the writable connection from.
+   * @param mode How to manage the connection between transactions.
+   * @param windowMillis How long to wait for more writes before committing,
+   *                     when others are already queued.
+   * @param maxWrites The most writes to put in one transaction.
+   * @param statementCacheSize How many prepared statements to cache for the
+   *                           writable connection.
+   * @param busyRetry How to retry a transaction which fails because another
+   *                  process has the database locked.
+   */
+  DBWriter(DBCxn dbCxn, Mode mode, long windowMillis, int maxWrites, int statementCacheSize, BusyRetry busyRetry) {
+    this.dbCxn = dbCxn;
+    this.mode = mode;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxWrites = Math.max(1, maxWrites);
+    this.statementCacheSize = statementCacheSize;
+    this.busyRetry = busyRetry;
+  }
+
+  /**
+   * @return Whether the current thread is the writer thread; that is, whether
+   * we're within a job passed to submit().
+   */
+  boolean isWriterThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * @return Whether there are no writes waiting to be performed.
+   */
+  boolean isIdle() {
+    return queue.isEmpty() && carried == null;
+  }
+
+  /**
+   * Get the prepared statement cache for the writable connection.
+   *
+   * This may only be used from the writer thread; that is, from within a
+   * job passed to submit().
+   *
+   * @return The statement cache.
+   */
+  StatementCache getStatements() {
+    if (!isWriterThread()) {
+      throw new IllegalStateException("The writable connection's statements may only be used from the writer thread");
+    }
+    return statements;
+  }
+
+  /**
+   * Perform a write and wait for it to be committed.
+   *
+   * If this is called from within another write (that is, from the writer
+   * thread itself), the job is run right away as part of the current
+   * transaction.
+   *
+   * @param job The write to perform.
+   * @param <T> The type of the job's result.
+   * @return The result of the job.
+   * @throws SQLException If the write or its commit failed.
+   */
+  <T> T submit(DBCxn.WriteJob<T> job) throws SQLException {
+    return submit(job, false);
+  }
+
+  /**
+   * Perform a write and wait for it to be committed, optionally with foreign
+   * key enforcement turned off.
+   *
+   * SQLite ignores attempts to change foreign key enforcement within a
+   * transaction, so a write which needs it off gets a transaction to itself.
+   * Before that transaction is committed, it's checked for foreign key
+   * violations, and rolled back if there are any.
+   *
+   * @param job The write to perform.
+   * @param foreignKeysOff Whether to turn off foreign key enforcement for the
+   *                       write.
+   * @param <T> The type of the job's result.
+   * @return The result of the job.
+   * @throws SQLException If the write or its commit failed.
+   */
+  <T> T submit(DBCxn.WriteJob<T> job, boolean foreignKeysOff) throws SQLException {
+    if (isWriterThread()) {
+      if (foreignKeysOff) {
+        throw new IllegalStateException("Foreign key enforcement can't be turned off within another write");
+      }
+      return job.run(cxn);
+    }
+    PendingWrite<T> pending = new PendingWrite<>(job, foreignKeysOff);
+    synchronized (this) {
+      if (thread == null) {
+        thread = new Thread(this, "mgcdb-db-writer");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      queue.add(pending);
+    }
+    try {
+      return pending.future.join();
+    }
+    catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SQLException(cause);
+    }
+  }
+
+  /**
+   * Run an action once the write being run is committed; see
+   * DBCxn.afterCommit(). Outside of a write, it's run straight away.
+   *
+   * @param action The action.
+   */
+  void afterCommit(Runnable action) {
+    if (isWriterThread() && running != null) {
+      running.afterCommit.add(action);
+    }
+    else {
+      action.run();
+    }
+  }
+
+  /**
+   * Stop the writer thread, after any queued writes are performed, and close
+   * the writable connection.
+   */
+  synchronized void close() {
+    if (thread == null) {
+      return;
+    }
+    queue.add(SHUTDOWN);
+    try {
+      thread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  /**
+   * The writer thread's loop.
+   */
+  @Override
+  public void run() {
+    boolean shuttingDown = false;
+    while (!shuttingDown) {
+      List<PendingWrite<?>> group = new ArrayList<>();
+      try {
+        PendingWrite<?> first = carried != null ? carried : queue.take();
+        carried = null;
+        if (first == SHUTDOWN) {
+          break;
+        }
+        group.add(first);
+        long deadline = System.nanoTime() + windowNanos;
+        while (!first.foreignKeysOff && group.size() < maxWrites) {
+          PendingWrite<?> next = queue.poll();
+          if (next == null && group.size() > 1) {
+            // Other threads are writing too, so more may be on the way.
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+              next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            }
+          }
+          if (next == null) {
+            break;
+          }
+          if (next == SHUTDOWN) {
+            shuttingDown = true;
+            break;
+          }
+          if (next.foreignKeysOff) {
+            // It needs a transaction of its own; it'll get the next one.
+            carried = next;
+            break;
+          }
+          group.add(next);
+        }
+      }
+      catch (InterruptedException e) {
+        shuttingDown = true;
+      }
+      if (!group.isEmpty()) {
+        commitGroup(group);
+      }
+    }
+    closeCxn();
+  }
+
+  /**
+   * Perform a group of writes in a single transaction.
+   *
+   * When there's more than one write in the group, each is wrapped in a
+   * savepoint so that one failing write doesn't take the others down with it.
+   *
+   * If the transaction fails because another process has the database
+   * locked, it's rolled back and the whole group is tried again; see
+   * BusyRetry. So a write may be run more than once, though only one of its
+   * runs is ever committed.
+   *
+   * @param group The writes to perform.
+   */
+  private void commitGroup(List<PendingWrite<?>> group) {
+    boolean foreignKeysOff = group.get(0).foreignKeysOff;
+    try {
+      busyRetry.run("write", () -> {
+        try {
+          attemptGroup(group);
+        }
+        catch (SQLException | RuntimeException e) {
+          rollback();
+          throw e;
+        }
+        return null;
+      });
+      dbCxn.noteCommitted();
+    }
+    catch (SQLException | RuntimeException e) {
+      for (PendingWrite<?> pending : group) {
+        pending.error = e;
+        pending.afterCommit.clear();
+      }
+    }
+    dbCxn.noteTransactionEnded();
+    if (foreignKeysOff) {
+      try {
+        if (cxn != null && !cxn.isClosed()) {
+          setForeignKeys(true);
+        }
+      }
+      catch (SQLException e) {
+        // Don't risk carrying on without foreign keys enforced.
+        closeCxn();
+      }
+    }
+    if (mode == Mode.CLI) {
+      closeCxn();
+    }
+    for (PendingWrite<?> pending : group) {
+      runAfterCommit(pending);
+      pending.complete();
+    }
+  }
+
+  /**
+   * Run the actions a write left for once it was committed, if it was.
+   *
+   * @param pending The write.
+   */
+  private void runAfterCommit(PendingWrite<?> pending) {
+    for (Runnable action : pending.afterCommit) {
+      try {
+        action.run();
+      }
+      catch (RuntimeException e) {
+        // The write has been committed, so it mustn't be reported as failed.
+        e.printStackTrace();
+      }
+    }
+    pending.afterCommit.clear();
+  }
+
+  /**
+   * Try once to perform a group of writes in a single transaction and commit
+   * it.
+   *
+   * @param group The writes to perform.
+   * @throws SQLException If the transaction failed, or a write failed because
+   *                      the database is locked; the transaction is left for
+   *                      the caller to roll back.
+   */
+  private void attemptGroup(List<PendingWrite<?>> group) throws SQLException {
+    boolean useSavepoints = group.size() > 1;
+    if (cxn == null || cxn.isClosed()) {
+      cxn = dbCxn.openWritableCxn();
+      statements = new StatementCache(cxn, statementCacheSize);
+      dataVersion = -1;
+    }
+    checkDataVersion();
+    if (group.get(0).foreignKeysOff) {
+      setForeignKeys(false);
+    }
+    // The connection is in immediate transaction mode, so this takes the
+    // write lock up front rather than when the first write happens.
+    cxn.setAutoCommit(false);
+    for (PendingWrite<?> pending : group) {
+      pending.error = null;
+      // Anything left by an earlier attempt was rolled back.
+      pending.afterCommit.clear();
+      Savepoint savepoint = useSavepoints ? cxn.setSavepoint() : null;
+      running = pending;
+      try {
+        pending.run(cxn);
+        if (savepoint != null) {
+          cxn.releaseSavepoint(savepoint);
+        }
+      }
+      catch (SQLException | RuntimeException e) {
+        // A locked database isn't this write's fault, so the whole group
+        // should be tried again rather than just this write failing.
+        if (savepoint == null || DBException.isBusy(e)) {
+          throw e;
+        }
+        cxn.rollback(savepoint);
+        cxn.releaseSavepoint(savepoint);
+        pending.error = e;
+        pending.afterCommit.clear();
+      }
+      finally {
+        running = null;
+      }
+    }
+    if (group.get(0).foreignKeysOff) {
+      checkForeignKeys();
+    }
+    // Going back to autocommit mode commits the transaction without the
+    // driver starting a new one straight afterwards.
+    cxn.setAutoCommit(true);
+  }
+
+  /**
+   * Turn foreign key enforcement on or off. This only works outside of a
+   * transaction.
+   *
+   * Writes without foreign keys are table rebuilds, so legacy_alter_table
+   * goes the other way: otherwise renaming the new table into place fails if
+   * a trigger on another table refers to the old one, which has been dropped
+   * by then.
+   *
+   * @param enforce Whether foreign keys should be enforced.
+   * @throws SQLException If the pragma failed.
+   */
+  private void setForeignKeys(boolean enforce) throws SQLException {
+    try (Statement stmt = cxn.createStatement()) {
+      stmt.execute("PRAGMA foreign_keys = " + (enforce ? "ON" : "OFF"));
+      stmt.execute("PRAGMA legacy_alter_table = " + (enforce ? "OFF" : "ON"));
+    }
+  }
+
+  /**
+   * Check whether another process has committed anything since the last
+   * transaction, and tell the DBCxn if so; see ChangeMonitor.
+   *
+   * @throws SQLException If the check failed.
+   */
+  private void checkDataVersion() throws SQLException {
+    long current;
+    try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA data_version")) {
+      current = rs.next() ? rs.getLong(1) : 0;
+    }
+    if (dataVersion != -1 && current != dataVersion) {
+      dbCxn.noteExternalChange();
+    }
+    dataVersion = current;
+  }
+
+  /**
+   * Make sure the current transaction hasn't left any rows pointing at rows
+   * which don't exist.
+   *
+   * @throws SQLException If there are foreign key violations, or the check
+   *                      failed.
+   */
+  private void checkForeignKeys() throws SQLException {
+    try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA foreign_key_check")) {
+      if (rs.next()) {
+        throw new SQLException(String.format("Foreign key violation: row %d of %s refers to a missing row in %s", rs.getLong(2), rs.getString(1), rs.getString(3)));
+      }
+    }
+  }
+
+  /**
+   * Roll back the current transaction, if any, after a failure.
+   */
+  private void rollback() {
+    try {
+      if (cxn != null && !cxn.isClosed() && !cxn.getAutoCommit()) {
+        cxn.rollback();
+        cxn.setAutoCommit(true);
+      }
+    }
+    catch (SQLException e) {
+      // The connection is in an unknown state; start over with a new one.
+      closeCxn();
+    }
+  }
+
+  /**
+   * Close the writable connection.
+   */
+  private void closeCxn() {
+    try {
+      if (statements != null) {
+        statements.close();
+      }
+      if (cxn != null && !cxn.isClosed()) {
+        cxn.close();
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    statements = null;
+    cxn = null;
+  }
+}
@@ -0,0 +1,85 @@
+package pro.albright.mgcdb.Util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A very simple registry of named counters and gauges, so we can see what's
+ * going on inside a running daemon.
+ *
+ * Names are dotted paths such as "db.read_pool.borrows". Counters only ever
+ * go up; gauges are read from a supplier whenever a snapshot is taken.
+ */
+public class Metrics {
+
+  private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final Map<String, AtomicLong> maximums = new ConcurrentHashMap<>();
+  private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Add to a counter, creating it if necessary.
+   *
+   * @param name The counter name.
+   * @param delta The amount to add.
+   */
+  public static void add(String name, long delta) {
+    counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+  }
+
+  /**
+   * Add one to a counter, creating it if necessary.
+   *
+   * @param name The counter name.
+   */
+  public static void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Record a value, keeping it if it's the largest seen so far.
+   *
+   * @param name The metric name.
+   * @param value The value.
+   */
+  public static void max(String name, long value) {
+    maximums.computeIfAbsent(name, k -> new AtomicLong()).accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Register a gauge, replacing any existing one with the same name.
+   *
+   * @param name The gauge name.
+   * @param supplier Supplies the gauge's current value.
+   */
+  public static void gauge(String name, LongSupplier supplier) {
+    gauges.put(name, supplier);
+  }
+
+  /**
+   * Get the current value of a counter.
+   *
+   * @param name The counter name.
+   * @return The value, or 0 if nothing has been counted yet.
+   */
+  public static long get(String name) {
+    LongAdder counter = counters.get(name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Get the current values of all metrics, sorted by name.
+   *
+   * @return A map of metric names to values.
+   */
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+    maximums.forEach((name, max) -> snapshot.put(name, max.get()));
+    gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+    return snapshot;
+  }
+}
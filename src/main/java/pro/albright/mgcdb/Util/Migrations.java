@@ -0,0 +1,610 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Changes to the database schema, and the code to apply them.
+ *
+ * Each change is a Migration with a version number. The versions which have
+ * been applied to a database are recorded in its schema_version table, so
+ * applying migrations only runs the ones which haven't been applied yet, in
+ * version order. Each migration is run in a transaction along with the
+ * recording of its version, so it's either applied and recorded or neither.
+ *
+ * To change the schema, add a migration to the end of the registry below with
+ * the next version number. Never change or remove one which has been
+ * released; databases out there have already had it applied.
+ *
+ * Migrations are applied when the web daemon starts and before a task is run,
+ * or explicitly with the `migrate` task. Ones marked online(), which should
+ * only be things like index builds which no code depends on, aren't waited
+ * for when the web daemon starts, unless a migration which isn't online comes
+ * after them; they're applied on a background thread once it's up. Thanks to WAL mode, readers can carry on while an index is being
+ * built, though other writes will queue up behind it.
+ */
+public class Migrations {
+
+  /**
+   * A single change to the schema.
+   */
+  public static class Migration {
+    private final int version;
+    private final String description;
+    private final DBCxn.WriteJob<?> work;
+    private boolean online = false;
+    private boolean foreignKeysOff = false;
+
+    /**
+     * @param version The version number. Must be higher than that of any
+     *                migration before it.
+     * @param description A short description of the change.
+     * @param work The work of applying the change.
+     */
+    public Migration(int version, String description, DBCxn.WriteJob<?> work) {
+      this.version = version;
+      this.description = description;
+      this.work = work;
+    }
+
+    /**
+     * @param version The version number. Must be higher than that of any
+     *                migration before it.
+     * @param description A short description of the change.
+     * @param statements SQL statements to execute to apply the change.
+     */
+    public Migration(int version, String description, String... statements) {
+      this(version, description, cxn -> {
+        try (Statement stmt = cxn.createStatement()) {
+          for (String statement : statements) {
+            stmt.execute(statement);
+          }
+        }
+        return null;
+      });
+    }
+
+    /**
+     * Mark the migration as one the web daemon doesn't need to wait for.
+     *
+     * @return The migration.
+     */
+    public Migration online() {
+      online = true;
+      return this;
+    }
+
+    /**
+     * Mark the migration as needing foreign key enforcement turned off. This
+     * is needed when rebuilding a table which other tables refer to, as
+     * dropping the old table would otherwise delete (ON DELETE CASCADE) or
+     * orphan the rows which refer to it. The migration's transaction is
+     * checked for foreign key violations before it's committed.
+     *
+     * @return The migration.
+     */
+    public Migration withoutForeignKeys() {
+      foreignKeysOff = true;
+      return this;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public boolean isOnline() {
+      return online;
+    }
+  }
+
+  /**
+   * All migrations, in order.
+   */
+  static final List<Migration> registry = List.of(
+    new Migration(1, "Create the initial tables",
+      "CREATE TABLE IF NOT EXISTS games ( " +
+        // Note that id has to be an INTEGER, not UNSIGNED INTEGER, in order for
+        // it to be a proper alias for the SQLite rowid.
+        // https://www.sqlite.org/lang_createtable.html#rowid
+        "game_id INTEGER PRIMARY KEY, " +
+        "steam_id INTEGER UNIQUE, " +
+        // SQLite does not actually enforce field character lengths but I'm gonna
+        // use them anyway
+        "title VARCHAR(255) NOT NULL DEFAULT '', " +
+        // Game.GamePropStatus enum - Mac compatibility
+        "mac INTEGER NOT NULL DEFAULT 0, " +
+        // Game.GamePropStatus enum - 64-bit Intel (Catalina) compatibility
+        "sixtyfour INTEGER NOT NULL DEFAULT 0, " +
+        // Game.GamePropStatus enum - Apple Silicon compatibility
+        "silicon INTEGER NOT NULL DEFAULT 0, " +
+        "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+        "updated TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+        "steam_release TEXT DEFAULT '0000-01-01', " +
+        "steam_updated TEXT NOT NULL DEFAULT '0000-01-01 00:00:00')",
+      "CREATE TRIGGER IF NOT EXISTS update_games " +
+        "AFTER UPDATE ON games FOR EACH ROW BEGIN " +
+        "UPDATE games SET updated = CURRENT_TIMESTAMP WHERE game_id = OLD.game_id; " +
+        "END;",
+      "CREATE TABLE IF NOT EXISTS users ( " +
+        "user_id INTEGER PRIMARY KEY, " +
+        "steam_user_id INTEGER UNIQUE, " +
+        "nickname VARCHAR(255) NOT NULL DEFAULT '', " +
+        "avatar_hash VARCHAR(255) NOT NULL DEFAULT '', " +
+        "last_auth TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+        "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+        "updated TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)",
+      "CREATE TRIGGER IF NOT EXISTS update_users " +
+        "AFTER UPDATE ON users FOR EACH ROW BEGIN " +
+        "UPDATE users SET updated = CURRENT_TIMESTAMP WHERE user_id = OLD.user_id; " +
+        "END;",
+      "CREATE TABLE IF NOT EXISTS ownership (" +
+        "ownership_id INTEGER PRIMARY KEY, " +
+        "user_id INTEGER NOT NULL REFERENCES users(user_id) ON DELETE CASCADE, " +
+        "game_id INTEGER NOT NULL REFERENCES games(game_id) ON DELETE CASCADE, " +
+        "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)",
+      // Note that we do not make ownership_id UNIQUE because in the future there
+      // may be more than one type of vote (in which case a "type" column will
+      // need to be added).
+      "CREATE TABLE IF NOT EXISTS votes (" +
+        "vote_id INTEGER PRIMARY KEY, " +
+        "ownership_id INTEGER NOT NULL REFERENCES ownership(ownership_id) ON DELETE CASCADE, " +
+        "vote INTEGER NOT NULL, " +
+        "created TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)"
+    ),
+    // This was `updatedb 1` before there were migrations, so it may have been
+    // applied already.
+    new Migration(2, "Add users.last_game_synch", cxn -> {
+      if (!hasColumn(cxn, "users", "last_game_synch")) {
+        try (Statement stmt = cxn.createStatement()) {
+          stmt.execute("ALTER TABLE users ADD COLUMN last_game_synch TEXT NOT NULL DEFAULT '0000-01-01 00:00:00'");
+        }
+      }
+      return null;
+    }),
+    // Indexes for the queries the models make. QueryPlanTest checks that
+    // they're used.
+    new Migration(3, "Index games by Mac status and release date",
+      "CREATE INDEX IF NOT EXISTS games_mac_release ON games (mac, steam_release)").online(),
+    new Migration(4, "Index games by 64-bit status and release date",
+      "CREATE INDEX IF NOT EXISTS games_sixtyfour_release ON games (sixtyfour, steam_release)").online(),
+    // For the listing of all games, which filters on mac with <> and so can't
+    // use games_mac_release to sort by release date.
+    new Migration(5, "Index games by release date",
+      "CREATE INDEX IF NOT EXISTS games_release_mac ON games (steam_release, mac)").online(),
+    new Migration(6, "Index games by Steam update time",
+      "CREATE INDEX IF NOT EXISTS games_steam_updated ON games (steam_updated)").online(),
+    new Migration(7, "Index ownership by user and game",
+      "CREATE INDEX IF NOT EXISTS ownership_user_game ON ownership (user_id, game_id)").online(),
+    new Migration(8, "Index ownership by game",
+      "CREATE INDEX IF NOT EXISTS ownership_game ON ownership (game_id)").online(),
+    new Migration(9, "Index votes by ownership",
+      "CREATE INDEX IF NOT EXISTS votes_ownership_vote ON votes (ownership_id, vote)").online(),
+    new Migration(10, "Index users by last game synch",
+      "CREATE INDEX IF NOT EXISTS users_last_game_synch ON users (last_game_synch)").online(),
+    // Times were stored as "YYYY-MM-DD HH:MM:SS" text, which took 19 bytes a
+    // value and had to be parsed for every row read. Now they're seconds since
+    // the Unix epoch (0 for never), and release dates are days since it.
+    new Migration(11, "Store times as integers", Migrations::storeTimesAsIntegers).withoutForeignKeys(),
+    // These ran a second UPDATE after every update of a row to set its updated
+    // time. The models now set it in the same statement.
+    new Migration(12, "Drop the updated time triggers",
+      "DROP TRIGGER IF EXISTS update_games",
+      "DROP TRIGGER IF EXISTS update_users"),
+    // Searching titles with LIKE '%term%' read every title in the table. This
+    // is a full-text index of them which Game.getByReleaseDate() searches
+    // instead. It doesn't keep its own copy of the titles (content='games'),
+    // and the triggers keep it in step with games however they're changed.
+    // The prefix indexes make matching the start of a word, as searches do,
+    // about as fast as matching a whole one.
+    new Migration(13, "Index game titles for full-text search",
+      "CREATE VIRTUAL TABLE games_fts USING fts5(title, content='games', content_rowid='game_id', " +
+        "tokenize='unicode61 remove_diacritics 2', prefix='2 3')",
+      "CREATE TRIGGER games_fts_insert AFTER INSERT ON games BEGIN " +
+        "INSERT INTO games_fts (rowid, title) VALUES (new.game_id, new.title); " +
+        "END",
+      "CREATE TRIGGER games_fts_delete AFTER DELETE ON games BEGIN " +
+        "INSERT INTO games_fts (games_fts, rowid, title) VALUES ('delete', old.game_id, old.title); " +
+        "END",
+      "CREATE TRIGGER games_fts_update AFTER UPDATE OF title ON games WHEN old.title IS NOT new.title BEGIN " +
+        "INSERT INTO games_fts (games_fts, rowid, title) VALUES ('delete', old.game_id, old.title); " +
+        "INSERT INTO games_fts (rowid, title) VALUES (new.game_id, new.title); " +
+        "END",
+      "INSERT INTO games_fts (games_fts) VALUES ('rebuild')"),
+    // For the title index to find games changed by other processes.
+    new Migration(14, "Index games by updated time",
+      "CREATE INDEX IF NOT EXISTS games_updated ON games (updated)").online(),
+    // The listings are ordered by release date and then game ID, so they can
+    // seek to a page. games_release_mac has mac between the two, so it can't
+    // give them in that order; mac is on the end of this one so that the
+    // "all" listing can still skip unchecked games without reading them.
+    new Migration(15, "Index games by release date and ID",
+      "CREATE INDEX IF NOT EXISTS games_release_id_mac ON games (steam_release, game_id, mac)").online(),
+    // Counting the games in a listing, or a user's games, for the pager meant
+    // reading every one of them on every page view. These keep the counts up
+    // to date instead, in the same transaction as whatever changes them.
+    // listing_counts has a row for each Game.GameFilterMode with the number
+    // of games with a release date which the filter lets through; the few
+    // which haven't been released yet are subtracted when it's read.
+    new Migration(16, "Keep counts of the games in each listing",
+      "CREATE TABLE listing_counts (" +
+        "filter TEXT PRIMARY KEY, " +
+        "games INTEGER NOT NULL) WITHOUT ROWID",
+      "INSERT INTO listing_counts (filter, games) " +
+        "SELECT 'ALL', COUNT(*) FROM games WHERE steam_release IS NOT NULL AND mac <> 0 " +
+        "UNION ALL SELECT 'MAC', COUNT(*) FROM games WHERE steam_release IS NOT NULL AND mac = 2 " +
+        "UNION ALL SELECT 'CATALINA', COUNT(*) FROM games WHERE steam_release IS NOT NULL AND sixtyfour = 2",
+      "CREATE TRIGGER games_counts_insert AFTER INSERT ON games WHEN new.steam_release IS NOT NULL BEGIN " +
+        "UPDATE listing_counts SET games = games + " + listingCountChange("new") + "; " +
+        "END",
+      "CREATE TRIGGER games_counts_delete AFTER DELETE ON games WHEN old.steam_release IS NOT NULL BEGIN " +
+        "UPDATE listing_counts SET games = games - " + listingCountChange("old") + "; " +
+        "END",
+      "CREATE TRIGGER games_counts_update AFTER UPDATE OF mac, sixtyfour, steam_release ON games " +
+        "WHEN old.mac IS NOT new.mac OR old.sixtyfour IS NOT new.sixtyfour " +
+        "OR (old.steam_release IS NULL) IS NOT (new.steam_release IS NULL) BEGIN " +
+        "UPDATE listing_counts SET games = games + " + listingCountChange("new") + " - " + listingCountChange("old") + "; " +
+        "END",
+      "ALTER TABLE users ADD COLUMN owned_count INTEGER NOT NULL DEFAULT 0",
+      "UPDATE users SET owned_count = (SELECT COUNT(*) FROM ownership o WHERE o.user_id = users.user_id)",
+      "CREATE TRIGGER ownership_counts_insert AFTER INSERT ON ownership BEGIN " +
+        "UPDATE users SET owned_count = owned_count + 1 WHERE user_id = new.user_id; " +
+        "END",
+      "CREATE TRIGGER ownership_counts_delete AFTER DELETE ON ownership BEGIN " +
+        "UPDATE users SET owned_count = owned_count - 1 WHERE user_id = old.user_id; " +
+        "END"),
+    // The listings showed each game's votes by counting them with two
+    // subqueries per game. Now each game keeps its own counts, which triggers
+    // on votes keep up to date. A vote is deleted along with the ownership it
+    // was cast on, but by then the ownership is gone and the vote can't be
+    // traced back to its game, so ownership deletes its votes itself first.
+    // The rebuildvotestats task recounts them all, should they ever be off.
+    new Migration(17, "Keep vote counts on games",
+      "ALTER TABLE games ADD COLUMN vote_count INTEGER NOT NULL DEFAULT 0",
+      "ALTER TABLE games ADD COLUMN yes_vote_count INTEGER NOT NULL DEFAULT 0",
+      "UPDATE games SET " +
+        "vote_count = (SELECT COUNT(*) FROM ownership o INNER JOIN votes v USING (ownership_id) WHERE o.game_id = games.game_id), " +
+        "yes_vote_count = (SELECT IFNULL(SUM(v.vote), 0) FROM ownership o INNER JOIN votes v USING (ownership_id) WHERE o.game_id = games.game_id)",
+      "CREATE TRIGGER votes_stats_insert AFTER INSERT ON votes BEGIN " +
+        "UPDATE games SET vote_count = vote_count + 1, yes_vote_count = yes_vote_count + new.vote " +
+        "WHERE game_id = (SELECT game_id FROM ownership WHERE ownership_id = new.ownership_id); " +
+        "END",
+      "CREATE TRIGGER votes_stats_delete AFTER DELETE ON votes BEGIN " +
+        "UPDATE games SET vote_count = vote_count - 1, yes_vote_count = yes_vote_count - old.vote " +
+        "WHERE game_id = (SELECT game_id FROM ownership WHERE ownership_id = old.ownership_id); " +
+        "END",
+      "CREATE TRIGGER votes_stats_update AFTER UPDATE OF vote ON votes WHEN old.vote IS NOT new.vote BEGIN " +
+        "UPDATE games SET yes_vote_count = yes_vote_count + new.vote - old.vote " +
+        "WHERE game_id = (SELECT game_id FROM ownership WHERE ownership_id = new.ownership_id); " +
+        "END",
+      "CREATE TRIGGER ownership_votes_delete BEFORE DELETE ON ownership BEGIN " +
+        "DELETE FROM votes WHERE ownership_id = old.ownership_id; " +
+        "END")
+  );
+
+  /**
+   * The SQL for the current time in seconds since the Unix epoch, for use as
+   * a column default.
+   */
+  private static final String nowSql = "(CAST(strftime('%s', 'now') AS INTEGER))";
+  /**
+   * 0000-01-01 in days since the Unix epoch; the release date of games which
+   * haven't been updated from Steam.
+   */
+  private static final long noReleaseDays = -719528;
+
+  private final DBCxn dbCxn;
+  private final List<Migration> migrations;
+
+  /**
+   * @param dbCxn The database to apply migrations to.
+   */
+  public Migrations(DBCxn dbCxn) {
+    this(dbCxn, registry);
+  }
+
+  /**
+   * @param dbCxn The database to apply migrations to.
+   * @param migrations The migrations to apply, in order.
+   */
+  Migrations(DBCxn dbCxn, List<Migration> migrations) {
+    this.dbCxn = dbCxn;
+    this.migrations = migrations;
+  }
+
+  /**
+   * @return The versions of the migrations which have been applied.
+   * @throws DBException If they couldn't be read.
+   */
+  public Set<Integer> getAppliedVersions() {
+    Set<Integer> applied = new TreeSet<>();
+    // Read rather than write, so as not to queue up behind other writes; the
+    // table is created along with the first migration.
+    if (!dbCxn.exists() || dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'schema_version'").singleInt() == 0) {
+      return applied;
+    }
+    for (int version : dbCxn.query("SELECT version FROM schema_version").intColumn()) {
+      applied.add(version);
+    }
+    return applied;
+  }
+
+  /**
+   * Online migrations are normally left to be applied in the background, but
+   * not if a migration which isn't online comes after them; migrations are
+   * always applied in version order, as a later one may depend on an earlier
+   * one, even if only for the speed of its backfill.
+   *
+   * @param includeOnline Whether to include online migrations which no other
+   *                      pending migration comes after.
+   * @return The migrations which haven't been applied yet, in order.
+   */
+  public List<Migration> getPending(boolean includeOnline) {
+    Set<Integer> applied = getAppliedVersions();
+    List<Migration> pending = new ArrayList<>();
+    int end = 0;
+    for (Migration migration : migrations) {
+      if (!applied.contains(migration.version)) {
+        pending.add(migration);
+        if (includeOnline || !migration.online) {
+          end = pending.size();
+        }
+      }
+    }
+    return Collections.unmodifiableList(pending.subList(0, end));
+  }
+
+  /**
+   * Apply all pending migrations.
+   */
+  public void applyAll() {
+    apply(true);
+  }
+
+  /**
+   * Apply pending migrations.
+   *
+   * @param includeOnline Whether to apply online migrations which no other
+   *                      pending migration comes after.
+   */
+  public void apply(boolean includeOnline) {
+    for (Migration migration : getPending(includeOnline)) {
+      try {
+        applyMigration(migration);
+      }
+      catch (SQLException throwables) {
+        System.err.printf("Database migration %d (%s) failed.%n", migration.version, migration.description);
+        throwables.printStackTrace();
+        System.exit(StatusCodes.GENERAL_SQL_ERROR);
+      }
+    }
+  }
+
+  /**
+   * Apply pending online migrations on a background thread.
+   *
+   * If one fails, the error is logged and the rest are skipped; they'll be
+   * tried again the next time MGCDB starts.
+   *
+   * @return The thread.
+   */
+  public Thread applyOnlineInBackground() {
+    Thread thread = new Thread(() -> {
+      for (Migration migration : getPending(true)) {
+        try {
+          applyMigration(migration);
+        }
+        catch (SQLException | RuntimeException e) {
+          System.err.printf("Database migration %d (%s) failed; it will be retried on the next start.%n", migration.version, migration.description);
+          e.printStackTrace();
+          break;
+        }
+      }
+    }, "mgcdb-migrations");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Apply a migration and record that it has been applied, in a single
+   * transaction.
+   *
+   * @param migration The migration.
+   * @throws SQLException If the migration failed.
+   */
+  private void applyMigration(Migration migration) throws SQLException {
+    long start = System.nanoTime();
+    boolean applied = dbCxn.doWrite(cxn -> {
+      // Another process may have got to it while we were waiting for the
+      // write lock.
+      createVersionTable(cxn);
+      try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT 1 FROM schema_version WHERE version = " + migration.version)) {
+        if (rs.next()) {
+          return false;
+        }
+      }
+      migration.work.run(cxn);
+      dbCxn.query("INSERT INTO schema_version (version, description) VALUES (?, ?)")
+        .bindInt(migration.version)
+        .bindString(migration.description)
+        .update();
+      return true;
+    }, migration.foreignKeysOff);
+    if (applied) {
+      System.out.printf("Applied database migration %d (%s) in %d ms.%n", migration.version, migration.description, (System.nanoTime() - start) / 1000000);
+    }
+  }
+
+  /**
+   * Create the schema_version table if it doesn't exist.
+   *
+   * @param cxn The writable connection.
+   * @throws SQLException If the table couldn't be created.
+   */
+  private static void createVersionTable(Connection cxn) throws SQLException {
+    try (Statement stmt = cxn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+        "version INTEGER PRIMARY KEY, " +
+        "description TEXT NOT NULL, " +
+        "applied TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+    }
+  }
+
+  /**
+   * The SQL for how much a row of games counts towards the listing_counts
+   * row being updated: 1 if the listing's filter lets it through and it has
+   * a release date, or 0.
+   *
+   * @param row "new" or "old", for use in a trigger.
+   * @return The SQL.
+   */
+  private static String listingCountChange(String row) {
+    return "((" + row + ".steam_release IS NOT NULL) * CASE filter " +
+      "WHEN 'ALL' THEN " + row + ".mac <> 0 " +
+      "WHEN 'MAC' THEN " + row + ".mac = 2 " +
+      "WHEN 'CATALINA' THEN " + row + ".sixtyfour = 2 " +
+      "ELSE 0 END)";
+  }
+
+  /**
+   * Migration 11: rebuild the tables with INTEGER time columns.
+   *
+   * @param cxn The writable connection.
+   * @return Nothing.
+   * @throws SQLException If a table couldn't be rebuilt.
+   */
+  private static Void storeTimesAsIntegers(Connection cxn) throws SQLException {
+    rebuildTable(cxn, "games",
+      "game_id INTEGER PRIMARY KEY, " +
+        "steam_id INTEGER UNIQUE, " +
+        "title VARCHAR(255) NOT NULL DEFAULT '', " +
+        "mac INTEGER NOT NULL DEFAULT 0, " +
+        "sixtyfour INTEGER NOT NULL DEFAULT 0, " +
+        "silicon INTEGER NOT NULL DEFAULT 0, " +
+        "created INTEGER NOT NULL DEFAULT " + nowSql + ", " +
+        "updated INTEGER NOT NULL DEFAULT " + nowSql + ", " +
+        // 0000-01-01 is what games which haven't been updated from Steam
+        // yet have always had.
+        "steam_release INTEGER DEFAULT " + noReleaseDays + ", " +
+        "steam_updated INTEGER NOT NULL DEFAULT 0",
+      "game_id, steam_id, title, mac, sixtyfour, silicon, created, updated, steam_release, steam_updated",
+      "game_id, steam_id, title, mac, sixtyfour, silicon, " + seconds("created") + ", " + seconds("updated") + ", " +
+        days("steam_release") + ", " + seconds("steam_updated"));
+    rebuildTable(cxn, "users",
+      "user_id INTEGER PRIMARY KEY, " +
+        "steam_user_id INTEGER UNIQUE, " +
+        "nickname VARCHAR(255) NOT NULL DEFAULT '', " +
+        "avatar_hash VARCHAR(255) NOT NULL DEFAULT '', " +
+        "last_auth INTEGER NOT NULL DEFAULT " + nowSql + ", " +
+        "last_game_synch INTEGER NOT NULL DEFAULT 0, " +
+        "created INTEGER NOT NULL DEFAULT " + nowSql + ", " +
+        "updated INTEGER NOT NULL DEFAULT " + nowSql,
+      "user_id, steam_user_id, nickname, avatar_hash, last_auth, last_game_synch, created, updated",
+      "user_id, steam_user_id, nickname, avatar_hash, " + seconds("last_auth") + ", " + seconds("last_game_synch") + ", " +
+        seconds("created") + ", " + seconds("updated"));
+    rebuildTable(cxn, "ownership",
+      "ownership_id INTEGER PRIMARY KEY, " +
+        "user_id INTEGER NOT NULL REFERENCES users(user_id) ON DELETE CASCADE, " +
+        "game_id INTEGER NOT NULL REFERENCES games(game_id) ON DELETE CASCADE, " +
+        "created INTEGER NOT NULL DEFAULT " + nowSql,
+      "ownership_id, user_id, game_id, created",
+      "ownership_id, user_id, game_id, " + seconds("created"));
+    rebuildTable(cxn, "votes",
+      "vote_id INTEGER PRIMARY KEY, " +
+        "ownership_id INTEGER NOT NULL REFERENCES ownership(ownership_id) ON DELETE CASCADE, " +
+        "vote INTEGER NOT NULL, " +
+        "created INTEGER NOT NULL DEFAULT " + nowSql,
+      "vote_id, ownership_id, vote, created",
+      "vote_id, ownership_id, vote, " + seconds("created"));
+
+    // Dropping the old tables dropped their updated time triggers, which
+    // aren't recreated as migration 12 drops them.
+    return null;
+  }
+
+  /**
+   * @param column A column of "YYYY-MM-DD HH:MM:SS" text.
+   * @return SQL converting it to seconds since the Unix epoch, with the old
+   *         "never" value of 0000-01-01 becoming 0.
+   */
+  private static String seconds(String column) {
+    return "CASE WHEN " + column + " IS NULL OR " + column + " < '1970' THEN 0 " +
+      "ELSE CAST(strftime('%s', " + column + ") AS INTEGER) END";
+  }
+
+  /**
+   * @param column A column of "YYYY-MM-DD" text.
+   * @return SQL converting it to days since the Unix epoch, or NULL if it
+   *         isn't a date. An empty string, which is what Steam gave for games
+   *         with no date, becomes 0000-01-01, as it sorted before any date and
+   *         so kept those games in the listings, after all the others.
+   */
+  private static String days(String column) {
+    return "CASE WHEN " + column + " = '' THEN " + noReleaseDays + " " +
+      "ELSE CAST(julianday(" + column + ") - 2440587.5 AS INTEGER) END";
+  }
+
+  /**
+   * Replace a table with a new one with a different definition, copying its
+   * rows and recreating its indexes. Its triggers are dropped along with it.
+   *
+   * This needs foreign keys turned off if other tables refer to this one.
+   *
+   * @param cxn The writable connection.
+   * @param table The table name.
+   * @param columnDefs The column definitions of the new table.
+   * @param columns The columns of the new table to copy rows into.
+   * @param select The expressions, in terms of the old table's columns, to
+   *               copy into them.
+   * @throws SQLException If the table couldn't be rebuilt.
+   */
+  static void rebuildTable(Connection cxn, String table, String columnDefs, String columns, String select) throws SQLException {
+    List<String> indexes = new ArrayList<>();
+    try (Statement stmt = cxn.createStatement()) {
+      // Indexes SQLite created itself, for UNIQUE columns, have no SQL.
+      try (ResultSet rs = stmt.executeQuery("SELECT sql FROM sqlite_master WHERE type = 'index' AND tbl_name = '" + table + "' AND sql IS NOT NULL")) {
+        while (rs.next()) {
+          indexes.add(rs.getString(1));
+        }
+      }
+      stmt.execute("CREATE TABLE " + table + "_new (" + columnDefs + ")");
+      stmt.execute("INSERT INTO " + table + "_new (" + columns + ") SELECT " + select + " FROM " + table);
+      stmt.execute("DROP TABLE " + table);
+      stmt.execute("ALTER TABLE " + table + "_new RENAME TO " + table);
+      for (String index : indexes) {
+        stmt.execute(index);
+      }
+    }
+  }
+
+  /**
+   * Check whether a table has a column.
+   *
+   * @param cxn The writable connection.
+   * @param table The table name.
+   * @param column The column name.
+   * @return Whether the column exists.
+   * @throws SQLException If the table's columns couldn't be read.
+   */
+  static boolean hasColumn(Connection cxn, String table, String column) throws SQLException {
+    try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+      while (rs.next()) {
+        if (rs.getString("name").equalsIgnoreCase(column)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
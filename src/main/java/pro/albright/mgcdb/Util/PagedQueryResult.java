@@ -13,6 +13,11 @@ public class PagedQueryResult<T> {
    * values).
    */
   private int totalResults;
+  /**
+   * Whether there were more results than were counted, so that
+   * totalResults is only a lower bound.
+   */
+  private boolean countCapped;
   /**
    * The number of results we're showing per page.
    */
@@ -27,6 +32,16 @@ public class PagedQueryResult<T> {
    * The actual results from the query.
    */
   private T[] results;
+  /**
+   * Where the next page starts, for listings which are paged by seeking
+   * (see SeekCursor), or null if this is the last page or the listing isn't.
+   */
+  private SeekCursor nextCursor;
+  /**
+   * Where the previous page ends, in the same way, or null if this is the
+   * first page or the listing isn't paged by seeking.
+   */
+  private SeekCursor prevCursor;
 
   public PagedQueryResult(T[] results, int totalResults, int perPage, int currentPageZeroBased) {
     this.results = results;
@@ -39,6 +54,14 @@ public class PagedQueryResult<T> {
     return totalResults;
   }
 
+  public boolean isCountCapped() {
+    return countCapped;
+  }
+
+  public void setCountCapped(boolean countCapped) {
+    this.countCapped = countCapped;
+  }
+
   public int getPerPage() {
     return perPage;
   }
@@ -59,6 +82,30 @@ public class PagedQueryResult<T> {
     return results;
   }
 
+  /**
+   * @return The encoded cursor for the next page, or null if there is no
+   * next page or no cursor for it.
+   */
+  public String getNextCursor() {
+    return nextCursor == null ? null : nextCursor.encode();
+  }
+
+  public void setNextCursor(SeekCursor nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * @return The encoded cursor for the previous page, or null if there is no
+   * previous page or no cursor for it.
+   */
+  public String getPrevCursor() {
+    return prevCursor == null ? null : prevCursor.encode();
+  }
+
+  public void setPrevCursor(SeekCursor prevCursor) {
+    this.prevCursor = prevCursor;
+  }
+
   /**
    * The total number of pages this query could generate.
    *
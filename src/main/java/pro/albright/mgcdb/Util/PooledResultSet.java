@@ -0,0 +1,106 @@
+package pro.albright.mgcdb.Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Wraps a ResultSet from a pooled connection so that the connection goes back
+ * to the pool as soon as the ResultSet has been read to the end or closed,
+ * whichever comes first.
+ *
+ * It also counts the rows read and the time spent fetching them, which is
+ * where SQLite does most of the work of running a query, for QueryStats.
+ */
+class PooledResultSet implements InvocationHandler {
+
+  /**
+   * Told when a wrapped ResultSet is finished with.
+   */
+  interface ReleaseListener {
+    /**
+     * @param rows The number of rows read.
+     * @param nanos The time spent fetching them, in nanoseconds.
+     */
+    void released(long rows, long nanos);
+  }
+
+  private final ResultSet rs;
+  private final ReleaseListener onRelease;
+  private boolean released = false;
+  private long rows = 0;
+  private long nanos = 0;
+
+  private PooledResultSet(ResultSet rs, ReleaseListener onRelease) {
+    this.rs = rs;
+    this.onRelease = onRelease;
+  }
+
+  /**
+   * Wrap a ResultSet.
+   *
+   * Closing the ResultSet resets its statement, which ends the read
+   * transaction, but leaves the statement itself open so it can be reused.
+   *
+   * @param rs The ResultSet.
+   * @param onRelease Called once the ResultSet is closed.
+   * @return The wrapped ResultSet.
+   */
+  static ResultSet wrap(ResultSet rs, ReleaseListener onRelease) {
+    return (ResultSet) Proxy.newProxyInstance(
+      ResultSet.class.getClassLoader(),
+      new Class<?>[] {ResultSet.class},
+      new PooledResultSet(rs, onRelease)
+    );
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (name.equals("close")) {
+      release();
+      return null;
+    }
+    if (name.equals("isClosed") && released) {
+      return true;
+    }
+    if (name.equals("next")) {
+      long start = System.nanoTime();
+      boolean hasRow = (Boolean) invokeWrapped(method, args);
+      nanos += System.nanoTime() - start;
+      if (hasRow) {
+        rows++;
+      }
+      else {
+        release();
+      }
+      return hasRow;
+    }
+    return invokeWrapped(method, args);
+  }
+
+  private Object invokeWrapped(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(rs, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private void release() throws SQLException {
+    if (released) {
+      return;
+    }
+    released = true;
+    try {
+      rs.close();
+    }
+    finally {
+      onRelease.released(rows, nanos);
+    }
+  }
+}
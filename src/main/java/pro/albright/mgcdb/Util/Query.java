@@ -0,0 +1,398 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A query and its parameters, ready to be run against the database.
+ *
+ * Get one from DBCxn.query(), bind parameters in the order the placeholders
+ * appear in the SQL, then run it:
+ *
+ *   int gameId = dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)")
+ *     .bindInt(steamId)
+ *     .bindString(title)
+ *     .insert();
+ *
+ * Parameter values are kept in primitive arrays until the query is run, so
+ * binding doesn't box numbers or build a map.
+ *
+ * If the query fails, a DBException is thrown; a DBBusyException if the
+ * database stayed locked by another process for too long.
+ */
+public class Query {
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_INT = 1;
+  private static final byte TYPE_LONG = 2;
+  private static final byte TYPE_STRING = 3;
+
+  private final DBCxn dbCxn;
+  private final String sql;
+  private byte[] types = new byte[8];
+  private long[] numbers = new long[8];
+  // Only allocated if a string is bound.
+  private String[] strings = null;
+  private int count = 0;
+  private boolean cached = false;
+
+  Query(DBCxn dbCxn, String sql) {
+    this.dbCxn = dbCxn;
+    this.sql = sql;
+  }
+
+  /**
+   * @return The SQL of the query.
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * Let the result of this query come from, and be kept in, the result
+   * cache; see ResultCache. This is for SELECTs which are run often with
+   * the same parameters and have small results.
+   *
+   * @return This query.
+   */
+  public Query cached() {
+    cached = true;
+    return this;
+  }
+
+  /**
+   * @return Whether the query's result may be cached.
+   */
+  boolean isCached() {
+    return cached;
+  }
+
+  /**
+   * Bind an int to the next parameter.
+   *
+   * @param value The value.
+   * @return This query.
+   */
+  public Query bindInt(int value) {
+    int idx = next(TYPE_INT);
+    numbers[idx] = value;
+    return this;
+  }
+
+  /**
+   * Bind a long to the next parameter.
+   *
+   * @param value The value.
+   * @return This query.
+   */
+  public Query bindLong(long value) {
+    int idx = next(TYPE_LONG);
+    numbers[idx] = value;
+    return this;
+  }
+
+  /**
+   * Bind a boolean to the next parameter. SQLite has no boolean type, so it's
+   * stored as 1 or 0.
+   *
+   * @param value The value.
+   * @return This query.
+   */
+  public Query bindBoolean(boolean value) {
+    return bindInt(value ? 1 : 0);
+  }
+
+  /**
+   * Bind a string to the next parameter.
+   *
+   * @param value The value, which must not be null; use bindNullableString()
+   *              if NULL is a legitimate value.
+   * @return This query.
+   */
+  public Query bindString(String value) {
+    Objects.requireNonNull(value, "Use bindNullableString() to bind a null string");
+    return bindNullableString(value);
+  }
+
+  /**
+   * Bind a string, or SQL NULL if it is null, to the next parameter.
+   *
+   * @param value The value.
+   * @return This query.
+   */
+  public Query bindNullableString(String value) {
+    if (value == null) {
+      return bindNull();
+    }
+    int idx = next(TYPE_STRING);
+    if (strings == null) {
+      strings = new String[types.length];
+    }
+    strings[idx] = value;
+    return this;
+  }
+
+  /**
+   * Bind SQL NULL to the next parameter.
+   *
+   * @return This query.
+   */
+  public Query bindNull() {
+    next(TYPE_NULL);
+    return this;
+  }
+
+  /**
+   * Run the query as an INSERT.
+   *
+   * @return The ID of the inserted row.
+   */
+  public int insert() {
+    return dbCxn.doInsertOrUpdateQuery(this, true);
+  }
+
+  /**
+   * Run the query as an UPDATE, DELETE or other statement which changes data.
+   */
+  public void update() {
+    dbCxn.doInsertOrUpdateQuery(this, false);
+  }
+
+  /**
+   * Run the query as a SELECT.
+   *
+   * @return The resulting ResultSet. See DBCxn.doSelectQuery() for the rules
+   * on closing it.
+   */
+  public ResultSet select() {
+    return dbCxn.doSelectQuery(this);
+  }
+
+  /**
+   * Run the query as a SELECT and call a callback for each row.
+   *
+   * The ResultSet is closed once every row has been handled, even if the
+   * callback throws.
+   *
+   * @param callback The callback. It shouldn't move the ResultSet's cursor.
+   */
+  public void forEachRow(DBCxn.RowCallback callback) {
+    try (ResultSet rs = select()) {
+      while (rs.next()) {
+        callback.handle(rs);
+      }
+    }
+    catch (SQLException e) {
+      throw DBException.from(e, sql);
+    }
+  }
+
+  /**
+   * Run the query as a SELECT and return a stream of objects created from
+   * its rows.
+   *
+   * Rows are fetched and mapped as the stream is consumed, so it doesn't
+   * matter how many there are. The ResultSet is closed as soon as the last
+   * row has been read, or when the stream is closed. A stream which might not
+   * be read to the end must be closed, eg with try-with-resources, or its
+   * connection won't be given back.
+   *
+   * @param mapper Creates an object from a row.
+   * @param <T> The type of the objects.
+   * @return The stream.
+   */
+  public <T> Stream<T> stream(DBCxn.RowMapper<T> mapper) {
+    ResultSet rs = select();
+    Spliterator<T> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED) {
+      private DBCxn.RowMapper<T> rowMapper = null;
+
+      @Override
+      public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+          if (rs.isClosed() || !rs.next()) {
+            rs.close();
+            return false;
+          }
+          if (rowMapper == null) {
+            rowMapper = resolve(mapper, rs);
+          }
+          action.accept(rowMapper.map(rs));
+        }
+        catch (SQLException e) {
+          throw DBException.from(e, sql);
+        }
+        return true;
+      }
+    };
+    return StreamSupport.stream(rows, false).onClose(() -> {
+      try {
+        rs.close();
+      }
+      catch (SQLException throwables) {
+        throwables.printStackTrace();
+      }
+    });
+  }
+
+  /**
+   * Run the query as a SELECT and return an array of objects created from
+   * its rows.
+   *
+   * @param mapper Creates an object from a row.
+   * @param generator Creates the array, eg Game[]::new.
+   * @param <T> The type of the objects.
+   * @return The array.
+   */
+  public <T> T[] toArray(DBCxn.RowMapper<T> mapper, IntFunction<T[]> generator) {
+    try (Stream<T> rows = stream(mapper)) {
+      return rows.toArray(generator);
+    }
+  }
+
+  /**
+   * Run the query as a SELECT and return an object created from its first
+   * row.
+   *
+   * @param mapper Creates an object from a row.
+   * @param <T> The type of the object.
+   * @return The object, or null if there were no rows.
+   */
+  public <T> T first(DBCxn.RowMapper<T> mapper) {
+    T first = null;
+    try (ResultSet rs = select()) {
+      if (rs.next()) {
+        first = resolve(mapper, rs).map(rs);
+      }
+    }
+    catch (SQLException e) {
+      throw DBException.from(e, sql);
+    }
+    return first;
+  }
+
+  /**
+   * Run the query as a SELECT and return the first column of every row as
+   * an int; for example, a list of IDs.
+   *
+   * @return The ints.
+   */
+  public int[] intColumn() {
+    IntStream.Builder ints = IntStream.builder();
+    forEachRow(rs -> ints.add(rs.getInt(1)));
+    return ints.build().toArray();
+  }
+
+  /**
+   * Run a query which is expected to have a result of a single int; for
+   * example, a SELECT COUNT(*)… query.
+   *
+   * @return The resulting integer, or 0 if there were no rows.
+   */
+  public int singleInt() {
+    return dbCxn.getSingleIntResult(this);
+  }
+
+  /**
+   * Get the RowMapper to use for this query's results; if it's a
+   * ColumnMapper, that's the one compiled for this query.
+   *
+   * @param mapper The mapper passed by the caller.
+   * @param rs The ResultSet of this query.
+   * @param <T> The type of the objects created.
+   * @return The RowMapper.
+   * @throws SQLException If the ResultSet's metadata couldn't be read.
+   */
+  private <T> DBCxn.RowMapper<T> resolve(DBCxn.RowMapper<T> mapper, ResultSet rs) throws SQLException {
+    if (mapper instanceof ColumnMapper) {
+      return ((ColumnMapper<T>) mapper).forQuery(sql, rs);
+    }
+    return mapper;
+  }
+
+  /**
+   * Bind the parameters to a prepared statement.
+   *
+   * @param stmt The statement, which should have been prepared from this
+   *             query's SQL.
+   * @throws SQLException If binding failed.
+   */
+  void bindTo(PreparedStatement stmt) throws SQLException {
+    for (int idx = 0; idx < count; idx++) {
+      int paramIdx = idx + 1;
+      switch (types[idx]) {
+        case TYPE_INT:
+          stmt.setInt(paramIdx, (int) numbers[idx]);
+          break;
+        case TYPE_LONG:
+          stmt.setLong(paramIdx, numbers[idx]);
+          break;
+        case TYPE_STRING:
+          stmt.setString(paramIdx, strings[idx]);
+          break;
+        default:
+          stmt.setNull(paramIdx, Types.NULL);
+      }
+    }
+  }
+
+  /**
+   * Describe the bound parameters, for logging.
+   *
+   * @param maxStringLength Strings longer than this are cut short.
+   * @return The parameters, such as "[1, 'Portal', NULL]".
+   */
+  String describeParams(int maxStringLength) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int idx = 0; idx < count; idx++) {
+      if (idx > 0) {
+        sb.append(", ");
+      }
+      switch (types[idx]) {
+        case TYPE_INT:
+        case TYPE_LONG:
+          sb.append(numbers[idx]);
+          break;
+        case TYPE_STRING:
+          String value = strings[idx];
+          if (value.length() > maxStringLength) {
+            value = value.substring(0, maxStringLength) + "…";
+          }
+          sb.append('\'').append(value.replace("'", "''")).append('\'');
+          break;
+        default:
+          sb.append("NULL");
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Claim the next parameter slot, growing the arrays if needed.
+   *
+   * @param type The type of the value which will go in the slot.
+   * @return The index of the slot.
+   */
+  private int next(byte type) {
+    if (count == types.length) {
+      int newLength = types.length * 2;
+      types = Arrays.copyOf(types, newLength);
+      numbers = Arrays.copyOf(numbers, newLength);
+      if (strings != null) {
+        strings = Arrays.copyOf(strings, newLength);
+      }
+    }
+    types[count] = type;
+    return count++;
+  }
+}
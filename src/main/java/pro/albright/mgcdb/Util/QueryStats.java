@@ -0,0 +1,424 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing statistics for every query run through a DBCxn, grouped by the shape
+ * of their SQL, and a log of the slow ones.
+ *
+ * A query's shape is its SQL with whitespace tidied up and any literal values
+ * replaced by placeholders, so queries which differ only in their values or in
+ * how many placeholders are in an IN (…) list are counted together. For each
+ * shape we keep how many times it was run, a histogram of how long it took,
+ * how many rows it returned (or changed), and how long it waited for a
+ * connection first.
+ *
+ * A query's time is the time SQLite spent on it: running the statement and
+ * stepping through its rows, but not whatever the caller did with each row in
+ * between, or waiting for a connection, which is counted separately. For a
+ * write, waiting means waiting in the writer thread's queue.
+ *
+ * Queries which take longer than the slow query threshold are logged, along
+ * with their parameters and the plan SQLite chose for them. Getting the plan
+ * means running the query again under EXPLAIN QUERY PLAN, which is done on a
+ * thread of its own so the caller isn't held up any further.
+ */
+public class QueryStats {
+
+  /**
+   * The statistics for one query shape.
+   */
+  public static class Shape {
+    /**
+     * The number of histogram buckets. Bucket n counts queries which took
+     * less than 2^n microseconds (and at least 2^(n-1)); the last one counts
+     * everything slower.
+     */
+    private static final int bucketCount = 32;
+
+    private final String sql;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder waitMicros = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+
+    private Shape(String sql) {
+      this.sql = sql;
+    }
+
+    private void record(long micros, long rowCount, long waitedMicros) {
+      count.increment();
+      totalMicros.add(micros);
+      maxMicros.accumulateAndGet(micros, Math::max);
+      rows.add(rowCount);
+      waitMicros.add(waitedMicros);
+      int bucket = Math.min(bucketCount - 1, 64 - Long.numberOfLeadingZeros(micros));
+      buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return The normalized SQL.
+     */
+    public String getSql() {
+      return sql;
+    }
+
+    /**
+     * @return How many times queries of this shape have been run.
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * @return The total time spent running them, in microseconds.
+     */
+    public long getTotalMicros() {
+      return totalMicros.sum();
+    }
+
+    /**
+     * @return The longest any of them took, in microseconds.
+     */
+    public long getMaxMicros() {
+      return maxMicros.get();
+    }
+
+    /**
+     * @return The total number of rows they returned or changed.
+     */
+    public long getRows() {
+      return rows.sum();
+    }
+
+    /**
+     * @return The total time they spent waiting for a connection, in
+     * microseconds.
+     */
+    public long getWaitMicros() {
+      return waitMicros.sum();
+    }
+
+    /**
+     * Estimate a percentile of how long queries of this shape took.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return An upper bound on the time, in microseconds, which is at most
+     * twice the actual value (and never more than the maximum).
+     */
+    public long getPercentileMicros(double percentile) {
+      long total = 0;
+      long[] counts = new long[bucketCount];
+      for (int idx = 0; idx < bucketCount; idx++) {
+        counts[idx] = buckets.get(idx);
+        total += counts[idx];
+      }
+      long target = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int idx = 0; idx < bucketCount; idx++) {
+        seen += counts[idx];
+        if (seen >= target && seen > 0) {
+          return Math.min(1L << idx, getMaxMicros());
+        }
+      }
+      return getMaxMicros();
+    }
+  }
+
+  /**
+   * The most shapes to keep statistics for. Queries of any new shape after
+   * that are counted together, so that SQL with values pasted into it can't
+   * make this grow without limit.
+   */
+  private static final int maxShapes = 500;
+  private static final String otherShape = "(other queries)";
+  private static final int maxLoggedStringLength = 100;
+
+  private final DBCxn dbCxn;
+  private final long slowMicros;
+  private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+  /**
+   * The shape of each SQL string we've seen, so normalizing only has to be
+   * done once for each.
+   */
+  private final Map<String, Shape> shapesBySql = new ConcurrentHashMap<>();
+  private ExecutorService slowQueryLogger;
+
+  /**
+   * @param dbCxn The DBCxn whose queries these are, for explaining slow ones.
+   * @param slowMillis How long, in milliseconds, a query has to take to be
+   *                   logged as a slow one. 0 turns slow query logging off.
+   */
+  QueryStats(DBCxn dbCxn, long slowMillis) {
+    this.dbCxn = dbCxn;
+    this.slowMicros = slowMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toMicros(slowMillis);
+  }
+
+  /**
+   * Record that a query was run.
+   *
+   * @param query The query.
+   * @param micros How long it took, in microseconds.
+   * @param rows How many rows it returned or changed.
+   * @param waitMicros How long it waited for a connection, in microseconds.
+   */
+  void record(Query query, long micros, long rows, long waitMicros) {
+    getShape(query.getSql()).record(micros, rows, waitMicros);
+    if (micros >= slowMicros) {
+      Metrics.increment("db.query.slow");
+      logSlow(query, micros, rows);
+    }
+  }
+
+  /**
+   * Record that a batch of queries was run.
+   *
+   * @param batch The batch.
+   * @param micros How long it took, in microseconds.
+   * @param waitMicros How long it waited for the writable connection, in
+   *                   microseconds.
+   */
+  void record(Batch batch, long micros, long waitMicros) {
+    getShape(batch.getSql()).record(micros, batch.size(), waitMicros);
+    if (micros >= slowMicros) {
+      Metrics.increment("db.query.slow");
+      System.err.printf("Slow batch (%d ms, %d rows): %s%n", micros / 1000, batch.size(), batch.getSql());
+    }
+  }
+
+  /**
+   * Get the statistics for the shapes which have taken the most time.
+   *
+   * @param limit The most shapes to return.
+   * @return The shapes, the one which has taken the most time in total first.
+   */
+  public List<Shape> getTop(int limit) {
+    List<Shape> top = new ArrayList<>(shapes.values());
+    top.sort(Comparator.comparingLong(Shape::getTotalMicros).reversed());
+    return top.subList(0, Math.min(limit, top.size()));
+  }
+
+  /**
+   * Get the statistics for a query's shape.
+   *
+   * @param sql The query's SQL.
+   * @return The statistics, or null if no query of that shape has been run.
+   */
+  public Shape get(String sql) {
+    return shapes.get(normalize(sql));
+  }
+
+  /**
+   * Describe the shapes which have taken the most time, as a plain text
+   * table.
+   *
+   * @param limit The most shapes to describe.
+   * @return The report.
+   */
+  public String report(int limit) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Top %d of %d query shapes by total time. Times are in milliseconds; percentiles are upper bounds.%n%n", Math.min(limit, shapes.size()), shapes.size()));
+    sb.append(String.format("%9s %10s %8s %8s %8s %8s %8s %8s %8s  %s%n", "count", "total", "mean", "p50", "p95", "p99", "max", "rows", "wait", "sql"));
+    for (Shape shape : getTop(limit)) {
+      long count = Math.max(1, shape.getCount());
+      sb.append(String.format("%9d %10.1f %8.2f %8.2f %8.2f %8.2f %8.2f %8.1f %8.2f  %s%n",
+        shape.getCount(),
+        shape.getTotalMicros() / 1000.0,
+        shape.getTotalMicros() / 1000.0 / count,
+        shape.getPercentileMicros(50) / 1000.0,
+        shape.getPercentileMicros(95) / 1000.0,
+        shape.getPercentileMicros(99) / 1000.0,
+        shape.getMaxMicros() / 1000.0,
+        (double) shape.getRows() / count,
+        shape.getWaitMicros() / 1000.0 / count,
+        shape.getSql()
+      ));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Forget all the statistics gathered so far.
+   */
+  public void reset() {
+    shapes.clear();
+    shapesBySql.clear();
+  }
+
+  /**
+   * Stop the slow query logger, after it's logged any slow queries waiting
+   * to be.
+   */
+  void stop() {
+    ExecutorService stopping;
+    synchronized (this) {
+      stopping = slowQueryLogger;
+      slowQueryLogger = null;
+    }
+    if (stopping != null) {
+      stopping.shutdown();
+      try {
+        stopping.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Reduce a query's SQL to its shape.
+   *
+   * @param sql The SQL.
+   * @return The shape.
+   */
+  static String normalize(String sql) {
+    StringBuilder sb = new StringBuilder(sql.length());
+    int length = sql.length();
+    int idx = 0;
+    while (idx < length) {
+      char chr = sql.charAt(idx);
+      if (chr == '\'') {
+        // A string literal; '' within one is an escaped quote.
+        idx++;
+        while (idx < length) {
+          if (sql.charAt(idx) == '\'') {
+            if (idx + 1 < length && sql.charAt(idx + 1) == '\'') {
+              idx++;
+            }
+            else {
+              break;
+            }
+          }
+          idx++;
+        }
+        sb.append('?');
+        idx++;
+      }
+      else if (chr == '"' || chr == '`' || chr == '[') {
+        // A quoted identifier, which is left alone.
+        char close = chr == '[' ? ']' : chr;
+        int end = sql.indexOf(close, idx + 1);
+        end = end < 0 ? length : end + 1;
+        sb.append(sql, idx, end);
+        idx = end;
+      }
+      else if (Character.isDigit(chr) && (sb.length() == 0 || !isIdentifierChar(sb.charAt(sb.length() - 1)))) {
+        // A number, rather than a digit in an identifier.
+        while (idx < length && (isIdentifierChar(sql.charAt(idx)) || sql.charAt(idx) == '.')) {
+          idx++;
+        }
+        sb.append('?');
+      }
+      else if (Character.isWhitespace(chr)) {
+        while (idx < length && Character.isWhitespace(sql.charAt(idx))) {
+          idx++;
+        }
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+      }
+      else {
+        sb.append(chr);
+        idx++;
+      }
+    }
+    // Lists of values or placeholders, such as in an IN (…), of any length.
+    return sb.toString().trim().replaceAll("\\(\\?(\\s*,\\s*\\?)+\\)", "(?, …)");
+  }
+
+  private static boolean isIdentifierChar(char chr) {
+    return Character.isLetterOrDigit(chr) || chr == '_' || chr == '$';
+  }
+
+  private Shape getShape(String sql) {
+    Shape shape = shapesBySql.get(sql);
+    if (shape != null) {
+      return shape;
+    }
+    String normalized = normalize(sql);
+    if (!shapes.containsKey(normalized) && shapes.size() >= maxShapes) {
+      normalized = otherShape;
+    }
+    shape = shapes.computeIfAbsent(normalized, Shape::new);
+    if (shapesBySql.size() < maxShapes * 4) {
+      shapesBySql.put(sql, shape);
+    }
+    return shape;
+  }
+
+  /**
+   * Log a slow query, with its query plan.
+   */
+  private void logSlow(Query query, long micros, long rows) {
+    ExecutorService logger;
+    synchronized (this) {
+      if (slowQueryLogger == null) {
+        slowQueryLogger = Executors.newSingleThreadExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "mgcdb-slow-query-log");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      logger = slowQueryLogger;
+    }
+    logger.execute(() -> {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Slow query (%d ms, %d rows): %s%n", micros / 1000, rows, query.getSql().trim()));
+      sb.append(String.format("  Parameters: %s%n", query.describeParams(maxLoggedStringLength)));
+      try {
+        for (String step : explain(query)) {
+          sb.append("  Plan: ").append(step).append(String.format("%n"));
+        }
+      }
+      catch (SQLException e) {
+        sb.append(String.format("  Plan: couldn't be found (%s)%n", e.getMessage()));
+      }
+      System.err.print(sb);
+    });
+  }
+
+  /**
+   * Get the plan SQLite chooses for a query.
+   *
+   * This is done with a connection of its own, so it doesn't need a
+   * connection from the pool (or the writable one) and isn't itself counted.
+   *
+   * @param query The query.
+   * @return The steps of the plan, indented to show how they're nested.
+   * @throws SQLException If the query couldn't be explained.
+   */
+  List<String> explain(Query query) throws SQLException {
+    List<String> steps = new ArrayList<>();
+    Map<Integer, Integer> depths = new HashMap<>();
+    try (Connection cxn = dbCxn.openReadOnlyCxn();
+         PreparedStatement stmt = cxn.prepareStatement("EXPLAIN QUERY PLAN " + query.getSql())) {
+      query.bindTo(stmt);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          int depth = depths.getOrDefault(rs.getInt("parent"), -1) + 1;
+          depths.put(rs.getInt("id"), depth);
+          steps.add("  ".repeat(depth) + rs.getString("detail"));
+        }
+      }
+    }
+    return steps;
+  }
+}
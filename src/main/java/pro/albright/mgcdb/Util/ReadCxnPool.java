@@ -0,0 +1,228 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of read-only database connections.
+ *
+ * In WAL mode any number of readers can use the database at once (and at the
+ * same time as the writer), so handing each Jetty worker thread its own
+ * connection lets page views run in parallel. Connections are opened lazily up
+ * to the pool size; after that, threads wait for one to be returned.
+ *
+ * Connections stay open across writes. A reader sees everything committed
+ * before its read transaction started, and the read transaction ends as soon
+ * as the query's ResultSet is drained or closed (see PooledResultSet), so the
+ * next query on the same connection sees new commits without the connection
+ * (and its page cache) having to be thrown away.
+ */
+class ReadCxnPool {
+
+  /**
+   * A pooled connection and what we know about its state.
+   */
+  static class PooledCxn {
+    private Connection cxn;
+    private StatementCache statements;
+    private int generation;
+    private long borrowedAt;
+    /**
+     * The connection's PRAGMA data_version when it was last borrowed.
+     */
+    private long dataVersion;
+
+    Connection getCxn() {
+      return cxn;
+    }
+
+    StatementCache getStatements() {
+      return statements;
+    }
+  }
+
+  private final DBCxn dbCxn;
+  private final int size;
+  private final long timeoutMillis;
+  private final int statementCacheSize;
+  private final BlockingQueue<PooledCxn> idle;
+  private final AtomicInteger generation = new AtomicInteger();
+  private final AtomicInteger inUse = new AtomicInteger();
+  private int opened = 0;
+
+  /**
+   * @param dbCxn The DBCxn to open connections from.
+   * @param size The maximum number of connections to open.
+   * @param timeoutMillis How long to wait for a connection to be returned
+   *                      before giving up.
+   * @param statementCacheSize How many prepared statements to cache for each
+   *                           connection.
+   */
+  ReadCxnPool(DBCxn dbCxn, int size, long timeoutMillis, int statementCacheSize) {
+    this.dbCxn = dbCxn;
+    this.size = Math.max(1, size);
+    this.timeoutMillis = timeoutMillis;
+    this.statementCacheSize = statementCacheSize;
+    this.idle = new ArrayBlockingQueue<>(this.size);
+
+    Metrics.gauge("db.read_pool.size", () -> this.size);
+    Metrics.gauge("db.read_pool.in_use", inUse::get);
+  }
+
+  /**
+   * Borrow a connection from the pool, waiting for one to be returned if they
+   * are all in use.
+   *
+   * @return The connection. It must be given back with release().
+   * @throws SQLException If a connection couldn't be opened, or none was
+   *                      returned in time.
+   */
+  PooledCxn borrow() throws SQLException {
+    long start = System.nanoTime();
+    PooledCxn pooled = idle.poll();
+    if (pooled == null) {
+      synchronized (this) {
+        if (opened < size) {
+          pooled = new PooledCxn();
+          opened++;
+        }
+      }
+      if (pooled == null) {
+        Metrics.increment("db.read_pool.waits");
+        try {
+          pooled = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (pooled == null) {
+          throw new SQLException("Timed out waiting for a read-only database connection");
+        }
+      }
+    }
+
+    long waitMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    Metrics.increment("db.read_pool.borrows");
+    Metrics.add("db.read_pool.wait_micros_total", waitMicros);
+    Metrics.max("db.read_pool.wait_micros_max", waitMicros);
+
+    try {
+      int currentGeneration = generation.get();
+      if (pooled.cxn != null && pooled.generation != currentGeneration) {
+        closeQuietly(pooled);
+      }
+      if (pooled.cxn == null) {
+        pooled.cxn = dbCxn.openReadOnlyCxn();
+        pooled.statements = new StatementCache(pooled.cxn, statementCacheSize);
+        pooled.generation = currentGeneration;
+        pooled.dataVersion = readDataVersion(pooled);
+        Metrics.increment("db.read_pool.connects");
+      }
+      else {
+        checkDataVersion(pooled);
+      }
+    }
+    catch (SQLException e) {
+      // Give the slot back so the pool doesn't shrink.
+      closeQuietly(pooled);
+      idle.add(pooled);
+      throw e;
+    }
+    inUse.incrementAndGet();
+    pooled.borrowedAt = System.nanoTime();
+    return pooled;
+  }
+
+  /**
+   * Give a borrowed connection back to the pool.
+   *
+   * @param pooled The connection.
+   */
+  void release(PooledCxn pooled) {
+    inUse.decrementAndGet();
+    Metrics.add("db.read_pool.held_micros_total", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pooled.borrowedAt));
+    if (pooled.generation != generation.get()) {
+      closeQuietly(pooled);
+    }
+    idle.add(pooled);
+  }
+
+  /**
+   * Check whether anything has been committed to the database since a
+   * connection was last used, and tell the DBCxn if so.
+   *
+   * PRAGMA data_version changes when another connection, whether the writer
+   * thread's or one in another process such as a cron task, commits a change.
+   * It's cheap to check since it doesn't touch the database file.
+   *
+   * @param pooled The connection to check.
+   * @throws SQLException If the check failed.
+   */
+  void checkDataVersion(PooledCxn pooled) throws SQLException {
+    long dataVersion = readDataVersion(pooled);
+    if (dataVersion != pooled.dataVersion) {
+      pooled.dataVersion = dataVersion;
+      Metrics.increment("db.read_pool.data_version_changes");
+      dbCxn.noteDataChanged();
+    }
+  }
+
+  private long readDataVersion(PooledCxn pooled) throws SQLException {
+    try (ResultSet rs = pooled.statements.prepare("PRAGMA data_version").executeQuery()) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * @return The number of connections currently borrowed.
+   */
+  int getInUse() {
+    return inUse.get();
+  }
+
+  /**
+   * Mark all currently open connections as stale so they'll be reopened the
+   * next time they're borrowed.
+   */
+  void invalidate() {
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Close all idle connections; connections which are currently borrowed will
+   * be closed when they are released. The pool can still be used afterwards,
+   * in which case new connections will be opened.
+   */
+  void close() {
+    invalidate();
+    List<PooledCxn> drained = new ArrayList<>();
+    idle.drainTo(drained);
+    for (PooledCxn pooled : drained) {
+      closeQuietly(pooled);
+      idle.add(pooled);
+    }
+  }
+
+  private void closeQuietly(PooledCxn pooled) {
+    try {
+      if (pooled.statements != null) {
+        pooled.statements.close();
+      }
+      if (pooled.cxn != null) {
+        pooled.cxn.close();
+      }
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+    pooled.statements = null;
+    pooled.cxn = null;
+  }
+}
@@ -0,0 +1,382 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the results of queries which are asked for over and over, so they
+ * don't have to be run again until something they read has changed.
+ *
+ * Only queries marked with Query.cached() use it. Results are kept by SQL and
+ * parameters, and the least recently used are thrown away once there are too
+ * many or they take up too much memory.
+ *
+ * Each result is tagged with the tables its query reads, or rather every name
+ * in its SQL, which takes in every table it reads. Each table has a version
+ * which is bumped by every write to it made through DBCxn.query() or
+ * DBCxn.batch(), and a result is only used if none of its tables' versions
+ * have changed since its query started. Writes whose table can't be relied
+ * on (DELETEs and REPLACEs, which can cascade to other tables through foreign
+ * keys, and anything passed to DBCxn.doWrite(), such as migrations) bump the
+ * version of every table.
+ *
+ * Triggers can write to other tables than the one a write names, so a write
+ * to a table also bumps the versions of the tables its triggers write to,
+ * which are read from the schema.
+ *
+ * Versions are bumped both when a write is made and again when its
+ * transaction ends, so a query which read the data in between, before the
+ * write was committed, doesn't leave a stale result behind.
+ *
+ * Writes by other processes, such as tasks run from cron, can't be seen this
+ * way. ChangeMonitor notices that they've happened, though not what they
+ * changed, so they bump the version of every table; results are also thrown
+ * away once they reach a maximum age, in case one is missed.
+ */
+class ResultCache {
+
+  private static class Entry {
+    private final CachedResultSet.Rows rows;
+    private final String[] tags;
+    private final long[] versions;
+    private final long allVersion;
+    private final long storedAt;
+    private final long bytes;
+
+    private Entry(CachedResultSet.Rows rows, String[] tags, long[] versions, long allVersion, long storedAt, long bytes) {
+      this.rows = rows;
+      this.tags = tags;
+      this.versions = versions;
+      this.allVersion = allVersion;
+      this.storedAt = storedAt;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Runs a query which missed the cache.
+   */
+  interface Loader {
+    ResultSet select(Query query);
+  }
+
+  private static final Pattern namePattern = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+  /**
+   * The table written to by an INSERT or UPDATE which can only change rows in
+   * that table.
+   */
+  private static final Pattern writeTablePattern = Pattern.compile(
+    "^\\s*(?:INSERT(?:\\s+OR\\s+(?:ABORT|FAIL|IGNORE|ROLLBACK))?\\s+INTO|UPDATE(?:\\s+OR\\s+(?:ABORT|FAIL|IGNORE|ROLLBACK))?)\\s+[\"`\\[]?([A-Za-z_][A-Za-z0-9_$]*)",
+    Pattern.CASE_INSENSITIVE
+  );
+  /**
+   * The tables written to by the statements in the body of a trigger.
+   */
+  private static final Pattern triggerWritePattern = Pattern.compile(
+    "(?:INSERT(?:\\s+OR\\s+[A-Za-z]+)?\\s+INTO|UPDATE(?:\\s+OR\\s+[A-Za-z]+)?|DELETE\\s+FROM)\\s+[\"`\\[]?([A-Za-z_][A-Za-z0-9_$]*)",
+    Pattern.CASE_INSENSITIVE
+  );
+  private static final int maxTaggedSql = 1000;
+  /**
+   * Stands for every table among those a trigger writes to.
+   */
+  private static final String anyTable = "*";
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long maxAgeNanos;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  private final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+  /**
+   * Bumped by writes which could have changed any table.
+   */
+  private final AtomicLong allVersion = new AtomicLong();
+  private final Map<String, String[]> tagsBySql = new ConcurrentHashMap<>();
+  // Tables written to in the current transaction; only used by the writer
+  // thread.
+  private final Set<String> pendingTables = new HashSet<>();
+  private boolean pendingAll = false;
+  /**
+   * The tables a write to each table may change through triggers, including
+   * itself, or null if the schema needs reading again; only used by the
+   * writer thread.
+   */
+  private Map<String, Set<String>> triggerTargets;
+
+  /**
+   * @param maxEntries The most results to keep. 0 turns the cache off.
+   * @param maxBytes The most memory, roughly, for the results to take up.
+   * @param maxAgeMillis How long to keep a result for at most.
+   */
+  ResultCache(int maxEntries, long maxBytes, long maxAgeMillis) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+
+    Metrics.gauge("db.result_cache.entries", this::size);
+    Metrics.gauge("db.result_cache.bytes", this::getBytes);
+  }
+
+  /**
+   * @return Whether the cache is turned on.
+   */
+  boolean isEnabled() {
+    return maxEntries > 0 && maxBytes > 0 && maxAgeNanos > 0;
+  }
+
+  /**
+   * Get the result of a query from the cache, or run it and cache its result.
+   *
+   * @param query The query.
+   * @param loader Runs the query if its result isn't cached.
+   * @return A ResultSet of the result, which is already in memory, so
+   * closing it doesn't matter.
+   * @throws SQLException If the result couldn't be read.
+   */
+  ResultSet select(Query query, Loader loader) throws SQLException {
+    String key = query.getSql() + '\u0000' + query.describeParams(Integer.MAX_VALUE);
+    String[] tags = getTags(query.getSql());
+    // Taken before the query runs, so that a write made while it's running
+    // makes its result stale straight away.
+    long[] versions = getVersions(tags);
+    long all = allVersion.get();
+
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (isFresh(entry)) {
+          Metrics.increment("db.result_cache.hits");
+          return entry.rows.open();
+        }
+        remove(key);
+        Metrics.increment("db.result_cache.stale");
+      }
+    }
+    Metrics.increment("db.result_cache.misses");
+
+    CachedResultSet.Rows rows = CachedResultSet.Rows.read(loader.select(query));
+    long entryBytes = rows.getBytes() + 2L * key.length();
+    // Don't let one big result push out everything else.
+    if (entryBytes <= maxBytes / 4) {
+      Entry entry = new Entry(rows, tags, versions, all, System.nanoTime(), entryBytes);
+      synchronized (this) {
+        remove(key);
+        entries.put(key, entry);
+        bytes += entryBytes;
+        evict();
+      }
+    }
+    return rows.open();
+  }
+
+  /**
+   * Note that a statement which may change data is being run. This must be
+   * called from the writer thread.
+   *
+   * @param sql The statement's SQL.
+   * @param cxn The writable connection, to read the triggers from.
+   * @throws SQLException If the triggers couldn't be read.
+   */
+  void noteWrite(String sql, Connection cxn) throws SQLException {
+    if (!isEnabled()) {
+      return;
+    }
+    Matcher matcher = writeTablePattern.matcher(sql);
+    if (!matcher.find()) {
+      noteWriteToAll();
+      return;
+    }
+    String table = matcher.group(1).toLowerCase();
+    Set<String> written = getTriggerTargets(cxn).getOrDefault(table, Set.of(table));
+    if (written.contains(anyTable)) {
+      // One of the triggers deletes, which may cascade.
+      pendingAll = true;
+      allVersion.incrementAndGet();
+      return;
+    }
+    for (String writtenTable : written) {
+      pendingTables.add(writtenTable);
+      bumpTable(writtenTable);
+    }
+  }
+
+  /**
+   * Note that something which may change any table is being run. This must
+   * be called from the writer thread.
+   */
+  void noteWriteToAll() {
+    if (!isEnabled()) {
+      return;
+    }
+    pendingAll = true;
+    allVersion.incrementAndGet();
+    // It may be changing the schema.
+    triggerTargets = null;
+  }
+
+  /**
+   * Note that another process has committed something, which may have
+   * changed any table.
+   */
+  void noteWriteFromElsewhere() {
+    allVersion.incrementAndGet();
+  }
+
+  /**
+   * Note that the writer's transaction has been committed or rolled back.
+   * This must be called from the writer thread.
+   */
+  void noteTransactionEnded() {
+    if (pendingAll) {
+      allVersion.incrementAndGet();
+      pendingAll = false;
+    }
+    for (String table : pendingTables) {
+      bumpTable(table);
+    }
+    pendingTables.clear();
+  }
+
+  /**
+   * @return The number of results in the cache, some of which may be stale.
+   */
+  synchronized long size() {
+    return entries.size();
+  }
+
+  /**
+   * @return Roughly how much memory the cached results take up, in bytes.
+   */
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Throw away every cached result.
+   */
+  synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Work out which tables a write to each table with triggers may change,
+   * following triggers which set off other triggers.
+   */
+  private Map<String, Set<String>> getTriggerTargets(Connection cxn) throws SQLException {
+    if (triggerTargets != null) {
+      return triggerTargets;
+    }
+    Map<String, Set<String>> direct = new HashMap<>();
+    try (Statement stmt = cxn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT tbl_name, sql FROM sqlite_master WHERE type = 'trigger'")) {
+      while (rs.next()) {
+        String sql = rs.getString(2);
+        // Skip the part before the body, where "UPDATE OF" may be.
+        int body = sql.toUpperCase().indexOf(" BEGIN ");
+        Matcher matcher = triggerWritePattern.matcher(body < 0 ? "" : sql.substring(body));
+        Set<String> written = direct.computeIfAbsent(rs.getString(1).toLowerCase(), k -> new HashSet<>());
+        while (matcher.find()) {
+          boolean mayCascade = matcher.group().regionMatches(true, 0, "DELETE", 0, 6) || matcher.group().toUpperCase().contains("REPLACE");
+          written.add(mayCascade ? anyTable : matcher.group(1).toLowerCase());
+        }
+      }
+    }
+    Map<String, Set<String>> targets = new HashMap<>();
+    for (String table : direct.keySet()) {
+      Set<String> reached = new LinkedHashSet<>();
+      Deque<String> toVisit = new ArrayDeque<>(List.of(table));
+      while (!toVisit.isEmpty()) {
+        String next = toVisit.pop();
+        if (reached.add(next)) {
+          toVisit.addAll(direct.getOrDefault(next, Set.of()));
+        }
+      }
+      targets.put(table, reached);
+    }
+    triggerTargets = targets;
+    return targets;
+  }
+
+  private void bumpTable(String table) {
+    tableVersions.computeIfAbsent(table, k -> new AtomicLong()).incrementAndGet();
+  }
+
+  private long[] getVersions(String[] tags) {
+    long[] versions = new long[tags.length];
+    for (int idx = 0; idx < tags.length; idx++) {
+      AtomicLong version = tableVersions.get(tags[idx]);
+      versions[idx] = version == null ? 0 : version.get();
+    }
+    return versions;
+  }
+
+  private boolean isFresh(Entry entry) {
+    if (entry.allVersion != allVersion.get() || System.nanoTime() - entry.storedAt > maxAgeNanos) {
+      return false;
+    }
+    for (int idx = 0; idx < entry.tags.length; idx++) {
+      AtomicLong version = tableVersions.get(entry.tags[idx]);
+      if ((version == null ? 0 : version.get()) != entry.versions[idx]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the names in a query's SQL, which include the tables it reads.
+   */
+  private String[] getTags(String sql) {
+    String[] tags = tagsBySql.get(sql);
+    if (tags == null) {
+      Set<String> names = new LinkedHashSet<>();
+      Matcher matcher = namePattern.matcher(QueryStats.normalize(sql));
+      while (matcher.find()) {
+        names.add(matcher.group().toLowerCase());
+      }
+      tags = names.toArray(new String[0]);
+      if (tagsBySql.size() < maxTaggedSql) {
+        tagsBySql.put(sql, tags);
+      }
+    }
+    return tags;
+  }
+
+  private void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      bytes -= removed.bytes;
+    }
+  }
+
+  /**
+   * Throw away the least recently used results until there's room.
+   */
+  private void evict() {
+    Iterator<Entry> lru = entries.values().iterator();
+    while ((entries.size() > maxEntries || bytes > maxBytes) && lru.hasNext()) {
+      bytes -= lru.next().bytes;
+      lru.remove();
+      Metrics.increment("db.result_cache.evictions");
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package pro.albright.mgcdb.Util;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The SQLite tuning settings (PRAGMAs) for one role of connection.
+ *
+ * Settings are read from the [sqlite] section of the configuration. Each can
+ * be overridden for just the writable connection or just the read-only ones
+ * in [sqlite.writer] or [sqlite.reader]; for example, sqlite.reader.cache_size
+ * takes precedence over sqlite.cache_size for read-only connections.
+ */
+class SQLitePragmas {
+
+  /**
+   * The settings which are logged once the first connection is opened.
+   */
+  private static final String[] logged = {
+    "journal_mode",
+    "cache_size",
+    "mmap_size",
+    "synchronous",
+    "temp_store",
+    "busy_timeout",
+    "wal_autocheckpoint",
+  };
+
+  private final String role;
+  private final long cacheSize;
+  private final long mmapSize;
+  private final SQLiteConfig.SynchronousMode synchronous;
+  private final SQLiteConfig.TempStore tempStore;
+  private final int busyTimeout;
+  private final long walAutocheckpoint;
+  private final AtomicBoolean loggedEffective = new AtomicBoolean();
+
+  /**
+   * @param config The configuration.
+   * @param role "writer" or "reader".
+   */
+  SQLitePragmas(Config config, String role) {
+    this.role = role;
+    // Negative cache sizes are in KiB rather than pages.
+    cacheSize = getLong(config, "cache_size", -16384);
+    mmapSize = getLong(config, "mmap_size", 268435456);
+    busyTimeout = (int) getLong(config, "busy_timeout", 5000);
+    walAutocheckpoint = getLong(config, "wal_autocheckpoint", 1000);
+
+    String synchronousStr = getString(config, "synchronous", "normal");
+    SQLiteConfig.SynchronousMode synchronousMode = SQLiteConfig.SynchronousMode.NORMAL;
+    try {
+      synchronousMode = SQLiteConfig.SynchronousMode.valueOf(synchronousStr.toUpperCase());
+    }
+    catch (IllegalArgumentException e) {
+      System.err.printf("Unknown sqlite.synchronous value \"%s\"; using \"normal\".%n", synchronousStr);
+    }
+    synchronous = synchronousMode;
+
+    String tempStoreStr = getString(config, "temp_store", "memory");
+    SQLiteConfig.TempStore tempStoreMode = SQLiteConfig.TempStore.MEMORY;
+    try {
+      tempStoreMode = SQLiteConfig.TempStore.valueOf(tempStoreStr.toUpperCase());
+    }
+    catch (IllegalArgumentException e) {
+      System.err.printf("Unknown sqlite.temp_store value \"%s\"; using \"memory\".%n", tempStoreStr);
+    }
+    tempStore = tempStoreMode;
+  }
+
+  /**
+   * Set the settings which the driver applies when it opens a connection.
+   *
+   * @param sqLiteConfig The driver configuration for the connection.
+   */
+  void applyTo(SQLiteConfig sqLiteConfig) {
+    sqLiteConfig.setCacheSize((int) cacheSize);
+    sqLiteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(mmapSize));
+    sqLiteConfig.setSynchronous(synchronous);
+    sqLiteConfig.setTempStore(tempStore);
+    sqLiteConfig.setBusyTimeout(busyTimeout);
+  }
+
+  /**
+   * Set the settings which the driver doesn't know about on a newly-opened
+   * connection. The first time this is called, the settings the connection
+   * actually ended up with are logged.
+   *
+   * @param cxn The connection.
+   * @throws SQLException If a setting couldn't be applied.
+   */
+  void applyTo(Connection cxn) throws SQLException {
+    try (Statement stmt = cxn.createStatement()) {
+      stmt.execute("PRAGMA wal_autocheckpoint = " + walAutocheckpoint);
+    }
+    if (loggedEffective.compareAndSet(false, true)) {
+      System.out.printf("SQLite %s connection settings: %s%n", role, String.join(", ", getEffective(cxn)));
+    }
+  }
+
+  /**
+   * Read the settings a connection actually has, which may differ from what
+   * was asked for; for example, mmap_size is capped at compile time.
+   *
+   * @param cxn The connection.
+   * @return The settings, as "name=value" strings.
+   * @throws SQLException If the settings couldn't be read.
+   */
+  static List<String> getEffective(Connection cxn) throws SQLException {
+    List<String> settings = new ArrayList<>();
+    try (Statement stmt = cxn.createStatement()) {
+      for (String pragma : logged) {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+          settings.add(pragma + "=" + (rs.next() ? rs.getString(1) : ""));
+        }
+      }
+    }
+    return settings;
+  }
+
+  private long getLong(Config config, String name, long defaultValue) {
+    return config.getLong("sqlite." + role + "." + name, config.getLong("sqlite." + name, defaultValue));
+  }
+
+  private String getString(Config config, String name, String defaultValue) {
+    return config.get("sqlite." + role + "." + name, config.get("sqlite." + name, defaultValue));
+  }
+}
@@ -0,0 +1,83 @@
+package pro.albright.mgcdb.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A position in a listing of games in release date order, newest first.
+ *
+ * Listings are paged by seeking past a cursor (keyset pagination) rather
+ * than with OFFSET, which makes SQLite read and throw away every row before
+ * the page; on the last page of the full listing, that's nearly all of the
+ * games table. The release date alone isn't unique, so the game ID breaks
+ * ties, and the listings are ordered by both.
+ *
+ * Cursors are passed around in URLs in an encoded form which isn't meant to
+ * be read or made by hand.
+ */
+public class SeekCursor {
+
+  /**
+   * Stands in for a NULL release date, so that games without one sort after
+   * all those with one, as NULLs do.
+   */
+  public static final long noRelease = Integer.MIN_VALUE;
+
+  private final long release;
+  private final int gameId;
+
+  /**
+   * @param release The game's release date, in days since the epoch, or
+   *                noRelease.
+   * @param gameId The game's ID.
+   */
+  public SeekCursor(long release, int gameId) {
+    this.release = release;
+    this.gameId = gameId;
+  }
+
+  public long getRelease() {
+    return release;
+  }
+
+  public int getGameId() {
+    return gameId;
+  }
+
+  /**
+   * @return The cursor in a form which can go in a URL.
+   */
+  public String encode() {
+    String plain = release + ":" + gameId;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Turn an encoded cursor back into a SeekCursor.
+   *
+   * @param encoded The cursor, as from encode(), or null.
+   * @return The cursor, or null if it isn't one.
+   */
+  public static SeekCursor decode(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      String plain = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.US_ASCII);
+      int colon = plain.indexOf(':');
+      if (colon < 1) {
+        return null;
+      }
+      return new SeekCursor(Long.parseLong(plain.substring(0, colon)), Integer.parseInt(plain.substring(colon + 1)));
+    }
+    catch (IllegalArgumentException e) {
+      // Not Base64, or not numbers.
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+}
@@ -0,0 +1,96 @@
+package pro.albright.mgcdb.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of prepared statements for one connection,
+ * keyed by SQL text.
+ *
+ * Preparing a statement means SQLite has to parse the SQL and plan the query,
+ * which for something like the user lookup done on every request can take
+ * longer than running it. Reusing the prepared statement skips all that; its
+ * parameters are cleared and bound again instead.
+ *
+ * Like the connection it belongs to, this isn't thread safe; it should only
+ * be used by whichever thread currently has the connection.
+ */
+class StatementCache {
+
+  private final Connection cxn;
+  private final LinkedHashMap<String, PreparedStatement> statements;
+
+  /**
+   * @param cxn The connection to prepare statements against.
+   * @param maxSize The maximum number of statements to keep; the least
+   *                recently used one is closed when this is exceeded.
+   */
+  StatementCache(Connection cxn, int maxSize) {
+    this.cxn = cxn;
+    // An access-ordered LinkedHashMap keeps the least recently used entry
+    // first, which is the one we want to evict.
+    this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() > maxSize) {
+          Metrics.increment("db.statement_cache.evictions");
+          closeQuietly(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get a prepared statement for a query, preparing it if it isn't already
+   * cached.
+   *
+   * The statement must not be closed by the caller. Its parameters are
+   * cleared before it's returned, but any ResultSet from its last use should
+   * have been closed already.
+   *
+   * @param query The query.
+   * @return The prepared statement.
+   * @throws SQLException If the query couldn't be prepared.
+   */
+  PreparedStatement prepare(String query) throws SQLException {
+    PreparedStatement stmt = statements.get(query);
+    if (stmt != null) {
+      Metrics.increment("db.statement_cache.hits");
+      stmt.clearParameters();
+      return stmt;
+    }
+    Metrics.increment("db.statement_cache.misses");
+    if (query.toLowerCase().startsWith("insert ")) {
+      stmt = cxn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+    }
+    else {
+      stmt = cxn.prepareStatement(query);
+    }
+    statements.put(query, stmt);
+    return stmt;
+  }
+
+  /**
+   * Close all cached statements. This should be done before the connection
+   * is closed.
+   */
+  void close() {
+    statements.values().forEach(StatementCache::closeQuietly);
+    statements.clear();
+  }
+
+  private static void closeQuietly(Statement stmt) {
+    try {
+      stmt.close();
+    }
+    catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
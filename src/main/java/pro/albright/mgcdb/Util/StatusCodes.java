@@ -14,6 +14,8 @@ public class StatusCodes {
   public static final int GENERAL_SQL_ERROR = 10;
   // Can't open the database file.
   public static final int NO_DB_FILE = 11;
+  // The database stayed locked by another process for too long.
+  public static final int DB_BUSY = 12;
 
   /* Config related codes */
   // Can't find/open a configuration file.
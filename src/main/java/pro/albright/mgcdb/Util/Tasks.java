@@ -1,13 +1,16 @@
 package pro.albright.mgcdb.Util;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.HttpClients;
 import pro.albright.mgcdb.Model.Game;
 import pro.albright.mgcdb.Model.User;
+import spark.utils.IOUtils;
 
-import java.sql.Connection;
+import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Tasks {
 
@@ -31,6 +34,13 @@ public class Tasks {
    */
   public void invoke(String task, String[] params) throws SQLException {
     switch (task) {
+      case "backup":
+        if (params.length < 1) {
+          System.err.println("Please specify the path to write the backup to.");
+          System.exit(StatusCodes.BAD_TASK_PARAM);
+        }
+        backup(params[0]);
+        break;
       case "initdb":
         // Initialize the database
         boolean deleteIfExists = params.length > 0 && params[0].equals("delete");
@@ -65,19 +75,78 @@ public class Tasks {
         }
         updateGame(game);
         break;
+      case "migrate":
+        migrate();
+        break;
       case "updatedb":
-        int updateIndex = params.length < 1 ? 0 : Integer.parseInt(params[0]);
-        updateDb(updateIndex);
+        System.out.println("The updatedb task has been replaced by migrate, which applies every pending update.");
+        migrate();
         break;
       case "updateownership":
         updateOwnership();
         break;
+      case "rebuildvotestats":
+        rebuildVoteStats();
+        break;
+      case "querystats":
+        int statsLimit = params.length < 1 ? 20 : Integer.parseInt(params[0]);
+        if (config.get("admin_token", "").isEmpty()) {
+          System.err.println("The query statistics are fetched from the web daemon's /admin/querystats route, which needs an admin_token to be set in the configuration file.");
+          System.exit(StatusCodes.REQUIRED_CONFIG_PARAM_MISSING);
+        }
+        queryStats(statsLimit);
+        break;
       default:
         System.err.printf("Handler for task %s not found.%n", task);
         System.exit(StatusCodes.NO_TASK_HANDLER);
     }
   }
 
+  /**
+   * Back up the database.
+   *
+   * @param destPath The path to write the backup to.
+   */
+  private void backup(String destPath) {
+    try {
+      Backup.Result result = dbCxn.backup(destPath);
+      System.out.printf("Backed up the database to %s: %s.%n", destPath, result);
+    }
+    catch (SQLException | IOException e) {
+      System.err.printf("Backing up the database to %s failed.%n", destPath);
+      e.printStackTrace();
+      System.exit(StatusCodes.GENERAL_SQL_ERROR);
+    }
+  }
+
+  /**
+   * Show the query timing statistics of the running web daemon.
+   *
+   * Each process gathers its own statistics, and a task's would only cover
+   * the task itself, so they're fetched from the daemon.
+   *
+   * @param limit The most query shapes to show.
+   */
+  private void queryStats(int limit) {
+    String uri = config.get("url") + "/admin/querystats?limit=" + limit;
+    try {
+      HttpClient client = HttpClients.createDefault();
+      HttpGet get = new HttpGet(uri);
+      get.setHeader("X-Admin-Token", config.get("admin_token"));
+      HttpResponse response = client.execute(get);
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+        System.err.printf("Fetching %s failed: %s%n", uri, response.getStatusLine());
+        System.exit(StatusCodes.GENERAL_OUTGOING_NETWORK_ERROR);
+      }
+      System.out.print(IOUtils.toString(response.getEntity().getContent()));
+    }
+    catch (IOException e) {
+      System.err.printf("Fetching %s failed. Is the web daemon running?%n", uri);
+      e.printStackTrace();
+      System.exit(StatusCodes.GENERAL_OUTGOING_NETWORK_ERROR);
+    }
+  }
+
   /**
    * Initialize the database by creating the needed tables.
    *
@@ -133,37 +202,31 @@ public class Tasks {
   }
 
   /**
-   * Update the database schema.
-   * @param updateIdx The ID of the update to run.
+   * Apply all pending schema migrations, including online ones.
    */
-  public void updateDb(int updateIdx) {
-    switch (updateIdx) {
-      case 1:
-        Connection cxn = dbCxn.getCxn();
-        try {
-          Statement stmt = cxn.createStatement();
-          stmt.execute("ALTER TABLE users ADD COLUMN last_game_synch TEXT NOT NULL DEFAULT '0000-01-01 00:00:00'");
-          cxn.commit();
-          break;
-        }
-        catch (SQLException throwables) {
-          throwables.printStackTrace();
-          System.exit(StatusCodes.GENERAL_SQL_ERROR);
-        }
-        break;
-      default:
-        System.out.printf("Database update %d not found.%n", updateIdx);
-        System.exit(StatusCodes.BAD_TASK_PARAM);
+  public void migrate() {
+    Migrations migrations = new Migrations(dbCxn);
+    if (migrations.getPending(true).isEmpty()) {
+      System.out.println("The database schema is up to date.");
+      return;
     }
-    System.out.println("Update complete.");
+    migrations.applyAll();
+    System.out.println("Migration complete.");
+  }
+
+  /**
+   * Recount the votes on every game.
+   */
+  public static void rebuildVoteStats() {
+    int fixed = Game.rebuildVoteStats();
+    System.out.printf("Corrected the vote counts of %d games.%n", fixed);
   }
 
   /**
    * Update owned games for users which have not had that updated recently.
    */
   public static void updateOwnership() {
-    User[] users = User.getUsersNeedingOwnershipUpdate();
-    for (User user : users) {
+    for (User user : User.getUsersNeedingOwnershipUpdate()) {
       System.out.printf("Updating ownership for user %d%n", user.getUserId());
       user.updateOwnedGames();
     }
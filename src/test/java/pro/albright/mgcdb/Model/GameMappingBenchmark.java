@@ -0,0 +1,185 @@
+package pro.albright.mgcdb.Model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.Columns;
+import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.DBCxn;
+
+import java.sql.*;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of turning a page of the /games listing into Games by
+ * column name with exceptions for missing columns and times stored as text,
+ * as Game.createFromResultSet() used to, against Game.rowMapper with times
+ * stored as integers.
+ *
+ * The old way reads from a copy of the games table with text times. Both run
+ * the same listing query each time; the difference between them is the
+ * mapping. Run with `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Model.GameMappingBenchmark"`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameMappingBenchmark {
+
+  private static final String listingQuery = "SELECT g.*, COUNT(v.vote_id) AS vote_count, SUM(v.vote) AS yes_vote_count " +
+    "FROM %s g LEFT JOIN ownership o USING (game_id) " +
+    "LEFT JOIN votes v USING (ownership_id) " +
+    "WHERE g.steam_release <= %s AND g.mac <> ? " +
+    "GROUP BY 1 ORDER BY g.steam_release DESC LIMIT ? OFFSET ?";
+
+  /**
+   * The rows are read from memory, so disk I/O doesn't muddy the comparison.
+   */
+  private static final String dbPath = "file:mgcdb-mapping-bench?mode=memory&cache=shared";
+
+  private DBCxn dbCxn;
+  private Connection cxn;
+  private PreparedStatement legacyStmt;
+  private PreparedStatement stmt;
+  private DBCxn.RowMapper<Game> compiledMapper;
+
+  @Setup
+  public void setUp() throws SQLException {
+    dbCxn = new DBCxn(dbPath, new Config());
+    dbCxn.createIfNotExists(true);
+    dbCxn.initializeDb();
+    Model.setDbCxn(dbCxn);
+
+    Batch games = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, 2, 2, ?)");
+    for (int idx = 1; idx <= 100; idx++) {
+      games.add()
+        .bindInt(idx)
+        .bindString("Game " + idx)
+        .bindLong(LocalDate.of(2010, 1, 1).plusDays(idx).toEpochDay());
+    }
+    games.insert();
+
+    cxn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    try (Statement create = cxn.createStatement()) {
+      create.execute("CREATE TABLE legacy_games AS SELECT game_id, steam_id, title, mac, sixtyfour, silicon, " +
+        "datetime(created, 'unixepoch') AS created, datetime(updated, 'unixepoch') AS updated, " +
+        "date(steam_release * 86400, 'unixepoch') AS steam_release, '0000-01-01 00:00:00' AS steam_updated FROM games");
+    }
+    legacyStmt = cxn.prepareStatement(String.format(listingQuery, "legacy_games", "CURRENT_TIMESTAMP"));
+    stmt = cxn.prepareStatement(String.format(listingQuery, "games", "?"));
+    stmt.setLong(1, LocalDate.now().toEpochDay());
+    for (PreparedStatement statement : new PreparedStatement[] {legacyStmt, stmt}) {
+      int offset = statement == stmt ? 1 : 0;
+      statement.setInt(offset + 1, 0);
+      statement.setInt(offset + 2, Game.perPage);
+      statement.setInt(offset + 3, 0);
+    }
+    // This is what Query does the first time it sees the listing query, and
+    // caches for next time.
+    try (ResultSet rs = stmt.executeQuery()) {
+      compiledMapper = Game.rowMapper.compile(new Columns(rs.getMetaData()));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    legacyStmt.close();
+    stmt.close();
+    cxn.close();
+    dbCxn.delete();
+  }
+
+  @Benchmark
+  public List<Game> byNameWithExceptions() throws SQLException {
+    List<Game> games = new ArrayList<>();
+    try (ResultSet rs = legacyStmt.executeQuery()) {
+      while (rs.next()) {
+        games.add(legacyCreateFromResultSet(rs));
+      }
+    }
+    return games;
+  }
+
+  @Benchmark
+  public List<Game> compiledRowMapper() throws SQLException {
+    List<Game> games = new ArrayList<>();
+    try (ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        games.add(compiledMapper.map(rs));
+      }
+    }
+    return games;
+  }
+
+  /**
+   * How Game.createFromResultSet() mapped a row before Game.rowMapper.
+   */
+  private Game legacyCreateFromResultSet(ResultSet rs) throws SQLException {
+    Game game = new Game();
+    game.setGameId(rs.getInt("game_id"));
+    game.setSteamId(rs.getInt("steam_id"));
+    game.setTitle(rs.getString("title"));
+    game.setMac(rs.getInt("mac") == 2 ? Game.GamePropStatus.YES : Game.GamePropStatus.NO);
+    game.setSixtyFour(rs.getInt("sixtyfour") == 2 ? Game.GamePropStatus.YES : Game.GamePropStatus.NO);
+    game.setSilicon(rs.getInt("silicon") == 2 ? Game.GamePropStatus.YES : Game.GamePropStatus.UNCHECKED);
+    game.setCreated(parseTimestamp(rs.getString("created")).toInstant());
+    game.setUpdated(parseTimestamp(rs.getString("updated")).toInstant());
+    game.setSteamUpdated(parseTimestamp(rs.getString("steam_updated")).toInstant());
+    String steamRelease = rs.getString("steam_release");
+    if (steamRelease != null && !steamRelease.isEmpty()) {
+      game.setSteamReleaseDate(LocalDate.parse(steamRelease));
+    }
+    try {
+      int ownershipId = rs.getInt("ownership_id");
+      if (ownershipId != 0) {
+        game.setOwnership(new Ownership(rs.getInt("user_id"), rs.getInt("game_id")));
+      }
+    }
+    catch (SQLException e) {
+      // Oh well
+    }
+    try {
+      game.setVoteCount(rs.getInt("vote_count"));
+      game.setYesVoteCount(rs.getInt("yes_vote_count"));
+    }
+    catch (SQLException e) {
+      // Oh well
+    }
+    return game;
+  }
+
+  /**
+   * How DBCxn.parseTimestamp() parsed a text time.
+   */
+  private static java.util.Date parseTimestamp(String timestamp) {
+    DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    java.util.Date date = null;
+    try {
+      date = format.parse(timestamp);
+    }
+    catch (ParseException e) {
+      System.err.printf("Error parsing timestamp %s%n", timestamp);
+    }
+    return date;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(GameMappingBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,126 @@
+package pro.albright.mgcdb.Model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.DBCxn;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much a refresh of 1,000 games from Steam writes to the WAL,
+ * with and without the AFTER UPDATE trigger on games which used to set the
+ * updated time in a second UPDATE.
+ *
+ * Each invocation saves 1,000 games as Game.updateFromSteam() does, each in
+ * its own transaction. The WAL is emptied before each invocation, and a read
+ * transaction is held open during it so that automatic checkpoints can't
+ * start the WAL over, so its size afterwards is everything the refresh wrote.
+ * The walFrames counter is the number of frames (changed pages) written,
+ * summed over the measurement iterations; divide by their count for the
+ * number per refresh.
+ *
+ * Run with `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Model.GameRefreshWalBenchmark"`.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class GameRefreshWalBenchmark {
+
+  private static final int gameCount = 1000;
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class WalCounters {
+    public long walFrames;
+  }
+
+  /**
+   * Whether to put back the trigger the updated time used to be set by.
+   */
+  @Param({"false", "true"})
+  public boolean withTrigger;
+
+  private File dbFile;
+  private DBCxn dbCxn;
+  private Connection reader;
+  private int pageSize;
+  private Game[] games;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    dbFile = File.createTempFile("mgcdb-bench", ".sqlite");
+    dbCxn = new DBCxn(dbFile.getPath(), new Config());
+    dbCxn.createIfNotExists(true);
+    dbCxn.initializeDb();
+    Model.setDbCxn(dbCxn);
+
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour) VALUES (?, ?, 2, 2)");
+    for (int idx = 1; idx <= gameCount; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    inserts.insert();
+    if (withTrigger) {
+      dbCxn.query("CREATE TRIGGER update_games AFTER UPDATE ON games FOR EACH ROW BEGIN " +
+        "UPDATE games SET updated = CAST(strftime('%s', 'now') AS INTEGER) WHERE game_id = OLD.game_id; " +
+        "END;").update();
+    }
+    games = dbCxn.query("SELECT * FROM games").toArray(Game.rowMapper, Game[]::new);
+
+    reader = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+    try (Statement stmt = reader.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA page_size")) {
+      rs.next();
+      pageSize = rs.getInt(1);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void emptyWal() throws SQLException {
+    try (Statement stmt = reader.createStatement()) {
+      stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+      reader.setAutoCommit(false);
+      stmt.executeQuery("SELECT COUNT(*) FROM games").close();
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void releaseWal() throws SQLException {
+    reader.commit();
+    reader.setAutoCommit(true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws SQLException {
+    reader.close();
+    dbCxn.delete();
+  }
+
+  @Benchmark
+  public void refresh(WalCounters counters) {
+    for (Game game : games) {
+      game.save(true);
+    }
+    // A 32-byte header, then a 24-byte header and a page for each frame.
+    File walFile = new File(dbFile.getPath() + "-wal");
+    counters.walFrames = (walFile.length() - 32) / (pageSize + 24);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(GameRefreshWalBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -1,9 +1,16 @@
 package pro.albright.mgcdb.Model;
 
 import junit.framework.Assert;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.PagedQueryResult;
+import pro.albright.mgcdb.Util.SeekCursor;
 
 import java.sql.SQLException;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class GameTest extends MGCDBTest {
 
@@ -64,4 +71,315 @@ public class GameTest extends MGCDBTest {
       }
     }
   }
+
+  public void testSaveSetsUpdatedTime() {
+    int gameId = Game.getGameIdsBySteamIds(new int[] {10})[0];
+    dbCxn.query("UPDATE games SET updated = 0 WHERE game_id = ?").bindInt(gameId).update();
+    Game game = Game.getById(gameId);
+    Assert.assertEquals(0, game.getUpdated().getEpochSecond());
+    Assert.assertNull(game.getSteamUpdated());
+
+    game.save(true);
+    game = Game.getById(gameId);
+    Assert.assertTrue(game.getUpdated().getEpochSecond() > 0);
+    Assert.assertEquals(game.getUpdated(), game.getSteamUpdated());
+    // …without a trigger doing it in a second UPDATE.
+    Assert.assertEquals(0, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name IN ('update_games', 'update_users')").singleInt());
+  }
+
+  public void testSearch() {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, ?, 0, ?)");
+    inserts.add().bindInt(100001).bindString("Portal").bindInt(2).bindLong(11000);
+    inserts.add().bindInt(100002).bindString("Portal 2").bindInt(2).bindLong(15000);
+    inserts.add().bindInt(100003).bindString("Portal Knights: The Portal Edition").bindInt(1).bindLong(16000);
+    inserts.add().bindInt(100004).bindString("Pokémon Portrait Studio").bindInt(2).bindLong(14000);
+    inserts.add().bindInt(100005).bindString("Studio Portal").bindInt(2).bindLong(12000);
+    inserts.insert();
+
+    // Parts match the starts of words, all of them have to match, and case
+    // and accents don't matter.
+    Assert.assertEquals(5, search(Game.GameFilterMode.ALL, "port").getTotalResults());
+    Assert.assertEquals(1, search(Game.GameFilterMode.ALL, "POKEMON", "port").getTotalResults());
+    Assert.assertEquals(0, search(Game.GameFilterMode.ALL, "ortal").getTotalResults());
+    // Quoted parts are phrases, matched as they are.
+    Assert.assertEquals(1, search(Game.GameFilterMode.ALL, "\"portal\"", "studio").getTotalResults());
+    Assert.assertEquals("Studio Portal", search(Game.GameFilterMode.ALL, "\"studio portal\"").getResults()[0].getTitle());
+    Assert.assertEquals(0, search(Game.GameFilterMode.ALL, "\"studi portal\"").getTotalResults());
+    // Nothing typed in is taken as FTS5 syntax.
+    Assert.assertEquals(0, search(Game.GameFilterMode.ALL, "portal", "OR", "NEAR").getTotalResults());
+    Assert.assertEquals(0, search(Game.GameFilterMode.ALL, "-", ":").getTotalResults());
+    Assert.assertEquals("\"a\"\"b\"* \"c d\"", Game.toMatchExpression(new String[] {"a\"b", "\"c d\"", "()"}));
+
+    // The best matches come first, however old, and equally good ones newest
+    // first.
+    Game[] portals = search(Game.GameFilterMode.ALL, "portal").getResults();
+    Assert.assertEquals(4, portals.length);
+    Assert.assertEquals("Portal", portals[0].getTitle());
+    Assert.assertEquals("Portal 2", portals[2].getTitle());
+    Assert.assertEquals("Studio Portal", portals[3].getTitle());
+    // The filters still apply.
+    Assert.assertEquals(3, search(Game.GameFilterMode.MAC, "portal").getTotalResults());
+
+    // The index keeps up with titles being changed and games deleted.
+    dbCxn.query("UPDATE games SET title = 'Chell Simulator' WHERE steam_id = 100001").update();
+    dbCxn.query("DELETE FROM games WHERE steam_id = 100002").update();
+    Assert.assertEquals(2, search(Game.GameFilterMode.ALL, "portal").getTotalResults());
+    Assert.assertEquals(1, search(Game.GameFilterMode.ALL, "chell").getTotalResults());
+
+    // Results are paged like any other listing.
+    Batch more = dbCxn.batch("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (?, ?, 2, 10000)");
+    for (int idx = 1; idx <= Game.perPage + 5; idx++) {
+      more.add().bindInt(200000 + idx).bindString("Aperture Lab " + idx);
+    }
+    more.insert();
+    PagedQueryResult<Game> second = Game.getByReleaseDate(1, Game.GameFilterMode.ALL, new String[] {"aperture", "lab"});
+    Assert.assertEquals(Game.perPage + 5, second.getTotalResults());
+    Assert.assertEquals(2, second.getTotalPages());
+    Assert.assertEquals(5, second.getResults().length);
+  }
+
+  public void testListingCounts() {
+    long future = LocalDate.now().plusYears(1).toEpochDay();
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, 'Game', ?, ?, ?)");
+    inserts.add().bindInt(400001).bindInt(2).bindInt(2).bindLong(11000);
+    inserts.add().bindInt(400002).bindInt(2).bindInt(1).bindLong(12000);
+    inserts.add().bindInt(400003).bindInt(1).bindInt(0).bindLong(13000);
+    inserts.add().bindInt(400004).bindInt(2).bindInt(2).bindLong(future);
+    inserts.add().bindInt(400005).bindInt(2).bindInt(2).bindNull();
+    inserts.insert();
+    assertListingCounts(3, 2, 1);
+
+    // Saving a game moves it between the listings.
+    int[] gameIds = Game.getGameIdsBySteamIds(new int[] {400002, 400003, 400004, 400005});
+    Game game = Game.getById(gameIds[0]);
+    game.setSixtyFour(Game.GamePropStatus.YES);
+    game.save();
+    assertListingCounts(3, 2, 2);
+    game = Game.getById(gameIds[1]);
+    game.setMac(Game.GamePropStatus.YES);
+    game.setSixtyFour(Game.GamePropStatus.YES);
+    game.save();
+    assertListingCounts(3, 3, 3);
+    // Games only count once they have a release date, and it's passed.
+    game = Game.getById(gameIds[3]);
+    game.setSteamReleaseDate(LocalDate.ofEpochDay(14000));
+    game.save();
+    assertListingCounts(4, 4, 4);
+    dbCxn.query("UPDATE games SET steam_release = ? WHERE game_id = ?").bindLong(10000).bindInt(gameIds[2]).update();
+    assertListingCounts(5, 5, 5);
+    // Saving without changing anything which matters leaves them alone.
+    game.setTitle("Renamed");
+    game.save();
+    assertListingCounts(5, 5, 5);
+    dbCxn.query("DELETE FROM games WHERE game_id = ?").bindInt(gameIds[0]).update();
+    assertListingCounts(4, 4, 4);
+
+    // Searches stop counting once there are more matches than anyone would
+    // page through.
+    Batch more = dbCxn.batch("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (?, 'Common Word', 2, 10000)");
+    for (int idx = 1; idx <= Game.searchCountLimit + 10; idx++) {
+      more.add().bindInt(500000 + idx);
+    }
+    more.insert();
+    PagedQueryResult<Game> search = Game.getByReleaseDate(0, Game.GameFilterMode.ALL, new String[] {"common"});
+    Assert.assertEquals(Game.searchCountLimit, search.getTotalResults());
+    Assert.assertTrue(search.isCountCapped());
+    Assert.assertFalse(Game.getByReleaseDate(0, Game.GameFilterMode.ALL, new String[] {"renamed"}).isCountCapped());
+  }
+
+  /**
+   * Check the listing totals against counting the games there and then.
+   */
+  private void assertListingCounts(int all, int mac, int catalina) {
+    int[] expected = {all, mac, catalina};
+    String[] where = {"mac <> 0", "mac = 2", "sixtyfour = 2"};
+    for (Game.GameFilterMode filter : Game.GameFilterMode.values()) {
+      int counted = dbCxn.query("SELECT COUNT(*) FROM games WHERE steam_release <= ? AND " + where[filter.ordinal()])
+        .bindLong(LocalDate.now().toEpochDay())
+        .singleInt();
+      Assert.assertEquals(filter.name(), expected[filter.ordinal()], counted);
+      Assert.assertEquals(filter.name(), counted, Game.getByReleaseDate(0, filter).getTotalResults());
+    }
+  }
+
+  public void testVoteCounts() {
+    int gameId = dbCxn.query("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (600001, 'Game', 2, 15000)").insert();
+    int otherGameId = dbCxn.query("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (600002, 'Other game', 2, 15000)").insert();
+    int[] userIds = new int[3];
+    int[] ownershipIds = new int[3];
+    for (int idx = 0; idx < 3; idx++) {
+      userIds[idx] = dbCxn.query("INSERT INTO users (steam_user_id) VALUES (?)").bindInt(600001 + idx).insert();
+      Ownership.insertAll(userIds[idx], List.of(gameId, otherGameId));
+      ownershipIds[idx] = Ownership.get(userIds[idx], gameId).getOwnershipId();
+    }
+    // Fill the listing's cache before any votes are cast.
+    Assert.assertEquals(0, listedGame(gameId).getVoteCount());
+
+    Vote.cast(userIds[0], ownershipIds[0], true);
+    Vote.cast(userIds[1], ownershipIds[1], true);
+    Vote.cast(userIds[2], ownershipIds[2], false);
+    assertVoteCounts(gameId, 3, 2);
+    // The listing is read again rather than served from its cache.
+    Assert.assertEquals(3, listedGame(gameId).getVoteCount());
+    Assert.assertEquals(67, listedGame(gameId).getYesVoteAsPercentage());
+
+    // Changing and taking back votes…
+    Vote.cast(userIds[1], ownershipIds[1], false);
+    assertVoteCounts(gameId, 3, 1);
+    Vote.cast(userIds[1], ownershipIds[1], false);
+    assertVoteCounts(gameId, 3, 1);
+    Vote.cast(userIds[0], ownershipIds[0], null);
+    assertVoteCounts(gameId, 2, 0);
+    // …and no longer owning the game take them off.
+    Vote.cast(userIds[0], ownershipIds[0], true);
+    Ownership.deleteAll(userIds[0], List.of(gameId));
+    assertVoteCounts(gameId, 2, 0);
+    Ownership.delete(userIds[1], gameId);
+    assertVoteCounts(gameId, 1, 0);
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM votes").singleInt());
+    assertVoteCounts(otherGameId, 0, 0);
+
+    // Counts which have got out of step are put right.
+    dbCxn.query("UPDATE games SET vote_count = 5, yes_vote_count = 5 WHERE game_id = ?").bindInt(gameId).update();
+    int otherOwnershipId = Ownership.get(userIds[2], otherGameId).getOwnershipId();
+    dbCxn.query("INSERT INTO votes (ownership_id, vote) VALUES (?, 1)").bindInt(otherOwnershipId).insert();
+    dbCxn.query("UPDATE games SET vote_count = 0, yes_vote_count = 0 WHERE game_id = ?").bindInt(otherGameId).update();
+    Assert.assertEquals(2, Game.rebuildVoteStats());
+    assertVoteCounts(gameId, 1, 0);
+    assertVoteCounts(otherGameId, 1, 1);
+    Assert.assertEquals(0, Game.rebuildVoteStats());
+  }
+
+  private void assertVoteCounts(int gameId, int votes, int yesVotes) {
+    Game game = Game.getById(gameId);
+    Assert.assertEquals(votes, game.getVoteCount());
+    Assert.assertEquals(yesVotes, game.getYesVoteCount());
+  }
+
+  private Game listedGame(int gameId) {
+    for (Game game : Game.getByReleaseDate(0, Game.GameFilterMode.ALL).getResults()) {
+      if (game.getGameId() == gameId) {
+        return game;
+      }
+    }
+    Assert.fail("Game " + gameId + " isn't listed");
+    return null;
+  }
+
+  public void testSeekPaging() {
+    // Enough games for a good few pages, with many sharing release dates so
+    // that the game IDs have to break ties.
+    int pageCount = 12;
+    int total = Game.perPage * (pageCount - 1) + 7;
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, 2, 2, ?)");
+    for (int idx = 0; idx < total; idx++) {
+      inserts.add().bindInt(300000 + idx).bindString("Game " + idx).bindLong(10000 + idx % 40);
+    }
+    inserts.insert();
+    int[] expected = dbCxn.query("SELECT game_id FROM games WHERE mac = 2 ORDER BY steam_release DESC, game_id DESC").intColumn();
+    Assert.assertEquals(total, expected.length);
+
+    // Numbered pages and walking through with the cursors, in either
+    // direction, all agree.
+    int pages = Game.getByReleaseDate(0, Game.GameFilterMode.MAC).getTotalPages();
+    Assert.assertEquals(pageCount, pages);
+    PagedQueryResult<Game> walked = null;
+    for (int page = 0; page < pages; page++) {
+      PagedQueryResult<Game> numbered = Game.getByReleaseDate(page, Game.GameFilterMode.MAC);
+      walked = page == 0 ? numbered : Game.getByReleaseDate(page, Game.GameFilterMode.MAC, SeekCursor.decode(walked.getNextCursor()), null);
+      int[] expectedIds = Arrays.copyOfRange(expected, page * Game.perPage, Math.min(total, (page + 1) * Game.perPage));
+      Assert.assertTrue("Page " + page, Arrays.equals(expectedIds, gameIds(numbered)));
+      Assert.assertTrue("Page " + page, Arrays.equals(expectedIds, gameIds(walked)));
+      Assert.assertEquals(page > 0, numbered.getPrevCursor() != null);
+      Assert.assertEquals(page < pages - 1, numbered.getNextCursor() != null);
+    }
+    for (int page = pages - 2; page >= 0; page--) {
+      walked = Game.getByReleaseDate(page, Game.GameFilterMode.MAC, null, SeekCursor.decode(walked.getPrevCursor()));
+      Assert.assertTrue("Page " + page, Arrays.equals(Arrays.copyOfRange(expected, page * Game.perPage, (page + 1) * Game.perPage), gameIds(walked)));
+    }
+    Assert.assertEquals(0, Game.getByReleaseDate(pages, Game.GameFilterMode.MAC).getResults().length);
+
+    // Cursors survive being passed around in URLs, and nonsense isn't taken
+    // for one.
+    SeekCursor cursor = new SeekCursor(SeekCursor.noRelease, 12345);
+    Assert.assertEquals(SeekCursor.noRelease, SeekCursor.decode(cursor.encode()).getRelease());
+    Assert.assertEquals(12345, SeekCursor.decode(cursor.encode()).getGameId());
+    Assert.assertNull(SeekCursor.decode("not a cursor"));
+    Assert.assertNull(SeekCursor.decode("MTIz"));
+  }
+
+  private int[] gameIds(PagedQueryResult<Game> result) {
+    return Arrays.stream(result.getResults()).mapToInt(Game::getGameId).toArray();
+  }
+
+  public void testSuggest() {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, ?, ?, ?)");
+    inserts.add().bindInt(100001).bindString("Portal").bindInt(2).bindInt(1).bindLong(11000);
+    inserts.add().bindInt(100002).bindString("Portal 2").bindInt(2).bindInt(2).bindLong(15000);
+    inserts.add().bindInt(100003).bindString("Portal Knights").bindInt(1).bindInt(0).bindLong(16000);
+    inserts.add().bindInt(100004).bindString("Pokémon Portrait Studio").bindInt(2).bindInt(2).bindLong(14000);
+    inserts.add().bindInt(100005).bindString("Studio Portal").bindInt(2).bindInt(2).bindLong(12000);
+    inserts.add().bindInt(100006).bindString("Teleportals").bindInt(2).bindInt(2).bindLong(13000);
+    inserts.add().bindInt(100007).bindString("Portal: Unreleased").bindInt(2).bindInt(2).bindLong(LocalDate.now().plusYears(1).toEpochDay());
+    inserts.add().bindInt(100008).bindString("Portal Unchecked").bindInt(0).bindInt(0).bindLong(11000);
+    inserts.insert();
+
+    // Titles starting with the search come first, then those with a word
+    // starting with it, then any others; shorter and then newer first.
+    Assert.assertEquals(
+      List.of("Portal", "Portal 2", "Portal Knights", "Studio Portal", "Teleportals"),
+      suggest("portal", Game.GameFilterMode.ALL, 10));
+    Assert.assertEquals(List.of("Portal", "Portal 2"), suggest("PORTAL", Game.GameFilterMode.ALL, 2));
+    // The filters are those of the listings.
+    Assert.assertEquals(List.of("Portal", "Portal 2", "Studio Portal", "Teleportals"), suggest("portal", Game.GameFilterMode.MAC, 10));
+    Assert.assertEquals(List.of("Portal 2", "Studio Portal", "Teleportals"), suggest("portal", Game.GameFilterMode.CATALINA, 10));
+    // Accents and punctuation don't matter, and two letters have to start a
+    // word.
+    Assert.assertEquals(List.of("Pokémon Portrait Studio"), suggest("pokemon-port", Game.GameFilterMode.ALL, 10));
+    Assert.assertEquals(List.of("Studio Portal", "Pokémon Portrait Studio"), suggest("st", Game.GameFilterMode.ALL, 10));
+    Assert.assertEquals(List.of(), suggest("p", Game.GameFilterMode.ALL, 10));
+    Assert.assertEquals(List.of(), suggest("latrop", Game.GameFilterMode.ALL, 10));
+
+    // Saved games are indexed straight away.
+    Game game = Game.getById(Game.getGameIdsBySteamIds(new int[] {100001})[0]);
+    game.setTitle("Chell Simulator");
+    game.save();
+    Assert.assertEquals(List.of("Chell Simulator"), suggest("chell", Game.GameFilterMode.ALL, 10));
+    Assert.assertFalse(suggest("portal", Game.GameFilterMode.ALL, 10).contains("Portal"));
+
+    // But not if they're rolled back.
+    try {
+      dbCxn.inTransaction(cxn -> {
+        game.setTitle("Wheatley Simulator");
+        game.save();
+        throw new IllegalStateException("Roll it back");
+      });
+      Assert.fail("The transaction wasn't rolled back");
+    }
+    catch (IllegalStateException e) {
+      // Expected.
+    }
+    Assert.assertEquals(List.of(), suggest("wheatley", Game.GameFilterMode.ALL, 10));
+    Assert.assertEquals(List.of("Chell Simulator"), suggest("chell", Game.GameFilterMode.ALL, 10));
+
+    // Games changed by other processes are found when the index is next
+    // refreshed, which suggest() does at most once a second.
+    dbCxn.query("UPDATE games SET title = 'Aperture Science', updated = ? WHERE steam_id = 100002")
+      .bindLong(Instant.now().getEpochSecond())
+      .update();
+    Game.getTitleIndex().refresh();
+    Assert.assertEquals(List.of("Aperture Science"), suggest("aperture", Game.GameFilterMode.ALL, 10));
+  }
+
+  private List<String> suggest(String search, Game.GameFilterMode filter, int limit) {
+    List<String> titles = new ArrayList<>();
+    for (Game game : Game.suggest(search, filter, limit)) {
+      titles.add(game.getTitle());
+    }
+    return titles;
+  }
+
+  private PagedQueryResult<Game> search(Game.GameFilterMode filter, String... queryParts) {
+    return Game.getByReleaseDate(0, filter, queryParts);
+  }
 }
@@ -25,7 +25,7 @@ public class MGCDBTest extends TestCase {
       testDbLocation = config.get("db_location") + ".test";
     }
 
-    dbCxn = new DBCxn(testDbLocation);
+    dbCxn = createDbCxn(testDbLocation);
     dbCxn.createIfNotExists(true);
     dbCxn.initializeDb();
 
@@ -35,6 +35,17 @@ public class MGCDBTest extends TestCase {
     Model.setSteamCxn(steamCxn);
   }
 
+  /**
+   * Create the DBCxn for the test database. Tests which need to watch what's
+   * done with it can override this to return a subclass.
+   *
+   * @param path The path to the test database.
+   * @return The DBCxn.
+   */
+  protected DBCxn createDbCxn(String path) {
+    return new DBCxn(path, config);
+  }
+
   /**
    * Add a test case that does nothing so Maven doesn't complain about no tests
    * being found in this class when running from CLI. (It does not seem possible
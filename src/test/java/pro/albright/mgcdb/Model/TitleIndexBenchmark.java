@@ -0,0 +1,92 @@
+package pro.albright.mgcdb.Model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.Config;
+import pro.albright.mgcdb.Util.DBCxn;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares suggesting games for a partly typed search from the title index
+ * against searching the games_fts full-text index for the same thing, over a
+ * catalog about the size of Steam's Mac games.
+ *
+ * Run with `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Model.TitleIndexBenchmark"`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TitleIndexBenchmark {
+
+  private static final String dbPath = "file:mgcdb-title-index-bench?mode=memory&cache=shared";
+  private static final String[] words = {
+    "Portal", "Knights", "Dungeon", "Simulator", "Space", "Tactics", "Legend", "Farm", "Racing", "Quest",
+    "Shadow", "Tower", "Defense", "Zombie", "Puzzle", "Island", "Dragon", "Empire", "Galaxy", "Hero"
+  };
+
+  @Param({"po", "port", "dragon qu", "zombie farm sim"})
+  public String search;
+
+  private DBCxn dbCxn;
+  private TitleIndex index;
+
+  @Setup
+  public void setUp() throws SQLException {
+    dbCxn = new DBCxn(dbPath, new Config());
+    dbCxn.createIfNotExists(true);
+    dbCxn.initializeDb();
+    Model.setDbCxn(dbCxn);
+
+    Random random = new Random(1);
+    Batch games = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, 2, ?, ?)");
+    for (int idx = 1; idx <= 50000; idx++) {
+      StringBuilder title = new StringBuilder();
+      for (int wordIdx = random.nextInt(3); wordIdx >= 0; wordIdx--) {
+        title.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      title.append(idx);
+      games.add()
+        .bindInt(idx)
+        .bindString(title.toString())
+        .bindInt(random.nextInt(3))
+        .bindLong(LocalDate.of(2005, 1, 1).plusDays(random.nextInt(5000)).toEpochDay());
+    }
+    games.insert();
+    index = Game.getTitleIndex();
+  }
+
+  @TearDown
+  public void tearDown() {
+    dbCxn.delete();
+  }
+
+  @Benchmark
+  public Game[] titleIndex() {
+    return index.suggest(search, Game.GameFilterMode.ALL, 10);
+  }
+
+  @Benchmark
+  public Game[] fullTextSearch() {
+    return Game.getByReleaseDate(0, Game.GameFilterMode.ALL, search.split(" ")).getResults();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(TitleIndexBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -1,8 +1,13 @@
 package pro.albright.mgcdb.Model;
 
 import junit.framework.Assert;
+import pro.albright.mgcdb.Util.Batch;
+import pro.albright.mgcdb.Util.PagedQueryResult;
+import pro.albright.mgcdb.Util.SeekCursor;
 
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
 
 public class UserTest extends MGCDBTest {
 
@@ -17,6 +22,23 @@ public class UserTest extends MGCDBTest {
     Assert.assertNotNull(User.getBySteamId(steamId));
   }
 
+  public void testSaveExistingUser() {
+    User me = User.getBySteamId(steamId);
+    me.setNickname("New nickname");
+    me.save();
+
+    User reloaded = User.getById(me.getUserId());
+    Assert.assertEquals("New nickname", reloaded.getNickname());
+    Assert.assertEquals(me.getAvatarHash(), reloaded.getAvatarHash());
+  }
+
+  public void testUsersNeedingOwnershipUpdate() {
+    Game.getAndSaveNewGamesFromSteam(gameCount);
+    Assert.assertEquals(1, User.getUsersNeedingOwnershipUpdate().length);
+    User.getBySteamId(steamId).updateOwnedGames();
+    Assert.assertEquals(0, User.getUsersNeedingOwnershipUpdate().length);
+  }
+
   public void testUpdateOwnedGames() {
     Game.getAndSaveNewGamesFromSteam(gameCount);
     Game[] games = Game.updateGamesFromSteam(gameCount);
@@ -28,6 +50,67 @@ public class UserTest extends MGCDBTest {
     Assert.assertNotNull(Ownership.get(me.getUserId(), gameIds[0]));
   }
 
+  public void testOwnedCountMaintained() {
+    Game.getAndSaveNewGamesFromSteam(gameCount);
+    Game.updateGamesFromSteam(gameCount);
+
+    User me = User.getBySteamId(steamId);
+    me.updateOwnedGames();
+    int[] gameIds = Ownership.getOwnedGamesInDb(me.getUserId());
+    Assert.assertEquals(9, me.getOwnedGames(0).getTotalResults());
+
+    // The count follows the games the user owns, however they're removed.
+    Ownership.delete(me.getUserId(), gameIds[0]);
+    Ownership.deleteAll(me.getUserId(), List.of(gameIds[1], gameIds[2]));
+    dbCxn.query("DELETE FROM games WHERE game_id = ?").bindInt(gameIds[3]).update();
+    Assert.assertEquals(5, me.getOwnedGames(0).getTotalResults());
+    me.updateOwnedGames();
+    Assert.assertEquals(8, me.getOwnedGames(0).getTotalResults());
+  }
+
+  public void testOwnedGamesPaging() {
+    // Games with release dates, many sharing them, then some without, with a
+    // page starting in each and one spanning both.
+    User me = User.getBySteamId(steamId);
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, steam_release) VALUES (?, ?, ?)");
+    for (int idx = 0; idx < Game.perPage + 10; idx++) {
+      inserts.add().bindInt(300000 + idx).bindString("Game " + idx).bindLong(10000 + idx % 4);
+    }
+    inserts.insert();
+    inserts = dbCxn.batch("INSERT INTO games (steam_id, title, steam_release) VALUES (?, ?, NULL)");
+    for (int idx = 0; idx < Game.perPage + 3; idx++) {
+      inserts.add().bindInt(400000 + idx).bindString("Undated " + idx);
+    }
+    inserts.insert();
+    dbCxn.query("INSERT INTO ownership (user_id, game_id) SELECT ?, game_id FROM games WHERE steam_id >= 300000")
+      .bindInt(me.getUserId())
+      .update();
+    int[] expected = dbCxn.query("SELECT g.game_id FROM ownership o INNER JOIN games g ON g.game_id = o.game_id " +
+      "WHERE o.user_id = ? ORDER BY g.steam_release DESC, g.game_id DESC")
+      .bindInt(me.getUserId())
+      .intColumn();
+
+    int pages = me.getOwnedGames(0).getTotalPages();
+    Assert.assertEquals(3, pages);
+    PagedQueryResult<Game> walked = null;
+    for (int page = 0; page < pages; page++) {
+      PagedQueryResult<Game> numbered = me.getOwnedGames(page);
+      walked = page == 0 ? numbered : me.getOwnedGames(page, SeekCursor.decode(walked.getNextCursor()), null);
+      int[] expectedIds = Arrays.copyOfRange(expected, page * Game.perPage, Math.min(expected.length, (page + 1) * Game.perPage));
+      Assert.assertTrue("Page " + page, Arrays.equals(expectedIds, gameIds(numbered)));
+      Assert.assertTrue("Page " + page, Arrays.equals(expectedIds, gameIds(walked)));
+    }
+    for (int page = pages - 2; page >= 0; page--) {
+      walked = me.getOwnedGames(page, null, SeekCursor.decode(walked.getPrevCursor()));
+      Assert.assertTrue("Page " + page, Arrays.equals(Arrays.copyOfRange(expected, page * Game.perPage, (page + 1) * Game.perPage), gameIds(walked)));
+    }
+    Assert.assertEquals(0, me.getOwnedGames(pages).getResults().length);
+  }
+
+  private int[] gameIds(PagedQueryResult<Game> result) {
+    return Arrays.stream(result.getResults()).mapToInt(Game::getGameId).toArray();
+  }
+
   public void testVotes() {
     int[] steamIds = {20, 360};
     int[] gameIds = Game.getGameIdsBySteamIds(steamIds);
@@ -89,4 +172,23 @@ public class UserTest extends MGCDBTest {
       }
     }
   }
+
+  public void testCastVote() {
+    Game.getAndSaveNewGamesFromSteam(gameCount);
+    User me = User.getBySteamId(steamId);
+    me.updateOwnedGames();
+    int gameId = Ownership.getOwnedGamesInDb(me.getUserId())[0];
+    Ownership o = Ownership.get(me.getUserId(), gameId);
+
+    // Can't vote on somebody else's game.
+    Assert.assertFalse(Vote.cast(me.getUserId() + 1, o.getOwnershipId(), true));
+    Assert.assertNull(Vote.getByOwnershipId(o.getOwnershipId()));
+
+    Assert.assertTrue(Vote.cast(me.getUserId(), o.getOwnershipId(), true));
+    Assert.assertTrue(Vote.getByOwnershipId(o.getOwnershipId()).getVote());
+    Assert.assertTrue(Vote.cast(me.getUserId(), o.getOwnershipId(), false));
+    Assert.assertFalse(Vote.getByOwnershipId(o.getOwnershipId()).getVote());
+    Assert.assertTrue(Vote.cast(me.getUserId(), o.getOwnershipId(), null));
+    Assert.assertNull(Vote.getByOwnershipId(o.getOwnershipId()));
+  }
 }
@@ -0,0 +1,113 @@
+package pro.albright.mgcdb.Util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.albright.mgcdb.Model.Game;
+import pro.albright.mgcdb.Model.Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency of the /games listing query with and without backups
+ * being made at the same time.
+ *
+ * With backups on, a background thread backs the database up over and over
+ * for the whole run. Compare the p0.99 lines of the two runs. Run with
+ * `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Util.BackupLatencyBenchmark"`.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackupLatencyBenchmark {
+
+  private static final int gameCount = 50000;
+
+  /**
+   * Whether to make backups while the listing is being queried.
+   */
+  @Param({"false", "true"})
+  public boolean withBackups;
+
+  private File dbFile;
+  private File backupFile;
+  private DBCxn dbCxn;
+  private Thread backupThread;
+  private volatile boolean running;
+  private final AtomicInteger backups = new AtomicInteger();
+  private int page = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    dbFile = File.createTempFile("mgcdb-bench", ".sqlite");
+    backupFile = File.createTempFile("mgcdb-bench-backup", ".sqlite");
+    dbCxn = new DBCxn(dbFile.getPath(), new Config());
+    dbCxn.createIfNotExists(true);
+    dbCxn.initializeDb();
+    Model.setDbCxn(dbCxn);
+
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, 2, 2, ?)");
+    for (int idx = 1; idx <= gameCount; idx++) {
+      inserts.add()
+        .bindInt(idx)
+        .bindString("Game " + idx)
+        .bindLong(LocalDate.of(2000, 1, 1).plusDays(idx % 7000).toEpochDay());
+    }
+    inserts.insert();
+
+    if (withBackups) {
+      running = true;
+      backupThread = new Thread(() -> {
+        while (running) {
+          try {
+            Backup.Result result = dbCxn.backup(backupFile.getPath());
+            if (backups.incrementAndGet() == 1) {
+              System.out.printf("%nBackup: %s%n", result);
+            }
+          }
+          catch (SQLException | IOException e) {
+            e.printStackTrace();
+            return;
+          }
+        }
+      });
+      backupThread.start();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    running = false;
+    if (backupThread != null) {
+      backupThread.join();
+      System.out.printf("%n%d backups made.%n", backups.get());
+    }
+    dbCxn.delete();
+    backupFile.delete();
+  }
+
+  @Benchmark
+  public PagedQueryResult<Game> listing() {
+    page = (page + 1) % 20;
+    return Game.getByReleaseDate(page, Game.GameFilterMode.ALL);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(BackupLatencyBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
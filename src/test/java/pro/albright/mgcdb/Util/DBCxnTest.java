@@ -0,0 +1,465 @@
+package pro.albright.mgcdb.Util;
+
+import junit.framework.Assert;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
+import pro.albright.mgcdb.Model.MGCDBTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class DBCxnTest extends MGCDBTest {
+
+  /**
+   * These tests are about how connections share a database file and its WAL,
+   * so use a file even if the other tests use an in-memory database.
+   */
+  @Override
+  protected DBCxn createDbCxn(String path) {
+    if (DBCxn.isInMemory(path)) {
+      path = System.getProperty("java.io.tmpdir") + File.separator + "mgcdb-dbcxn-test.sqlite";
+    }
+    return super.createDbCxn(path);
+  }
+
+  public void testInMemoryDatabase() throws SQLException {
+    Assert.assertFalse(dbCxn.isInMemory());
+    Assert.assertTrue(DBCxn.isInMemory("file:mgcdb?mode=memory&cache=shared"));
+    Assert.assertTrue(DBCxn.isInMemory("file:mgcdb?cache=shared&mode=memory"));
+    Assert.assertFalse(DBCxn.isInMemory("/tmp/mode=memory.sqlite"));
+    Assert.assertFalse(DBCxn.isInMemory("file:mgcdb?mode=rw"));
+
+    String path = "file:mgcdb-memory-test?mode=memory&cache=shared";
+    DBCxn memoryCxn = new DBCxn(path, config);
+    try {
+      Assert.assertTrue(memoryCxn.isInMemory());
+      memoryCxn.createIfNotExists(true);
+      memoryCxn.initializeDb();
+      memoryCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game')").insert();
+      Assert.assertEquals(1, memoryCxn.query("SELECT COUNT(*) FROM games").singleInt());
+
+      // Other connections to the same URI see the same database for as long
+      // as the DBCxn is open.
+      try (Connection cxn = DriverManager.getConnection("jdbc:sqlite:" + path);
+           Statement stmt = cxn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM games")) {
+        rs.next();
+        Assert.assertEquals(1, rs.getInt(1));
+      }
+    }
+    finally {
+      memoryCxn.delete();
+    }
+
+    // Once it's closed, the database is gone.
+    DBCxn reopened = new DBCxn(path, config);
+    try {
+      reopened.createIfNotExists(true);
+      Assert.assertEquals(0, reopened.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'games'").singleInt());
+    }
+    finally {
+      reopened.delete();
+    }
+  }
+
+  public void testPragmasByRole() throws SQLException {
+    config.set("sqlite.cache_size", -4000L)
+      .set("sqlite.writer.cache_size", -8000L)
+      .set("sqlite.wal_autocheckpoint", 500L)
+      .set("sqlite.writer.wal_autocheckpoint", 2000L)
+      .set("sqlite.synchronous", "full")
+      .set("sqlite.reader.busy_timeout", 1234L);
+    String path = System.getProperty("java.io.tmpdir") + File.separator + "mgcdb-pragmas-test.sqlite";
+    DBCxn pragmasCxn = new DBCxn(path, config);
+    try {
+      pragmasCxn.createIfNotExists(true);
+      pragmasCxn.initializeDb();
+      try (Connection writer = pragmasCxn.openWritableCxn(); Connection reader = pragmasCxn.openReadOnlyCxn()) {
+        List<String> writerSettings = SQLitePragmas.getEffective(writer);
+        List<String> readerSettings = SQLitePragmas.getEffective(reader);
+        // [sqlite.writer] takes precedence over [sqlite] for the writer...
+        Assert.assertTrue(writerSettings.toString(), writerSettings.contains("cache_size=-8000"));
+        Assert.assertTrue(writerSettings.toString(), writerSettings.contains("wal_autocheckpoint=2000"));
+        // ...but not for the readers, which have their own overrides.
+        Assert.assertTrue(readerSettings.toString(), readerSettings.contains("cache_size=-4000"));
+        Assert.assertTrue(readerSettings.toString(), readerSettings.contains("wal_autocheckpoint=500"));
+        Assert.assertTrue(readerSettings.toString(), readerSettings.contains("busy_timeout=1234"));
+        Assert.assertTrue(writerSettings.toString(), writerSettings.contains("busy_timeout=5000"));
+        // What isn't overridden comes from [sqlite] (synchronous = full is 2),
+        // or the defaults.
+        for (List<String> settings : List.of(writerSettings, readerSettings)) {
+          Assert.assertTrue(settings.toString(), settings.contains("synchronous=2"));
+          Assert.assertTrue(settings.toString(), settings.contains("journal_mode=wal"));
+          Assert.assertTrue(settings.toString(), settings.contains("temp_store=2"));
+        }
+      }
+    }
+    finally {
+      pragmasCxn.delete();
+    }
+  }
+
+  public void testConcurrentReadsAndWrites() throws InterruptedException {
+    int threadCount = 8;
+    int perThread = 25;
+    List<Thread> threads = new ArrayList<>();
+    AtomicInteger missedReads = new AtomicInteger();
+    for (int threadIdx = 0; threadIdx < threadCount; threadIdx++) {
+      int base = threadIdx * perThread;
+      Thread thread = new Thread(() -> {
+        for (int idx = 1; idx <= perThread; idx++) {
+          int gameId = dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)")
+            .bindInt(base + idx)
+            .bindString("Game " + (base + idx))
+            .insert();
+          // Each thread should be able to read its own write straight away.
+          if (dbCxn.query("SELECT COUNT(*) FROM games WHERE game_id = ?").bindInt(gameId).singleInt() != 1) {
+            missedReads.incrementAndGet();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(0, missedReads.get());
+    Assert.assertEquals(threadCount * perThread, dbCxn.query("SELECT COUNT(*) FROM games").singleInt());
+    // Every borrowed read connection should have been given back.
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.read_pool.in_use"));
+  }
+
+  public void testLoneWritesDontWaitForOthers() throws SQLException {
+    // A window long enough that waiting it out even once would show.
+    DBWriter writer = new DBWriter(dbCxn, DBWriter.Mode.PERSISTENT, 2000, 500, 16, new BusyRetry(1, 1, 0));
+    try {
+      long start = System.nanoTime();
+      for (int idx = 1; idx <= 3; idx++) {
+        int steamId = idx;
+        writer.submit(cxn -> {
+          try (Statement stmt = cxn.createStatement()) {
+            return stmt.executeUpdate("INSERT INTO games (steam_id, title) VALUES (" + steamId + ", 'Game')");
+          }
+        });
+      }
+      Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+    finally {
+      writer.close();
+    }
+    Assert.assertEquals(3, dbCxn.query("SELECT COUNT(*) FROM games").singleInt());
+  }
+
+  public void testReadConnectionSurvivesWrites() {
+    String countQuery = "SELECT COUNT(*) FROM games";
+    Assert.assertEquals(0, dbCxn.query(countQuery).singleInt());
+    long connects = Metrics.get("db.read_pool.connects");
+    long dataVersion = dbCxn.getDataVersion();
+
+    for (int idx = 1; idx <= 3; idx++) {
+      dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)")
+        .bindInt(idx)
+        .bindString("Game " + idx)
+        .insert();
+      // The write should be visible on the very next read…
+      Assert.assertEquals(idx, dbCxn.query(countQuery).singleInt());
+    }
+    // …without the read connection having been reopened.
+    Assert.assertEquals(connects, Metrics.get("db.read_pool.connects"));
+    Assert.assertTrue(dbCxn.getDataVersion() > dataVersion);
+  }
+
+  public void testStatementsAreReused() {
+    String query = "SELECT COUNT(*) FROM users WHERE user_id = ?";
+    // Prime the cache.
+    dbCxn.query(query).bindInt(1).singleInt();
+    long misses = Metrics.get("db.statement_cache.misses");
+    long hits = Metrics.get("db.statement_cache.hits");
+
+    for (int idx = 0; idx < 20; idx++) {
+      Assert.assertEquals(0, dbCxn.query(query).bindInt(idx).singleInt());
+    }
+    Assert.assertEquals(misses, Metrics.get("db.statement_cache.misses"));
+    Assert.assertTrue(Metrics.get("db.statement_cache.hits") >= hits + 20);
+  }
+
+  public void testBindingNullsAndManyParameters() throws SQLException {
+    int gameId = dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)")
+      .bindInt(1)
+      .bindString("Game 1")
+      .insert();
+    dbCxn.query("UPDATE games SET steam_release = ? WHERE game_id = ?")
+      .bindNullableString(null)
+      .bindInt(gameId)
+      .update();
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM games WHERE steam_release IS NULL").singleInt());
+
+    // More parameters than the binder's initial capacity, of mixed types.
+    Query query = dbCxn.query("SELECT ? + ? + ? + ? + ? + ?, ? || ?, ? IS NULL");
+    for (int idx = 1; idx <= 6; idx++) {
+      query.bindLong(idx);
+    }
+    query.bindString("a").bindNullableString("b").bindNull();
+    try (ResultSet rs = query.select()) {
+      Assert.assertTrue(rs.next());
+      Assert.assertEquals(21, rs.getInt(1));
+      Assert.assertEquals("ab", rs.getString(2));
+      Assert.assertTrue(rs.getBoolean(3));
+    }
+  }
+
+  public void testBatches() {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)");
+    for (int idx = 1; idx <= 100; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    int[] gameIds = inserts.insert();
+    Assert.assertEquals(100, gameIds.length);
+    for (int idx = 0; idx < gameIds.length; idx++) {
+      Assert.assertEquals(idx + 1, dbCxn.query("SELECT steam_id FROM games WHERE game_id = ?").bindInt(gameIds[idx]).singleInt());
+    }
+
+    Batch deletes = dbCxn.batch("DELETE FROM games WHERE game_id = ?");
+    for (int idx = 0; idx < 50; idx++) {
+      deletes.add().bindInt(gameIds[idx]);
+    }
+    deletes.update();
+    Assert.assertEquals(50, dbCxn.query("SELECT COUNT(*) FROM games").singleInt());
+
+    // An empty batch shouldn't touch the database at all.
+    Assert.assertEquals(0, dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)").insert().length);
+  }
+
+  public void testInTransaction() {
+    String countQuery = "SELECT COUNT(*) FROM games";
+    int seen = dbCxn.inTransaction(cxn -> {
+      dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)").bindInt(1).bindString("Game 1").insert();
+      // Reads within the transaction should see its own changes.
+      return dbCxn.query(countQuery).singleInt();
+    });
+    Assert.assertEquals(1, seen);
+    Assert.assertEquals(1, dbCxn.query(countQuery).singleInt());
+
+    // If the work throws, everything it did should be rolled back.
+    try {
+      dbCxn.inTransaction(cxn -> {
+        dbCxn.query("INSERT INTO games (steam_id, title) VALUES (?, ?)").bindInt(2).bindString("Game 2").insert();
+        throw new IllegalStateException("Rollback, please");
+      });
+      Assert.fail("The exception wasn't passed on");
+    }
+    catch (IllegalStateException e) {
+      // Expected
+    }
+    Assert.assertEquals(1, dbCxn.query(countQuery).singleInt());
+  }
+
+  public void testBusyWritesAreRetried() throws SQLException {
+    long retries = Metrics.get("db.busy.write.retries");
+    AtomicInteger attempts = new AtomicInteger();
+    // Fail as if another process had the database locked the first two
+    // times; the whole transaction should be rolled back and tried again.
+    int gameId = dbCxn.doWrite(cxn -> {
+      try (Statement stmt = cxn.createStatement()) {
+        stmt.executeUpdate("INSERT INTO games (steam_id, title) VALUES (1, 'Game 1')");
+      }
+      if (attempts.incrementAndGet() <= 2) {
+        throw new SQLiteException("database is locked", SQLiteErrorCode.SQLITE_BUSY);
+      }
+      try (Statement stmt = cxn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT game_id FROM games WHERE steam_id = 1")) {
+        rs.next();
+        return rs.getInt(1);
+      }
+    });
+    Assert.assertEquals(3, attempts.get());
+    Assert.assertEquals(retries + 2, Metrics.get("db.busy.write.retries"));
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM games WHERE game_id = ?").bindInt(gameId).singleInt());
+
+    // The same goes for a query within a transaction, which is passed up as
+    // a DBBusyException.
+    attempts.set(0);
+    dbCxn.inTransaction(cxn -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw DBException.from(new SQLiteException("database table is locked", SQLiteErrorCode.SQLITE_LOCKED), null);
+      }
+      dbCxn.query("UPDATE games SET title = 'Game one' WHERE game_id = ?").bindInt(gameId).update();
+      return null;
+    });
+    Assert.assertEquals(2, attempts.get());
+    Assert.assertEquals("Game one", dbCxn.query("SELECT title FROM games WHERE game_id = ?").bindInt(gameId).first(rs -> rs.getString(1)));
+  }
+
+  public void testBusyRetryGivesUp() {
+    BusyRetry retry = new BusyRetry(1, 4, 50);
+    long gaveUp = Metrics.get("db.busy.read.gave_up");
+    AtomicInteger attempts = new AtomicInteger();
+    long start = System.nanoTime();
+    try {
+      retry.run("read", () -> {
+        attempts.incrementAndGet();
+        throw new SQLiteException("database is locked", SQLiteErrorCode.SQLITE_BUSY);
+      });
+      Assert.fail("It didn't give up");
+    }
+    catch (SQLException e) {
+      Assert.assertTrue(DBException.isBusy(e));
+    }
+    Assert.assertTrue(attempts.get() > 1);
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertEquals(gaveUp + 1, Metrics.get("db.busy.read.gave_up"));
+
+    // Anything else isn't retried at all.
+    attempts.set(0);
+    try {
+      retry.run("read", () -> {
+        attempts.incrementAndGet();
+        throw new SQLiteException("no such table: nope", SQLiteErrorCode.SQLITE_ERROR);
+      });
+      Assert.fail("The exception wasn't passed on");
+    }
+    catch (SQLException e) {
+      Assert.assertFalse(DBException.isBusy(e));
+    }
+    Assert.assertEquals(1, attempts.get());
+  }
+
+  public void testFailuresAreTyped() {
+    dbCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game 1')").insert();
+    try {
+      dbCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game 1 again')").insert();
+      Assert.fail("A duplicate Steam ID was allowed");
+    }
+    catch (DBConstraintException e) {
+      Assert.assertEquals(DBException.SQLITE_CONSTRAINT, e.getResultCode());
+    }
+
+    try {
+      dbCxn.query("SELECT * FROM nope").select();
+      Assert.fail("A query of a missing table worked");
+    }
+    catch (DBException e) {
+      Assert.assertEquals(DBException.class, e.getClass());
+      Assert.assertTrue(e.getMessage().contains("SELECT * FROM nope"));
+    }
+    // Nothing was left holding a connection, and the writer carries on.
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.read_pool.in_use"));
+    dbCxn.query("INSERT INTO games (steam_id, title) VALUES (2, 'Game 2')").insert();
+    Assert.assertEquals(2, dbCxn.query("SELECT COUNT(*) FROM games").singleInt());
+  }
+
+  public void testCursors() {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)");
+    for (int idx = 1; idx <= 10; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    inserts.insert();
+    String query = "SELECT steam_id FROM games ORDER BY steam_id";
+
+    // A stream read to the end gives its connection back by itself…
+    Assert.assertEquals(55, dbCxn.query(query).stream(rs -> rs.getInt(1)).mapToInt(Integer::intValue).sum());
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.read_pool.in_use"));
+
+    // …and one which isn't does so when it's closed.
+    try (Stream<Integer> steamIds = dbCxn.query(query).stream(rs -> rs.getInt(1))) {
+      Assert.assertEquals(Integer.valueOf(1), steamIds.findFirst().get());
+      Assert.assertEquals(Long.valueOf(1), Metrics.snapshot().get("db.read_pool.in_use"));
+    }
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.read_pool.in_use"));
+
+    List<Integer> seen = new ArrayList<>();
+    dbCxn.query(query).forEachRow(rs -> seen.add(rs.getInt(1)));
+    Assert.assertEquals(10, seen.size());
+    Assert.assertEquals(10, dbCxn.query(query).intColumn().length);
+    Assert.assertEquals("Game 3", dbCxn.query("SELECT title FROM games WHERE steam_id = ?").bindInt(3).first(rs -> rs.getString(1)));
+    Assert.assertNull(dbCxn.query("SELECT title FROM games WHERE steam_id = ?").bindInt(11).first(rs -> rs.getString(1)));
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.read_pool.in_use"));
+  }
+
+  public void testColumnMappers() {
+    ColumnMapper<String> mapper = new ColumnMapper<>() {
+      @Override
+      public DBCxn.RowMapper<String> compile(Columns columns) {
+        int title = columns.indexOf("title");
+        int count = columns.indexOf("owner_count");
+        return rs -> rs.getString(title) + (count == 0 ? "" : " (" + rs.getInt(count) + ")");
+      }
+    };
+    dbCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game')").insert();
+
+    long compiles = Metrics.get("db.row_mapper.compiles");
+    Assert.assertEquals("Game", dbCxn.query("SELECT * FROM games").first(mapper));
+    Assert.assertEquals("Game (3)", dbCxn.query("SELECT title, 3 AS OWNER_COUNT FROM games").first(mapper));
+    Assert.assertEquals(compiles + 2, Metrics.get("db.row_mapper.compiles"));
+
+    // Running the same queries again uses the mappers compiled the first time.
+    Assert.assertEquals("Game", dbCxn.query("SELECT * FROM games").first(mapper));
+    Assert.assertEquals(1, dbCxn.query("SELECT title, 3 AS OWNER_COUNT FROM games").toArray(mapper, String[]::new).length);
+    Assert.assertEquals(compiles + 2, Metrics.get("db.row_mapper.compiles"));
+  }
+
+  public void testCheckpoints() throws SQLException {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)");
+    for (int idx = 1; idx <= 1000; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    inserts.insert();
+
+    Checkpointer checkpointer = dbCxn.getCheckpointer();
+    // The WAL is nowhere near the default threshold.
+    Assert.assertEquals(Checkpointer.Mode.PASSIVE, checkpointer.chooseMode());
+
+    long frames = Metrics.get("db.checkpoint.frames_total");
+    Checkpointer.Result result = checkpointer.checkpoint(Checkpointer.Mode.TRUNCATE);
+    Assert.assertFalse(result.busy);
+    Assert.assertEquals(0, result.walFrames);
+    Assert.assertEquals(Long.valueOf(0), Metrics.snapshot().get("db.wal.size_bytes"));
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM games WHERE steam_id = 1000").singleInt());
+    Assert.assertTrue(Metrics.get("db.checkpoint.truncate") > 0);
+    Assert.assertTrue(Metrics.get("db.checkpoint.frames_total") > frames);
+  }
+
+  public void testBackup() throws SQLException, IOException {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title) VALUES (?, ?)");
+    for (int idx = 1; idx <= 2000; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    inserts.insert();
+
+    File dest = File.createTempFile("mgcdb-backup", ".sqlite");
+    try {
+      Backup.Result result = dbCxn.backup(dest.getPath());
+      Assert.assertTrue(result.pages > 1);
+      Assert.assertEquals(result.bytes, dest.length());
+      Assert.assertFalse(new File(dest.getPath() + ".partial").exists());
+      Assert.assertEquals(1, Metrics.get("db.backup.completed"));
+
+      try (Connection cxn = DriverManager.getConnection("jdbc:sqlite:" + dest.getPath()); Statement stmt = cxn.createStatement()) {
+        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM games")) {
+          rs.next();
+          Assert.assertEquals(2000, rs.getInt(1));
+        }
+        try (ResultSet rs = stmt.executeQuery("PRAGMA integrity_check")) {
+          rs.next();
+          Assert.assertEquals("ok", rs.getString(1));
+        }
+      }
+    }
+    finally {
+      dest.delete();
+      new File(dest.getPath() + "-wal").delete();
+      new File(dest.getPath() + "-shm").delete();
+    }
+  }
+}
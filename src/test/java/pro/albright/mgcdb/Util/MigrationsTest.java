@@ -0,0 +1,152 @@
+package pro.albright.mgcdb.Util;
+
+import junit.framework.Assert;
+import pro.albright.mgcdb.Model.MGCDBTest;
+import pro.albright.mgcdb.Util.Migrations.Migration;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+
+public class MigrationsTest extends MGCDBTest {
+
+  private String dbPath;
+
+  @Override
+  protected DBCxn createDbCxn(String path) {
+    dbPath = path;
+    return super.createDbCxn(path);
+  }
+
+  public void testAllMigrationsApplied() {
+    Migrations migrations = new Migrations(dbCxn);
+    Assert.assertTrue(migrations.getPending(true).isEmpty());
+    int applied = migrations.getAppliedVersions().size();
+    Assert.assertEquals(applied, dbCxn.query("SELECT COUNT(*) FROM schema_version").singleInt());
+
+    // Applying them again does nothing.
+    migrations.applyAll();
+    Assert.assertEquals(applied, dbCxn.query("SELECT COUNT(*) FROM schema_version").singleInt());
+  }
+
+  public void testPendingMigrations() throws InterruptedException {
+    Migrations migrations = new Migrations(dbCxn, List.of(
+      new Migration(1001, "Create a table", "CREATE TABLE migration_test (id INTEGER PRIMARY KEY, title TEXT)"),
+      new Migration(1002, "Index the table", "CREATE INDEX migration_test_title ON migration_test (title)").online(),
+      new Migration(1003, "Add a column", "ALTER TABLE migration_test ADD COLUMN count INTEGER NOT NULL DEFAULT 0"),
+      new Migration(1004, "Index the column", "CREATE INDEX migration_test_count ON migration_test (count)").online()
+    ));
+    // An online migration with another after it is applied in order rather
+    // than left for later.
+    Assert.assertEquals(3, migrations.getPending(false).size());
+    Assert.assertEquals(4, migrations.getPending(true).size());
+
+    migrations.apply(false);
+    Assert.assertEquals(1004, migrations.getPending(true).get(0).getVersion());
+    Assert.assertTrue(migrations.getPending(false).isEmpty());
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'migration_test_title'").singleInt());
+    Assert.assertEquals(0, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'migration_test_count'").singleInt());
+
+    migrations.applyOnlineInBackground().join();
+    Assert.assertTrue(migrations.getPending(true).isEmpty());
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'migration_test_count'").singleInt());
+  }
+
+  public void testAppliedInVersionOrder() {
+    Migrations migrations = new Migrations(dbCxn, List.of(
+      new Migration(1001, "Create a table", "CREATE TABLE migration_test (id INTEGER PRIMARY KEY, title TEXT)"),
+      new Migration(1002, "Index the table", "CREATE INDEX migration_test_title ON migration_test (title)").online(),
+      new Migration(1003, "Drop the index", "DROP INDEX migration_test_title")
+    ));
+    // Applying 1003 before 1002 would fail, as there would be no index to
+    // drop yet.
+    migrations.apply(false);
+    Assert.assertTrue(migrations.getPending(true).isEmpty());
+    Assert.assertEquals(0, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'migration_test_title'").singleInt());
+  }
+
+  public void testFailedMigrationIsRolledBack() throws InterruptedException {
+    Migrations migrations = new Migrations(dbCxn, List.of(
+      new Migration(1001, "Fail halfway", "CREATE TABLE migration_test (id INTEGER PRIMARY KEY)", "NOT SQL").online()
+    ));
+    migrations.applyOnlineInBackground().join();
+    Assert.assertEquals(1, migrations.getPending(true).size());
+    Assert.assertEquals(0, dbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'migration_test'").singleInt());
+  }
+
+  public void testRebuildWithoutForeignKeys() throws SQLException {
+    int userId = dbCxn.query("INSERT INTO users (steam_user_id) VALUES (1)").insert();
+    int gameId = dbCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game')").insert();
+    dbCxn.query("INSERT INTO ownership (user_id, game_id) VALUES (?, ?)").bindInt(userId).bindInt(gameId).insert();
+
+    String[] rebuildGames = {
+      "CREATE TABLE games_new (game_id INTEGER PRIMARY KEY, steam_id INTEGER UNIQUE, title TEXT NOT NULL DEFAULT '')",
+      "INSERT INTO games_new SELECT game_id, steam_id, title FROM games",
+      "DROP TABLE games",
+      "ALTER TABLE games_new RENAME TO games",
+    };
+    Migrations migrations = new Migrations(dbCxn, List.of(
+      new Migration(1001, "Rebuild games", rebuildGames).withoutForeignKeys()
+    ));
+    migrations.applyAll();
+    // Dropping the old table didn't cascade to the ownership records…
+    Assert.assertEquals(1, dbCxn.query("SELECT COUNT(*) FROM ownership").singleInt());
+    // …and foreign keys are enforced again afterwards.
+    try {
+      dbCxn.doWrite(cxn -> cxn.createStatement().executeUpdate("INSERT INTO ownership (user_id, game_id) VALUES (12345, 12345)"));
+      Assert.fail("Foreign keys weren't enforced");
+    }
+    catch (SQLException e) {
+      // Good.
+    }
+  }
+
+  public void testTimesConvertedToIntegers() throws SQLException {
+    // A second database next to the test one, in memory if that is.
+    String oldDbPath = DBCxn.isInMemory(dbPath) ? dbPath.replaceFirst("\\?", "-old?") : dbPath + ".old";
+    DBCxn oldDbCxn = new DBCxn(oldDbPath, config);
+    try {
+      oldDbCxn.createIfNotExists(true);
+      // A database from before times were stored as integers.
+      new Migrations(oldDbCxn, Migrations.registry.subList(0, 10)).applyAll();
+      int gameId = oldDbCxn.query("INSERT INTO games (steam_id, title, steam_release, created) VALUES (1, 'Game', '2013-07-09', '2020-01-02 03:04:05')").insert();
+      oldDbCxn.query("INSERT INTO games (steam_id, title, steam_release) VALUES (2, 'No release date', NULL)").insert();
+      oldDbCxn.query("INSERT INTO games (steam_id, title) VALUES (3, 'Not updated from Steam yet')").insert();
+      oldDbCxn.query("INSERT INTO games (steam_id, title, steam_release) VALUES (4, 'Blank release date', '')").insert();
+      int userId = oldDbCxn.query("INSERT INTO users (steam_user_id) VALUES (1)").insert();
+      oldDbCxn.query("INSERT INTO ownership (user_id, game_id) VALUES (?, ?)").bindInt(userId).bindInt(gameId).insert();
+
+      new Migrations(oldDbCxn).applyAll();
+      try (ResultSet rs = oldDbCxn.query("SELECT steam_release, created, steam_updated, typeof(updated) FROM games ORDER BY steam_id").select()) {
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(LocalDate.parse("2013-07-09").toEpochDay(), rs.getLong(1));
+        Assert.assertEquals(1577934245, rs.getLong(2));
+        Assert.assertEquals(0, rs.getLong(3));
+        Assert.assertEquals("integer", rs.getString(4));
+        Assert.assertTrue(rs.next());
+        rs.getLong(1);
+        Assert.assertTrue(rs.wasNull());
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(LocalDate.parse("0000-01-01").toEpochDay(), rs.getLong(1));
+        // Steam's empty dates sorted before any other and so were listed,
+        // which they still are.
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(LocalDate.parse("0000-01-01").toEpochDay(), rs.getLong(1));
+      }
+      Assert.assertEquals(0, oldDbCxn.query("SELECT last_game_synch FROM users").singleInt());
+      Assert.assertEquals(1, oldDbCxn.query("SELECT COUNT(*) FROM ownership WHERE typeof(created) = 'integer'").singleInt());
+      // The indexes survived the rebuild, and the triggers are gone.
+      Assert.assertEquals(1, oldDbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE name = 'games_mac_release'").singleInt());
+      Assert.assertEquals(0, oldDbCxn.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name IN ('update_games', 'update_users')").singleInt());
+      // The games which were already there were added to the full-text index.
+      Assert.assertEquals(2, oldDbCxn.query("SELECT COUNT(*) FROM games_fts WHERE games_fts MATCH 'release'").singleInt());
+      // And were counted.
+      Assert.assertEquals(1, oldDbCxn.query("SELECT owned_count FROM users").singleInt());
+      Assert.assertEquals(3, oldDbCxn.query("SELECT COUNT(*) FROM listing_counts WHERE games = 0").singleInt());
+    }
+    finally {
+      oldDbCxn.delete();
+    }
+  }
+}
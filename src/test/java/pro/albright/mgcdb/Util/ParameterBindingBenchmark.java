@@ -0,0 +1,105 @@
+package pro.albright.mgcdb.Util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares binding the parameters of Game.save()'s UPDATE query through a
+ * Map<Integer, Object>, as the models used to, against binding them through
+ * Query.
+ *
+ * Run with `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Util.ParameterBindingBenchmark"`, or see the README.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParameterBindingBenchmark {
+
+  private static final String sql = "UPDATE games SET steam_id = ?, title = ?, mac = ?, sixtyfour = ?, silicon = ?, steam_release = ? WHERE game_id = ?";
+
+  private Connection cxn;
+  private PreparedStatement stmt;
+  private int gameId = 0;
+
+  @Setup
+  public void setUp() throws SQLException {
+    cxn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    cxn.createStatement().execute("CREATE TABLE games (game_id INTEGER PRIMARY KEY, steam_id INTEGER, title TEXT, mac INTEGER, sixtyfour INTEGER, silicon INTEGER, steam_release TEXT)");
+    stmt = cxn.prepareStatement(sql);
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    stmt.close();
+    cxn.close();
+  }
+
+  @Benchmark
+  public PreparedStatement mapBinding() throws SQLException {
+    gameId++;
+    Map<Integer, Object> parameters = new HashMap<>();
+    parameters.put(1, gameId);
+    parameters.put(2, "Counter-Strike");
+    parameters.put(3, 2);
+    parameters.put(4, 1);
+    parameters.put(5, 0);
+    parameters.put(6, "2000-11-01");
+    parameters.put(7, gameId);
+    stmt.clearParameters();
+    // This is how DBCxn.prepareStatement() bound parameters before Query.
+    for (Integer index : parameters.keySet()) {
+      Object value = parameters.get(index);
+      Class paramClass = value.getClass();
+      if (paramClass == Integer.class) {
+        stmt.setInt(index, (Integer) value);
+      }
+      else if (paramClass == Long.class) {
+        stmt.setLong(index, (Long) value);
+      }
+      else {
+        stmt.setString(index, value.toString());
+      }
+    }
+    return stmt;
+  }
+
+  @Benchmark
+  public PreparedStatement queryBinding() throws SQLException {
+    gameId++;
+    stmt.clearParameters();
+    new Query(null, sql)
+      .bindInt(gameId)
+      .bindString("Counter-Strike")
+      .bindInt(2)
+      .bindInt(1)
+      .bindInt(0)
+      .bindNullableString("2000-11-01")
+      .bindInt(gameId)
+      .bindTo(stmt);
+    return stmt;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(ParameterBindingBenchmark.class.getSimpleName())
+      .addProfiler("gc")
+      .build();
+    new Runner(options).run();
+  }
+}
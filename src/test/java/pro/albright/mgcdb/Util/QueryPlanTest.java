@@ -0,0 +1,183 @@
+package pro.albright.mgcdb.Util;
+
+import junit.framework.Assert;
+import pro.albright.mgcdb.Model.*;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the queries the models make are planned to use indexes.
+ *
+ * The models are put through their paces while the queries they run are
+ * recorded, then each query is run through EXPLAIN QUERY PLAN with the same
+ * parameters. A query fails the test if SQLite plans to scan a whole table
+ * (or a whole index, which isn't much better) or to sort its results in a
+ * temporary B-tree rather than reading them from an index in order. Either
+ * of those means the query gets slower as the database grows.
+ *
+ * If a new query fails, add an index for it in a migration. If there's a
+ * good reason it can't use one, add it to `allowed` with that reason.
+ */
+public class QueryPlanTest extends MGCDBTest {
+
+  /**
+   * Queries which are allowed to fail the checks, keyed by a part of their
+   * SQL, with the reason why.
+   */
+  private static final Map<String, String> allowed = Map.of(
+    "GROUP BY o.game_id",
+    "Recounting the votes on every game reads every vote. It's only done by the rebuildvotestats task.",
+    "WHERE vote_count <> 0 OR yes_vote_count <> 0",
+    "Recounting the votes also reads every game, to find those with counts which should be 0. It's only done " +
+      "by the rebuildvotestats task.",
+    "games_fts MATCH ?",
+    "Searches find their games through the full-text index, which the plan shows as a SCAN of the virtual " +
+      "table, and sort them by how well they match, which can only be worked out once they've been found."
+  );
+
+  private final Map<String, Query> queries = new LinkedHashMap<>();
+  private boolean recording = false;
+  private String dbPath;
+
+  @Override
+  protected DBCxn createDbCxn(String path) {
+    dbPath = path;
+    return new DBCxn(path, config) {
+      @Override
+      protected PreparedStatement prepareStatement(Query query, StatementCache statements) throws SQLException {
+        record(query);
+        return super.prepareStatement(query, statements);
+      }
+
+      @Override
+      int[] doBatchQuery(Batch batch, boolean returnGeneratedKeys) {
+        if (batch.size() > 0) {
+          record(batch.getRows().get(0));
+        }
+        return super.doBatchQuery(batch, returnGeneratedKeys);
+      }
+    };
+  }
+
+  private synchronized void record(Query query) {
+    if (recording) {
+      queries.putIfAbsent(query.getSql(), query);
+    }
+  }
+
+  public void testModelQueriesUseIndexes() throws SQLException {
+    recording = true;
+    exerciseModels();
+    synchronized (this) {
+      recording = false;
+    }
+
+    List<String> failures = new ArrayList<>();
+    try (Connection cxn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+      for (Query query : queries.values()) {
+        List<String> plan = explain(cxn, query);
+        boolean bad = plan.stream().anyMatch(line -> line.startsWith("SCAN ") || line.startsWith("USE TEMP B-TREE FOR") && line.contains("ORDER BY"));
+        boolean isAllowed = allowed.keySet().stream().anyMatch(sql -> query.getSql().contains(sql));
+        if (bad && !isAllowed) {
+          failures.add(query.getSql() + "\n    " + String.join("\n    ", plan));
+        }
+      }
+    }
+    Assert.assertTrue("No queries were recorded", queries.size() > 20);
+    Assert.assertTrue("Queries without a usable index:\n" + String.join("\n", failures), failures.isEmpty());
+  }
+
+  public void testOwnedGamesSeekThroughReleaseIndex() throws SQLException {
+    Game.getAndSaveNewGamesFromSteam(gameCount);
+    Game.updateGamesFromSteam(gameCount);
+    User user = User.authWithSteamId(76561198024933199L, true);
+    user.updateOwnedGames();
+    SeekCursor cursor = new SeekCursor(LocalDate.now().toEpochDay(), Integer.MAX_VALUE);
+    recording = true;
+    user.getOwnedGames(1, cursor, null);
+    synchronized (this) {
+      recording = false;
+    }
+
+    // The page is read from the games index in order, not sorted after
+    // finding everything the user owns.
+    Query seek = queries.values().stream()
+      .filter(query -> query.getSql().contains("(g.steam_release, g.game_id) < (?, ?)"))
+      .findFirst()
+      .orElse(null);
+    Assert.assertNotNull("The owned games weren't read past the cursor", seek);
+    try (Connection cxn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+      List<String> plan = explain(cxn, seek);
+      Assert.assertTrue(String.join("\n", plan), plan.get(0).startsWith("SEARCH") && plan.get(0).contains("games_release_id_mac"));
+      Assert.assertFalse(String.join("\n", plan), plan.stream().anyMatch(line -> line.startsWith("USE TEMP B-TREE")));
+    }
+  }
+
+  /**
+   * Call every model method which queries the database.
+   */
+  private void exerciseModels() {
+    Game.getAndSaveNewGamesFromSteam(gameCount);
+    Game.updateGamesFromSteam(gameCount);
+    Game.getNewestGameSteamId();
+    Game.existsBySteamId(10);
+    int[] gameIds = Game.getGameIdsBySteamIds(new int[] {10, 570});
+    SeekCursor cursor = new SeekCursor(LocalDate.now().toEpochDay(), gameIds[0]);
+    for (Game.GameFilterMode filter : Game.GameFilterMode.values()) {
+      Game.getByReleaseDate(0, filter);
+      Game.getByReleaseDate(1, filter, cursor, null);
+      Game.getByReleaseDate(0, filter, null, cursor);
+      Game.getByReleaseDate(20, filter);
+      Game.getByReleaseDate(1, filter, new String[] {"Counter", "Strike"});
+      Game.suggest("Counter", filter, 10);
+    }
+
+    User user = User.authWithSteamId(76561198024933199L, true);
+    user.updateOwnedGames();
+    user.bumpAuthDate();
+    user.save();
+    User.getById(user.getUserId());
+    User.getUsersNeedingOwnershipUpdate();
+    user.getOwnedGames(0);
+    user.getOwnedGames(1, cursor, null);
+    user.getOwnedGames(0, null, cursor);
+    user.getOwnedGames(20);
+
+    int gameId = Ownership.getOwnedGamesInDb(user.getUserId())[0];
+    Ownership ownership = Ownership.get(user.getUserId(), gameId);
+    Vote.cast(user.getUserId(), ownership.getOwnershipId(), true);
+    Vote.cast(user.getUserId(), ownership.getOwnershipId(), false);
+    Vote.cast(user.getUserId(), ownership.getOwnershipId(), null);
+    Game.getById(gameId).updateVoteCounts();
+    Game.rebuildVoteStats();
+    Ownership.delete(user.getUserId(), gameId);
+    new Ownership(user.getUserId(), gameId).save();
+    Ownership.deleteAll(user.getUserId(), List.of(gameIds[0], gameIds[1]));
+  }
+
+  /**
+   * Get the query plan for a query.
+   *
+   * @param cxn The connection to explain the query on.
+   * @param query The query, with its parameters bound.
+   * @return The lines of the plan.
+   * @throws SQLException If the query couldn't be explained.
+   */
+  private List<String> explain(Connection cxn, Query query) throws SQLException {
+    List<String> plan = new ArrayList<>();
+    try (PreparedStatement stmt = cxn.prepareStatement("EXPLAIN QUERY PLAN " + query.getSql())) {
+      query.bindTo(stmt);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          plan.add(rs.getString("detail"));
+        }
+      }
+    }
+    return plan;
+  }
+}
@@ -0,0 +1,106 @@
+package pro.albright.mgcdb.Util;
+
+import junit.framework.Assert;
+import pro.albright.mgcdb.Model.MGCDBTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.List;
+
+public class QueryStatsTest extends MGCDBTest {
+
+  public void testNormalize() {
+    Assert.assertEquals(
+      "SELECT * FROM games WHERE steam_id = ? AND title = ? AND mac <> ?",
+      QueryStats.normalize("SELECT *\n  FROM games   WHERE steam_id = 440 AND title = 'Team Fortress''s 2' AND mac <> ?")
+    );
+    Assert.assertEquals(
+      "SELECT game_id FROM games WHERE steam_id IN (?, …)",
+      QueryStats.normalize("SELECT game_id FROM games WHERE steam_id IN (?, ?, ?)")
+    );
+    Assert.assertEquals(
+      QueryStats.normalize("SELECT game_id FROM games WHERE steam_id IN (1, 2)"),
+      QueryStats.normalize("SELECT game_id FROM games WHERE steam_id IN (?,?,?,?)")
+    );
+    // Digits in identifiers and quoted names aren't values.
+    Assert.assertEquals("SELECT sixtyfour, \"col 2\" FROM t1", QueryStats.normalize("SELECT sixtyfour, \"col 2\" FROM t1"));
+  }
+
+  public void testRecordsQueries() {
+    QueryStats stats = dbCxn.getQueryStats();
+    stats.reset();
+    String insert = "INSERT INTO games (steam_id, title) VALUES (?, ?)";
+    for (int idx = 1; idx <= 5; idx++) {
+      dbCxn.query(insert).bindInt(idx).bindString("Game " + idx).insert();
+    }
+    Batch batch = dbCxn.batch(insert);
+    for (int idx = 6; idx <= 10; idx++) {
+      batch.add().bindInt(idx).bindString("Game " + idx);
+    }
+    batch.update();
+    String select = "SELECT * FROM games WHERE steam_id > ?";
+    dbCxn.query(select).bindInt(2).forEachRow(rs -> {});
+    // Only read one of the rows this time.
+    Assert.assertEquals("Game 1", dbCxn.query(select).bindInt(0).first(rs -> rs.getString("title")));
+
+    QueryStats.Shape insertShape = stats.get(insert);
+    Assert.assertEquals(6, insertShape.getCount());
+    Assert.assertEquals(10, insertShape.getRows());
+
+    QueryStats.Shape selectShape = stats.get("SELECT * FROM games WHERE steam_id > 5");
+    Assert.assertEquals(2, selectShape.getCount());
+    Assert.assertEquals(9, selectShape.getRows());
+    Assert.assertTrue(selectShape.getPercentileMicros(50) <= selectShape.getPercentileMicros(99));
+    Assert.assertTrue(selectShape.getPercentileMicros(99) <= selectShape.getMaxMicros());
+    Assert.assertTrue(selectShape.getTotalMicros() >= selectShape.getMaxMicros());
+
+    List<QueryStats.Shape> top = stats.getTop(10);
+    Assert.assertEquals(2, top.size());
+    Assert.assertTrue(top.get(0).getTotalMicros() >= top.get(1).getTotalMicros());
+    String report = stats.report(1);
+    Assert.assertTrue(report.startsWith("Top 1 of 2 query shapes"));
+    Assert.assertTrue(report.contains(top.get(0).getSql()));
+
+    stats.reset();
+    Assert.assertNull(stats.get(insert));
+  }
+
+  public void testLogsSlowQueries() {
+    QueryStats stats = new QueryStats(dbCxn, 10);
+    long slow = Metrics.get("db.query.slow");
+    Query query = dbCxn.query("SELECT * FROM games WHERE steam_id = ?").bindInt(440);
+
+    PrintStream err = System.err;
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(log, true));
+    try {
+      stats.record(query, 9999, 1, 0);
+      stats.record(query, 10000, 1, 0);
+      // Wait for the slow query to be logged.
+      stats.stop();
+    }
+    finally {
+      System.setErr(err);
+    }
+
+    Assert.assertEquals(slow + 1, Metrics.get("db.query.slow"));
+    String logged = log.toString();
+    Assert.assertTrue(logged.startsWith("Slow query (10 ms, 1 rows): SELECT * FROM games WHERE steam_id = ?"));
+    Assert.assertTrue(logged.contains("Parameters: [440]"));
+    Assert.assertTrue(logged.contains("Plan: SEARCH"));
+  }
+
+  public void testExplain() throws SQLException {
+    Query query = dbCxn.query("SELECT * FROM games WHERE steam_id = ?").bindInt(440);
+    Assert.assertEquals("[440]", query.describeParams(100));
+    List<String> plan = dbCxn.getQueryStats().explain(query);
+    Assert.assertFalse(plan.isEmpty());
+    Assert.assertTrue(String.join("\n", plan).contains("USING INDEX"));
+
+    Query update = dbCxn.query("UPDATE games SET title = ? WHERE game_id = ?").bindString("A 'quoted' title").bindNull();
+    Assert.assertEquals("['A ''quoted'' title', NULL]", update.describeParams(100));
+    Assert.assertEquals("['A ''q…', NULL]", update.describeParams(4));
+    Assert.assertFalse(dbCxn.getQueryStats().explain(update).isEmpty());
+  }
+}
@@ -0,0 +1,94 @@
+package pro.albright.mgcdb.Util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.albright.mgcdb.Model.Game;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares fetching the first page of the /games listing, count included,
+ * from the database and from the result cache.
+ *
+ * Run with `mvn test-compile exec:exec -Dexec.classpathScope=test
+ * -Dexec.executable=java -Dexec.args="-cp %classpath
+ * pro.albright.mgcdb.Util.ResultCacheBenchmark"`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultCacheBenchmark {
+
+  private static final int gameCount = 50000;
+  private static final String countSql = "SELECT COUNT(*) FROM games g WHERE g.steam_release <= ? AND g.mac <> ?";
+  private static final String selectSql = "SELECT g.*, " +
+    "(SELECT COUNT(*) FROM ownership o INNER JOIN votes v USING (ownership_id) WHERE o.game_id = g.game_id) AS vote_count, " +
+    "(SELECT SUM(v.vote) FROM ownership o INNER JOIN votes v USING (ownership_id) WHERE o.game_id = g.game_id) AS yes_vote_count " +
+    "FROM games g WHERE g.steam_release <= ? AND g.mac <> ? " +
+    "ORDER BY g.steam_release DESC LIMIT ? OFFSET ?";
+
+  private File dbFile;
+  private DBCxn dbCxn;
+  private long today;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    dbFile = File.createTempFile("mgcdb-bench", ".sqlite");
+    dbCxn = new DBCxn(dbFile.getPath(), new Config().set("db.result_cache_entries", 1000L));
+    dbCxn.createIfNotExists(true);
+    dbCxn.initializeDb();
+
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, sixtyfour, steam_release) VALUES (?, ?, 2, 2, ?)");
+    for (int idx = 1; idx <= gameCount; idx++) {
+      inserts.add()
+        .bindInt(idx)
+        .bindString("Game " + idx)
+        .bindLong(LocalDate.of(2000, 1, 1).plusDays(idx % 7000).toEpochDay());
+    }
+    inserts.insert();
+    today = LocalDate.now().toEpochDay();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    dbCxn.delete();
+  }
+
+  @Benchmark
+  public Game[] uncached() {
+    return listing(false);
+  }
+
+  @Benchmark
+  public Game[] cached() {
+    return listing(true);
+  }
+
+  private Game[] listing(boolean cached) {
+    Query count = dbCxn.query(countSql).bindLong(today).bindInt(0);
+    Query select = dbCxn.query(selectSql).bindLong(today).bindInt(0).bindInt(Game.perPage).bindInt(0);
+    if (cached) {
+      count.cached();
+      select.cached();
+    }
+    count.singleInt();
+    return select.toArray(Game.rowMapper, Game[]::new);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(ResultCacheBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
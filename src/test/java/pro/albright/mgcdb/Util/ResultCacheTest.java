@@ -0,0 +1,179 @@
+package pro.albright.mgcdb.Util;
+
+import junit.framework.Assert;
+import pro.albright.mgcdb.Model.Game;
+import pro.albright.mgcdb.Model.MGCDBTest;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class ResultCacheTest extends MGCDBTest {
+
+  private static final String countQuery = "SELECT COUNT(*) FROM games WHERE mac = ?";
+
+  /**
+   * The cache is off unless it's configured, so turn it on.
+   */
+  @Override
+  protected DBCxn createDbCxn(String path) {
+    config.set("db.result_cache_entries", 1000L);
+    return super.createDbCxn(path);
+  }
+
+  private int countGames() {
+    return dbCxn.query(countQuery).bindInt(0).cached().singleInt();
+  }
+
+  public void testCachesUntilTableWritten() {
+    dbCxn.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game')").insert();
+    long hits = Metrics.get("db.result_cache.hits");
+    long misses = Metrics.get("db.result_cache.misses");
+
+    Assert.assertEquals(1, countGames());
+    Assert.assertEquals(1, countGames());
+    Assert.assertEquals(misses + 1, Metrics.get("db.result_cache.misses"));
+    Assert.assertEquals(hits + 1, Metrics.get("db.result_cache.hits"));
+    // Different parameters are a different result.
+    Assert.assertEquals(0, dbCxn.query(countQuery).bindInt(1).cached().singleInt());
+    Assert.assertEquals(misses + 2, Metrics.get("db.result_cache.misses"));
+
+    // A write to a table the query doesn't read leaves it alone…
+    dbCxn.query("INSERT INTO users (steam_user_id) VALUES (1)").insert();
+    Assert.assertEquals(1, countGames());
+    Assert.assertEquals(hits + 2, Metrics.get("db.result_cache.hits"));
+
+    // …but one to a table it does read doesn't.
+    dbCxn.query("INSERT INTO games (steam_id, title) VALUES (2, 'Another game')").insert();
+    Assert.assertEquals(2, countGames());
+    Assert.assertEquals(hits + 2, Metrics.get("db.result_cache.hits"));
+
+    // Deletes from any table, which may cascade to others, and writes made
+    // some other way make every result stale.
+    Assert.assertEquals(2, countGames());
+    dbCxn.query("DELETE FROM users").update();
+    Assert.assertEquals(2, countGames());
+    Assert.assertEquals(hits + 3, Metrics.get("db.result_cache.hits"));
+    dbCxn.inTransaction(cxn -> null);
+    Assert.assertEquals(2, countGames());
+    try {
+      dbCxn.doWrite(cxn -> cxn.createStatement().executeUpdate("UPDATE games SET mac = 1 WHERE steam_id = 2"));
+    }
+    catch (SQLException e) {
+      fail(e.getMessage());
+    }
+    Assert.assertEquals(1, countGames());
+  }
+
+  public void testListingIsCached() {
+    Batch inserts = dbCxn.batch("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (?, ?, 2, 15000)");
+    for (int idx = 1; idx <= 30; idx++) {
+      inserts.add().bindInt(idx).bindString("Game " + idx);
+    }
+    inserts.insert();
+
+    PagedQueryResult<Game> first = Game.getByReleaseDate(0, Game.GameFilterMode.ALL);
+    long hits = Metrics.get("db.result_cache.hits");
+    PagedQueryResult<Game> second = Game.getByReleaseDate(0, Game.GameFilterMode.ALL);
+    // The page is cached; the count is read from listing_counts each time.
+    Assert.assertEquals(hits + 1, Metrics.get("db.result_cache.hits"));
+    Assert.assertEquals(first.getTotalResults(), second.getTotalResults());
+    Assert.assertEquals(first.getResults().length, second.getResults().length);
+    for (int idx = 0; idx < first.getResults().length; idx++) {
+      Game expected = first.getResults()[idx];
+      Game actual = second.getResults()[idx];
+      Assert.assertEquals(expected.getGameId(), actual.getGameId());
+      Assert.assertEquals(expected.getTitle(), actual.getTitle());
+      Assert.assertEquals(expected.getSteamReleaseDate(), actual.getSteamReleaseDate());
+      Assert.assertEquals(expected.getSteamUpdated(), actual.getSteamUpdated());
+      // Each caller gets objects of its own.
+      Assert.assertNotSame(expected, actual);
+    }
+
+    dbCxn.query("INSERT INTO games (steam_id, title, mac, steam_release) VALUES (31, 'New', 2, 15001)").insert();
+    Assert.assertEquals(31, Game.getByReleaseDate(0, Game.GameFilterMode.ALL).getTotalResults());
+  }
+
+  public void testSeesWritesFromElsewhere() throws SQLException {
+    // Two DBCxns on one file stand in for the web daemon and a task run from
+    // cron.
+    String path = System.getProperty("java.io.tmpdir") + File.separator + "mgcdb-result-cache-test.sqlite";
+    config.set("db.result_cache_check_ms", 0L);
+    DBCxn daemon = new DBCxn(path, config);
+    DBCxn task = new DBCxn(path, config);
+    try {
+      daemon.createIfNotExists(true);
+      daemon.initializeDb();
+      daemon.query("INSERT INTO games (steam_id, title) VALUES (1, 'Game')").insert();
+      Assert.assertEquals(1, daemon.query(countQuery).bindInt(0).cached().singleInt());
+
+      // The daemon's own writes are still only noticed for the tables they
+      // write to…
+      long hits = Metrics.get("db.result_cache.hits");
+      daemon.query("INSERT INTO users (steam_user_id) VALUES (1)").insert();
+      Assert.assertEquals(1, daemon.query(countQuery).bindInt(0).cached().singleInt());
+      Assert.assertEquals(hits + 1, Metrics.get("db.result_cache.hits"));
+
+      // …but one by another process could have changed anything.
+      long misses = Metrics.get("db.result_cache.misses");
+      task.query("INSERT INTO users (steam_user_id) VALUES (2)").insert();
+      Assert.assertEquals(1, daemon.query(countQuery).bindInt(0).cached().singleInt());
+      Assert.assertEquals(misses + 1, Metrics.get("db.result_cache.misses"));
+      task.query("INSERT INTO games (steam_id, title) VALUES (2, 'Another game')").insert();
+      Assert.assertEquals(2, daemon.query(countQuery).bindInt(0).cached().singleInt());
+      Assert.assertEquals(misses + 2, Metrics.get("db.result_cache.misses"));
+    }
+    finally {
+      task.close();
+      daemon.delete();
+    }
+  }
+
+  public void testReplaysResultSet() throws SQLException {
+    dbCxn.query("INSERT INTO games (steam_id, title, steam_release) VALUES (1, 'Game', NULL)").insert();
+    String select = "SELECT steam_id, title, steam_release, 1.5 AS ratio FROM games";
+    for (int pass = 0; pass < 2; pass++) {
+      try (ResultSet rs = dbCxn.query(select).cached().select()) {
+        Assert.assertEquals(4, rs.getMetaData().getColumnCount());
+        Assert.assertEquals("title", rs.getMetaData().getColumnLabel(2));
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(1, rs.getInt("steam_id"));
+        Assert.assertEquals(1L, rs.getLong(1));
+        Assert.assertEquals("1", rs.getString(1));
+        Assert.assertEquals("Game", rs.getString("TITLE"));
+        Assert.assertEquals(0, rs.getLong("steam_release"));
+        Assert.assertTrue(rs.wasNull());
+        Assert.assertNull(rs.getString(3));
+        Assert.assertEquals(1.5, rs.getDouble("ratio"));
+        Assert.assertFalse(rs.wasNull());
+        Assert.assertFalse(rs.next());
+      }
+    }
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws SQLException {
+    ResultCache cache = new ResultCache(2, 1048576, 60000);
+    int[] loads = new int[1];
+    ResultCache.Loader loader = query -> {
+      loads[0]++;
+      return dbCxn.query(query.getSql()).select();
+    };
+    cache.select(dbCxn.query("SELECT 1"), loader).close();
+    cache.select(dbCxn.query("SELECT 2"), loader).close();
+    // Use the first one again, so the second is the least recently used.
+    cache.select(dbCxn.query("SELECT 1"), loader).close();
+    cache.select(dbCxn.query("SELECT 3"), loader).close();
+    Assert.assertEquals(3, loads[0]);
+    Assert.assertEquals(2, cache.size());
+
+    cache.select(dbCxn.query("SELECT 1"), loader).close();
+    Assert.assertEquals(3, loads[0]);
+    cache.select(dbCxn.query("SELECT 2"), loader).close();
+    Assert.assertEquals(4, loads[0]);
+    Assert.assertTrue(cache.getBytes() > 0);
+
+    cache.clear();
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0, cache.getBytes());
+  }
+}